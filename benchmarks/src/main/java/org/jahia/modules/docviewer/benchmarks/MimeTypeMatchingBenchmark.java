@@ -0,0 +1,138 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.benchmarks;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.modules.docviewer.MimeTypeGroupIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the MIME type group matching of <code>DocumentViewService.isMimeTypeGroup()</code>. The service delegates to the
+ * {@link MimeTypeGroupIndex}, built from the Jahia MIME type configuration; here the index is built from a copy of that configuration, so
+ * that no Jahia runtime is required. The original per-call regular expression matching is kept as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MimeTypeMatchingBenchmark {
+
+    private static final Map<String, List<String>> MIME_TYPES = new LinkedHashMap<String, List<String>>();
+
+    private static final String[] SUPPORTED_FORMATS = { "pdf", "word", "rtf", "excel",
+            "powerpoint", "openoffice" };
+
+    static {
+        MIME_TYPES.put("pdf", Arrays.asList("application/pdf"));
+        MIME_TYPES.put("word", Arrays.asList("application/msword",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.*"));
+        MIME_TYPES.put("rtf", Arrays.asList("application/rtf", "text/rtf"));
+        MIME_TYPES.put("excel", Arrays.asList("application/vnd.ms-excel",
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.*"));
+        MIME_TYPES.put("powerpoint", Arrays.asList("application/vnd.ms-powerpoint",
+                "application/vnd.openxmlformats-officedocument.presentationml.*"));
+        MIME_TYPES.put("openoffice", Arrays.asList("application/vnd.oasis.opendocument.*",
+                "application/vnd.sun.xml.*"));
+        MIME_TYPES.put("archive", Arrays.asList("application/zip", "application/x-tar",
+                "application/x-gzip", "application/x-rar-compressed"));
+        MIME_TYPES.put("image", Arrays.asList("image/*"));
+        MIME_TYPES.put("video", Arrays.asList("video/*"));
+        MIME_TYPES.put("sound", Arrays.asList("audio/*"));
+    }
+
+    private MimeTypeGroupIndex index;
+
+    @Param({ "application/pdf", "application/vnd.oasis.opendocument.presentation", "image/png" })
+    public String mimeType;
+
+    @Benchmark
+    public boolean index() {
+        return index.matches(mimeType, SUPPORTED_FORMATS);
+    }
+
+    @Benchmark
+    public boolean indexCommaSeparated() {
+        return index.matches(mimeType, "pdf,word,rtf,excel,powerpoint,openoffice");
+    }
+
+    @Benchmark
+    public boolean regexBaseline() {
+        for (String grp : SUPPORTED_FORMATS) {
+            List<String> mimeTypes = MIME_TYPES.get(grp);
+            if (mimeTypes == null) {
+                continue;
+            }
+            for (String mime : mimeTypes) {
+                boolean found = mime.contains("*") ? Pattern.matches(
+                        StringUtils.replace(StringUtils.replace(mime, ".", "\\."), "*", ".*"),
+                        mimeType) : mime.equals(mimeType);
+                if (found) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Setup
+    public void setUp() {
+        index = new MimeTypeGroupIndex(MIME_TYPES);
+    }
+}
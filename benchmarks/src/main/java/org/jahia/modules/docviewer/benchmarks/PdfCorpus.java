@@ -0,0 +1,234 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.benchmarks;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDJpeg;
+
+/**
+ * Generated corpus of PDF documents the renderers are benchmarked against. The documents are generated once with a fixed random seed
+ * and kept in the directory, specified by the <code>docviewer.benchmark.corpus</code> system property (defaults to a folder in the
+ * system temp directory), so that the results of different runs and versions are comparable.
+ */
+public final class PdfCorpus {
+
+    /**
+     * The kind of a generated document.
+     */
+    public enum Kind {
+        /**
+         * A single page of 200x200 inches with vector graphics and text.
+         */
+        HUGE,
+        /**
+         * Pages with a full-page photo-like image each.
+         */
+        IMAGES,
+        /**
+         * Many short pages.
+         */
+        MANY_PAGES,
+        /**
+         * Pages full of text.
+         */
+        TEXT
+    }
+
+    private static final String LOREM = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.";
+
+    private static final int VERSION = 1;
+
+    /**
+     * Creates an image of the specified size, resembling a rendered document page: a gradient background with text lines.
+     *
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param seed
+     *            the seed for the random content
+     * @return the generated image
+     */
+    public static BufferedImage createPageImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), width,
+                    height, new Color(random.nextInt(0xFFFFFF))));
+            g.fillRect(0, 0, width, height);
+            for (int i = 0; i < 40; i++) {
+                g.setColor(new Color(random.nextInt(0xFFFFFF)));
+                g.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(200),
+                        20 + random.nextInt(200));
+            }
+            g.setColor(Color.BLACK);
+            g.setFont(new Font("SansSerif", Font.PLAIN, Math.max(height / 80, 8)));
+            int lineHeight = Math.max(height / 60, 10);
+            for (int y = lineHeight * 3; y < height - lineHeight; y += lineHeight) {
+                g.drawString(LOREM, width / 12, y);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static void generate(Kind kind, File target) throws Exception {
+        PDDocument doc = new PDDocument();
+        try {
+            switch (kind) {
+                case TEXT:
+                    for (int i = 0; i < 20; i++) {
+                        PDPage page = new PDPage(PDPage.PAGE_SIZE_A4);
+                        doc.addPage(page);
+                        PDPageContentStream cs = new PDPageContentStream(doc, page);
+                        cs.beginText();
+                        cs.setFont(PDType1Font.HELVETICA, 9);
+                        cs.moveTextPositionByAmount(40, 800);
+                        for (int line = 0; line < 70; line++) {
+                            cs.drawString(LOREM);
+                            cs.moveTextPositionByAmount(0, -11);
+                        }
+                        cs.endText();
+                        cs.close();
+                    }
+                    break;
+                case IMAGES:
+                    for (int i = 0; i < 10; i++) {
+                        PDPage page = new PDPage(PDPage.PAGE_SIZE_A4);
+                        doc.addPage(page);
+                        PDJpeg jpeg = new PDJpeg(doc, createPageImage(1654, 2339, i));
+                        PDPageContentStream cs = new PDPageContentStream(doc, page);
+                        PDRectangle box = page.getMediaBox();
+                        cs.drawXObject(jpeg, 0, 0, box.getWidth(), box.getHeight());
+                        cs.close();
+                    }
+                    break;
+                case HUGE:
+                    PDPage huge = new PDPage(new PDRectangle(14400, 14400));
+                    doc.addPage(huge);
+                    PDPageContentStream cs = new PDPageContentStream(doc, huge);
+                    Random random = new Random(VERSION);
+                    for (int i = 0; i < 2000; i++) {
+                        cs.setNonStrokingColor(new Color(random.nextInt(0xFFFFFF)));
+                        cs.fillRect(random.nextInt(14000), random.nextInt(14000),
+                                10 + random.nextInt(400), 10 + random.nextInt(400));
+                    }
+                    cs.beginText();
+                    cs.setNonStrokingColor(Color.BLACK);
+                    cs.setFont(PDType1Font.TIMES_ROMAN, 48);
+                    cs.moveTextPositionByAmount(200, 14000);
+                    for (int line = 0; line < 250; line++) {
+                        cs.drawString(LOREM);
+                        cs.moveTextPositionByAmount(0, -55);
+                    }
+                    cs.endText();
+                    cs.close();
+                    break;
+                case MANY_PAGES:
+                    for (int i = 0; i < 500; i++) {
+                        PDPage page = new PDPage(PDPage.PAGE_SIZE_A4);
+                        doc.addPage(page);
+                        PDPageContentStream pcs = new PDPageContentStream(doc, page);
+                        pcs.beginText();
+                        pcs.setFont(PDType1Font.HELVETICA_BOLD, 24);
+                        pcs.moveTextPositionByAmount(60, 760);
+                        pcs.drawString("Page " + (i + 1));
+                        pcs.setFont(PDType1Font.HELVETICA, 10);
+                        pcs.moveTextPositionByAmount(0, -30);
+                        pcs.drawString(LOREM);
+                        pcs.endText();
+                        pcs.close();
+                    }
+                    break;
+            }
+            File tmp = new File(target.getPath() + ".tmp");
+            doc.save(tmp.getPath());
+            FileUtils.deleteQuietly(target);
+            if (!tmp.renameTo(target)) {
+                throw new IllegalStateException("Unable to rename " + tmp + " to " + target);
+            }
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * Returns the document of the specified kind, generating it on first access.
+     *
+     * @param kind
+     *            the kind of the document
+     * @return the PDF file of the specified kind
+     * @throws Exception
+     *             in case the document cannot be generated
+     */
+    public static synchronized File get(Kind kind) throws Exception {
+        File dir = new File(System.getProperty("docviewer.benchmark.corpus", new File(
+                System.getProperty("java.io.tmpdir"), "doc-viewer-benchmark-corpus").getPath()));
+        File pdf = new File(dir, kind.name().toLowerCase() + "-v" + VERSION + ".pdf");
+        if (!pdf.isFile()) {
+            FileUtils.forceMkdir(dir);
+            generate(kind, pdf);
+        }
+        return pdf;
+    }
+
+    private PdfCorpus() {
+        super();
+    }
+}
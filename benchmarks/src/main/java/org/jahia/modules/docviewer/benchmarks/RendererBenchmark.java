@@ -0,0 +1,117 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.jahia.modules.docviewer.AbstractPDF2ImageConverter;
+import org.jahia.modules.docviewer.ICEpdfPDF2ImageConverterService;
+import org.jahia.modules.docviewer.PDFBoxPDF2ImageConverterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the PDF renderers on the documents of the {@link PdfCorpus}: rendering of the first page into a thumbnail-sized and a
+ * page-view-sized bounding box and reading the number of pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RendererBenchmark {
+
+    private AbstractPDF2ImageConverter<?> converter;
+
+    @Param({ "TEXT", "IMAGES", "HUGE", "MANY_PAGES" })
+    public PdfCorpus.Kind document;
+
+    private File pdf;
+
+    @Param({ "icepdf", "pdfbox" })
+    public String renderer;
+
+    @Param({ "150", "1024" })
+    public int size;
+
+    @Benchmark
+    public BufferedImage firstPage() throws Exception {
+        BufferedImage image = converter.getImageOfPage(pdf, 0, size, size);
+        image.flush();
+        return image;
+    }
+
+    @Benchmark
+    public int pageCount() throws Exception {
+        return converter.getNumberOfPages(pdf);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        pdf = PdfCorpus.get(document);
+        if ("pdfbox".equals(renderer)) {
+            PDFBoxPDF2ImageConverterService pdfbox = new PDFBoxPDF2ImageConverterService();
+            // as configured in applicationcontext-doc-viewer.xml
+            pdfbox.setLowMemory(true);
+            converter = pdfbox;
+        } else {
+            converter = new ICEpdfPDF2ImageConverterService();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        converter.destroy();
+    }
+}
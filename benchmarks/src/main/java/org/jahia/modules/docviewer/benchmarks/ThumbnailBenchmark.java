@@ -0,0 +1,128 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import net.coobird.thumbnailator.Thumbnails;
+
+import org.jahia.modules.docviewer.JPEGThumbnailEncoder;
+import org.jahia.modules.docviewer.PNGThumbnailEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the thumbnail path of the <code>DocumentViewService</code>: downscaling of a rendered page with Thumbnailator and encoding
+ * of the thumbnail into an in-memory buffer, as done by <code>storeThumbnailNode()</code>. The plain {@link ImageIO} PNG encoding is kept
+ * as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThumbnailBenchmark {
+
+    private JPEGThumbnailEncoder jpeg;
+
+    private ByteArrayOutputStream out;
+
+    private BufferedImage page;
+
+    private PNGThumbnailEncoder png;
+
+    @Param({ "150", "300" })
+    public int size;
+
+    private BufferedImage thumbnail;
+
+    @Benchmark
+    public int encodeImageIOPngBaseline() throws Exception {
+        out.reset();
+        ImageIO.write(thumbnail, "png", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeJpeg() throws Exception {
+        out.reset();
+        jpeg.encode(thumbnail, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodePng() throws Exception {
+        out.reset();
+        png.encode(thumbnail, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public BufferedImage scale() throws Exception {
+        BufferedImage scaled = Thumbnails.of(page).size(size, size).asBufferedImage();
+        scaled.flush();
+        return scaled;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        // page rendered for the largest thumbnail with the default oversample factor
+        page = PdfCorpus.createPageImage(size * 5 / 4 * 1275 / 1650, size * 5 / 4, 1);
+        thumbnail = Thumbnails.of(page).size(size, size).asBufferedImage();
+        out = new ByteArrayOutputStream(64 * 1024);
+        png = new PNGThumbnailEncoder();
+        jpeg = new JPEGThumbnailEncoder();
+    }
+}
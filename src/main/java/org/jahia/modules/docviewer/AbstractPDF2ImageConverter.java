@@ -0,0 +1,388 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Base class for the PDF page renderers, which opens a document once to render a range of pages. If the underlying library supports
+ * concurrent rendering of pages of the same document, the pages are spread across a bounded thread pool; at most one page per render
+ * thread is held in memory at a time and the pages are still passed to the callback in the order of their numbers.
+ * 
+ * @param <D>
+ *            the type of the opened document
+ */
+public abstract class AbstractPDF2ImageConverter<D> implements PDF2ImageConverter, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(AbstractPDF2ImageConverter.class);
+
+    private ExecutorService executor;
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NONE;
+
+    private String name = getClass().getSimpleName();
+
+    private float oversample = 1.25f;
+
+    private int renderThreads = 2;
+
+    /**
+     * Waits for the end of the abandoned page renderings: the renderers do not stop on interrupt and the document must not be closed
+     * while a page is still being rendered. The pages, which are not started yet, are skipped.
+     */
+    private void awaitAbandoned(List<Future<BufferedImage>> inFlight) {
+        boolean interrupted = false;
+        for (Future<BufferedImage> pending : inFlight) {
+            while (true) {
+                try {
+                    BufferedImage image = pending.get();
+                    if (image != null) {
+                        image.flush();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    // at most one page per render thread is in flight: keep waiting
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    logger.debug("Abandoned page rendering failed", e.getCause());
+                    break;
+                } catch (CancellationException e) {
+                    // the executor was shut down before the page was started
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Releases the resources of the opened document.
+     * 
+     * @param document
+     *            the document to be closed
+     */
+    protected abstract void closeDocument(D document);
+
+    public void destroy() throws Exception {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        synchronized (this) {
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(renderThreads, new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-viewer-" + name + "-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return executor;
+        }
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber) throws Exception {
+        D document = openDocument(pdfFile);
+        try {
+            return render(document, pageNumber, 0, 0);
+        } finally {
+            closeDocument(document);
+        }
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth,
+            int maxHeight) throws Exception {
+        D document = openDocument(pdfFile);
+        try {
+            return render(document, pageNumber, maxWidth, maxHeight);
+        } finally {
+            closeDocument(document);
+        }
+    }
+
+    public void getImagesOfPages(File pdfFile, int fromPage, int toPage,
+            PageImageCallback callback) throws Exception {
+        long timer = System.currentTimeMillis();
+        int first = Math.max(fromPage, 0);
+        int last = toPage;
+        D document = openDocument(pdfFile);
+        try {
+            last = Math.min(toPage, getNumberOfPages(document) - 1);
+            if (renderThreads > 1 && isConcurrentRenderingSupported() && last > first) {
+                renderConcurrently(document, first, last, callback);
+            } else {
+                for (int page = first; page <= last; page++) {
+                    BufferedImage image = render(document, page, 0, 0);
+                    try {
+                        callback.pageRendered(page, image);
+                    } finally {
+                        if (image != null) {
+                            image.flush();
+                        }
+                    }
+                }
+            }
+        } finally {
+            closeDocument(document);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Rendered pages {}-{} of {} in {} ms", new Object[] { first, last, pdfFile,
+                    System.currentTimeMillis() - timer });
+        }
+    }
+
+    /**
+     * Returns the number of pages in the opened document.
+     * 
+     * @param document
+     *            the opened document
+     * @return the number of pages in the opened document
+     */
+    protected abstract int getNumberOfPages(D document);
+
+    public int getNumberOfPages(File pdfFile) throws Exception {
+        D document = openDocument(pdfFile);
+        try {
+            return getNumberOfPages(document);
+        } finally {
+            closeDocument(document);
+        }
+    }
+
+    /**
+     * Computes the rendering scale for a page of the specified size (in 1/72 inch units), so that it fits into the target bounding box,
+     * taking the oversample factor into account.
+     * 
+     * @param pageWidth
+     *            the page width
+     * @param pageHeight
+     *            the page height
+     * @param maxWidth
+     *            the width of the target bounding box in pixels
+     * @param maxHeight
+     *            the height of the target bounding box in pixels
+     * @return the rendering scale or <code>0</code> if the page should be rendered at its natural size
+     */
+    protected float getScale(float pageWidth, float pageHeight, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0 || pageWidth <= 0 || pageHeight <= 0) {
+            return 0;
+        }
+
+        return Math.min(maxWidth / pageWidth, maxHeight / pageHeight) * Math.max(oversample, 1);
+    }
+
+    /**
+     * Returns <code>true</code> if the pages of an opened document can be rendered concurrently by several threads.
+     * 
+     * @return <code>true</code> if the pages of an opened document can be rendered concurrently by several threads
+     */
+    protected abstract boolean isConcurrentRenderingSupported();
+
+    /**
+     * Opens the specified PDF document.
+     * 
+     * @param pdfFile
+     *            the PDF document file
+     * @return the opened document
+     * @throws Exception
+     *             in case of a document parsing error
+     */
+    protected abstract D openDocument(File pdfFile) throws Exception;
+
+    private BufferedImage render(D document, int pageNumber, int maxWidth, int maxHeight)
+            throws Exception {
+        long timer = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            BufferedImage image = renderPage(document, pageNumber, maxWidth, maxHeight);
+            success = true;
+            return image;
+        } finally {
+            String stage = MetricsRegistry.RENDER + "." + name;
+            metricsRegistry.recordTime(stage, System.currentTimeMillis() - timer);
+            metricsRegistry.increment(stage + (success ? ".success" : ".failure"), 1);
+        }
+    }
+
+    private void renderConcurrently(final D document, int fromPage, int toPage,
+            PageImageCallback callback) throws Exception {
+        ExecutorService executor = getExecutor();
+        // in the order of the pages: a page, which completes early, waits for the previous ones
+        LinkedList<Future<BufferedImage>> inFlight = new LinkedList<Future<BufferedImage>>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        int next = fromPage;
+        try {
+            for (int page = fromPage; page <= toPage; page++) {
+                // keep at most one page per render thread in flight
+                while (next <= toPage && inFlight.size() < renderThreads) {
+                    final int submitted = next++;
+                    inFlight.add(executor.submit(new Callable<BufferedImage>() {
+                        public BufferedImage call() throws Exception {
+                            return abandoned.get() ? null : render(document, submitted, 0, 0);
+                        }
+                    }));
+                }
+                Future<BufferedImage> done = inFlight.removeFirst();
+                BufferedImage image = null;
+                try {
+                    image = done.get();
+                    callback.pageRendered(page, image);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                } finally {
+                    if (image != null) {
+                        image.flush();
+                    }
+                }
+            }
+        } finally {
+            if (!inFlight.isEmpty()) {
+                abandoned.set(true);
+                awaitAbandoned(inFlight);
+            }
+        }
+    }
+
+    /**
+     * Renders the specified page of the opened document.
+     * 
+     * @param document
+     *            the opened document
+     * @param pageNumber
+     *            the number of the page (starting from 0)
+     * @return the image of the page or <code>null</code> if there is no such page
+     * @throws Exception
+     *             in case of a rendering error
+     */
+    protected BufferedImage renderPage(D document, int pageNumber) throws Exception {
+        return renderPage(document, pageNumber, 0, 0);
+    }
+
+    /**
+     * Renders the specified page of the opened document, so that it fits into the provided bounding box (see
+     * {@link #getScale(float, float, int, int)}).
+     * 
+     * @param document
+     *            the opened document
+     * @param pageNumber
+     *            the number of the page (starting from 0)
+     * @param maxWidth
+     *            the width of the target bounding box in pixels; if zero or less, the page is rendered at its natural size
+     * @param maxHeight
+     *            the height of the target bounding box in pixels; if zero or less, the page is rendered at its natural size
+     * @return the image of the page or <code>null</code> if there is no such page
+     * @throws Exception
+     *             in case of a rendering error
+     */
+    protected abstract BufferedImage renderPage(D document, int pageNumber, int maxWidth,
+            int maxHeight) throws Exception;
+
+    /**
+     * Sets the registry to publish the page rendering timings to.
+     * 
+     * @param metricsRegistry
+     *            the metrics registry
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NONE;
+    }
+
+    /**
+     * Sets the name of this renderer, used in the thread and metric names. Defaults to the simple class name.
+     * 
+     * @param name
+     *            the name of this renderer
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Sets the factor, the page is rendered larger than the target bounding box with, to improve the quality of the final downscaling.
+     * Values below 1 are treated as 1.
+     * 
+     * @param oversample
+     *            the oversample factor
+     */
+    public void setOversample(float oversample) {
+        this.oversample = oversample;
+    }
+
+    /**
+     * Sets the maximum number of threads used to render pages of a document concurrently.
+     * 
+     * @param renderThreads
+     *            the maximum number of threads used to render pages of a document concurrently
+     */
+    public void setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads;
+    }
+
+}
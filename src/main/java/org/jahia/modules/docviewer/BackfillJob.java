@@ -0,0 +1,731 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DurationFormatUtils;
+import org.jahia.api.Constants;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.modules.docviewer.DocumentViewService.DerivativeStatus;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch job, which walks a JCR subtree and creates the missing or outdated SWF views and thumbnails of the existing documents. The
+ * documents are converted by a configurable number of workers, optionally throttled to a maximum rate, and the changes are saved in
+ * batches. The job position (the number of documents in the traversal order, which are completely processed) is periodically stored in
+ * a checkpoint file together with the identifiers of the documents, which failed, so that a restarted job skips the already processed
+ * part of the tree, but retries the failed documents first.
+ */
+public class BackfillJob implements Runnable {
+
+    private static final class Item {
+        private boolean changed;
+
+        private boolean failed;
+
+        private final String identifier;
+
+        private final String path;
+
+        private final long position;
+
+        Item(long position, String identifier, String path) {
+            super();
+            this.position = position;
+            this.identifier = identifier;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The state of a backfill job.
+     */
+    public enum Status {
+        FAILED, FINISHED, PENDING, RUNNING, STOPPED
+    }
+
+    private static final Item END = new Item(-1, null, null);
+
+    // the position of the retried documents, which are not tracked as in flight
+    private static final long RETRY = -2;
+
+    private static Logger logger = LoggerFactory.getLogger(BackfillJob.class);
+
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private int batchSize = 20;
+
+    private File checkpointFile;
+
+    private long checkpointInterval = 10000L;
+
+    private int concurrency = 2;
+
+    private AtomicLong converted = new AtomicLong();
+
+    private final DocumentViewService documentViewService;
+
+    private volatile long ended;
+
+    private AtomicLong failed = new AtomicLong();
+
+    private final Set<String> failedDocuments = Collections
+            .synchronizedSet(new LinkedHashSet<String>());
+
+    private final ConcurrentSkipListMap<Long, String> inFlight = new ConcurrentSkipListMap<Long, String>();
+
+    private long lastCheckpoint;
+
+    private long lastReport;
+
+    private double maxRate;
+
+    private volatile long nextPosition;
+
+    private long nextSlot;
+
+    private BlockingQueue<Item> queue;
+
+    private long reportInterval = 60000L;
+
+    private volatile long resumedFrom;
+
+    private final String rootPath;
+
+    private AtomicLong skipped = new AtomicLong();
+
+    private volatile long started;
+
+    private volatile Status status = Status.PENDING;
+
+    private volatile boolean stopRequested;
+
+    private Map<String, Integer> thumbnails;
+
+    private volatile long total = -1;
+
+    private boolean view = true;
+
+    private final String workspace;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param documentViewService
+     *            the document view service to create the derivatives with
+     * @param workspace
+     *            the workspace to process
+     * @param rootPath
+     *            the path of the subtree to process
+     */
+    public BackfillJob(DocumentViewService documentViewService, String workspace, String rootPath) {
+        super();
+        this.documentViewService = documentViewService;
+        this.workspace = workspace;
+        this.rootPath = rootPath;
+    }
+
+    private void checkpoint(boolean force) {
+        long now = System.currentTimeMillis();
+        synchronized (inFlight) {
+            if (force || now - lastCheckpoint >= checkpointInterval) {
+                lastCheckpoint = now;
+                storeCheckpoint();
+            }
+            if (force || now - lastReport >= reportInterval) {
+                lastReport = now;
+                logger.info("Backfill of {}: {}", rootPath, this);
+            }
+        }
+    }
+
+    private void enqueue(Item item) throws RepositoryException, InterruptedException {
+        while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+            if (activeWorkers.get() == 0) {
+                throw new RepositoryException("No backfill workers left to process document "
+                        + item.path);
+            }
+        }
+    }
+
+    private void flush(JCRSessionWrapper session, List<Item> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean dirty = false;
+        for (Item item : batch) {
+            dirty = dirty || item.changed;
+        }
+        if (dirty) {
+            try {
+                session.save();
+            } catch (RepositoryException e) {
+                logger.error("Unable to save the derivatives of " + batch.size()
+                        + " document(s) under " + rootPath, e);
+                for (Item item : batch) {
+                    item.failed = item.failed || item.changed;
+                }
+                try {
+                    session.refresh(false);
+                } catch (RepositoryException ex) {
+                    logger.warn("Unable to discard the pending changes", ex);
+                }
+            }
+        }
+        for (Item item : batch) {
+            (item.failed ? failed : (item.changed ? converted : skipped)).incrementAndGet();
+            // the failed documents are stored with the checkpoint and retried by the next run
+            if (item.failed) {
+                failedDocuments.add(item.identifier);
+            } else {
+                failedDocuments.remove(item.identifier);
+            }
+            inFlight.remove(item.position);
+        }
+        batch.clear();
+
+        checkpoint(false);
+    }
+
+    /**
+     * Returns the number of documents, the views or thumbnails were created for.
+     *
+     * @return the number of documents, the views or thumbnails were created for
+     */
+    public long getConverted() {
+        return converted.get();
+    }
+
+    /**
+     * Returns the estimated time in milliseconds, required to process the remaining documents or <code>-1</code> if it cannot be
+     * estimated yet.
+     *
+     * @return the estimated time in milliseconds, required to process the remaining documents or <code>-1</code> if it cannot be
+     *         estimated yet
+     */
+    public long getEstimatedTimeRemaining() {
+        double throughput = getThroughput();
+        if (total < 0 || throughput <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(total - getPosition(), 0) * 1000 / throughput);
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the identifiers of the documents, the derivatives could not be created for, including the ones failed in a previous run,
+     * which were not retried yet.
+     *
+     * @return the identifiers of the documents, the derivatives could not be created for
+     */
+    public List<String> getFailedDocuments() {
+        synchronized (failedDocuments) {
+            return new ArrayList<String>(failedDocuments);
+        }
+    }
+
+    /**
+     * Returns the number of documents in the traversal order, which are completely processed, including the ones skipped on resume.
+     *
+     * @return the number of documents in the traversal order, which are completely processed
+     */
+    public long getPosition() {
+        long position = nextPosition;
+        if (!inFlight.isEmpty()) {
+            try {
+                position = Math.min(position, inFlight.firstKey());
+            } catch (NoSuchElementException e) {
+                // drained concurrently
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Returns the number of documents, processed by this run of the job.
+     *
+     * @return the number of documents, processed by this run of the job
+     */
+    public long getProcessed() {
+        return converted.get() + skipped.get() + failed.get();
+    }
+
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * Returns the number of documents, which were up to date, are not supported or could not be converted.
+     *
+     * @return the number of documents, which were up to date, are not supported or could not be converted
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the number of documents, processed per second by this run of the job.
+     *
+     * @return the number of documents, processed per second by this run of the job
+     */
+    public double getThroughput() {
+        if (started == 0) {
+            return 0;
+        }
+        long elapsed = (ended > 0 ? ended : System.currentTimeMillis()) - started;
+        return elapsed > 0 ? getProcessed() * 1000d / elapsed : 0;
+    }
+
+    /**
+     * Returns the total number of files in the subtree or <code>-1</code> if it is not known.
+     *
+     * @return the total number of files in the subtree or <code>-1</code> if it is not known
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    public boolean isRunning() {
+        return status == Status.PENDING || status == Status.RUNNING;
+    }
+
+    private boolean isSupported(Node file) throws RepositoryException {
+        if (!file.hasNode(Constants.JCR_CONTENT)) {
+            return false;
+        }
+        Node content = file.getNode(Constants.JCR_CONTENT);
+        return content.hasProperty(Constants.JCR_MIMETYPE)
+                && DocumentViewService.isMimeTypeGroup(content.getProperty(Constants.JCR_MIMETYPE)
+                        .getString(), documentViewService.getSupportedDocumentFormats());
+    }
+
+    private long loadCheckpoint() {
+        if (checkpointFile == null || !checkpointFile.isFile()) {
+            return 0;
+        }
+        Properties checkpoint = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(checkpointFile);
+            checkpoint.load(is);
+        } catch (IOException e) {
+            logger.warn("Unable to read backfill checkpoint " + checkpointFile
+                    + ". Starting from the beginning.", e);
+            return 0;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        if (!workspace.equals(checkpoint.getProperty("workspace"))
+                || !rootPath.equals(checkpoint.getProperty("rootPath"))) {
+            return 0;
+        }
+        for (String identifier : StringUtils.split(checkpoint.getProperty("failed", ""), ',')) {
+            failedDocuments.add(identifier);
+        }
+
+        return Math.max(Long.parseLong(checkpoint.getProperty("position", "0")), 0);
+    }
+
+    private void process() throws Exception {
+        queue = new ArrayBlockingQueue<Item>(Math.max(batchSize, 1) * concurrency * 2);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-viewer-backfill-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                activeWorkers.incrementAndGet();
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                                    new JCRCallback<Boolean>() {
+                                        public Boolean doInJCR(JCRSessionWrapper session)
+                                                throws RepositoryException {
+                                            work(session);
+                                            return Boolean.TRUE;
+                                        }
+                                    });
+                        } catch (RepositoryException e) {
+                            logger.error(e.getMessage(), e);
+                        } finally {
+                            activeWorkers.decrementAndGet();
+                        }
+                    }
+                });
+            }
+
+            JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                    new JCRCallback<Boolean>() {
+                        public Boolean doInJCR(JCRSessionWrapper session)
+                                throws RepositoryException {
+                            total = queryFileCount(session);
+                            try {
+                                retryFailed(session);
+                                // traverse the underlying nodes to keep the session wrapper caches small
+                                traverse(session.getNode(rootPath).getRealNode());
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return Boolean.TRUE;
+                        }
+                    });
+        } finally {
+            while (!queue.offer(END, 1, TimeUnit.SECONDS) && activeWorkers.get() > 0) {
+                // wait for the workers to drain the queue
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for the backfill workers to complete. {}", this);
+            }
+        }
+    }
+
+    private long queryFileCount(JCRSessionWrapper session) {
+        try {
+            NodeIterator files = session
+                    .getWorkspace()
+                    .getQueryManager()
+                    .createQuery(
+                            "select * from [nt:file] as f where isdescendantnode(f, ["
+                                    + rootPath + "])", Query.JCR_SQL2).execute().getNodes();
+            return files.getSize();
+        } catch (RepositoryException e) {
+            logger.debug("Unable to count files under " + rootPath, e);
+            return -1;
+        }
+    }
+
+    private void retryFailed(JCRSessionWrapper session) throws RepositoryException,
+            InterruptedException {
+        for (String identifier : getFailedDocuments()) {
+            if (stopRequested) {
+                return;
+            }
+            try {
+                enqueue(new Item(RETRY, identifier, session.getNodeByIdentifier(identifier)
+                        .getPath()));
+            } catch (ItemNotFoundException e) {
+                failedDocuments.remove(identifier);
+            }
+        }
+    }
+
+    /**
+     * Processes the subtree in the current thread, resuming from the last checkpoint and retrying the documents, which failed in the
+     * previous run, if any.
+     */
+    public void run() {
+        started = System.currentTimeMillis();
+        nextSlot = System.nanoTime();
+        resumedFrom = loadCheckpoint();
+        nextPosition = resumedFrom;
+        status = Status.RUNNING;
+        if (resumedFrom > 0) {
+            logger.info("Resuming backfill of {} in workspace {} after {} document(s)",
+                    new Object[] { rootPath, workspace, resumedFrom });
+        } else {
+            logger.info("Starting backfill of {} in workspace {} with {} worker(s)", new Object[] {
+                    rootPath, workspace, concurrency });
+        }
+        try {
+            process();
+            status = stopRequested ? Status.STOPPED : Status.FINISHED;
+        } catch (Exception e) {
+            status = Status.FAILED;
+            logger.error("Backfill of " + rootPath + " failed", e);
+        } finally {
+            ended = System.currentTimeMillis();
+            if (status == Status.FINISHED && failedDocuments.isEmpty()) {
+                FileUtils.deleteQuietly(checkpointFile);
+            }
+            checkpoint(true);
+        }
+    }
+
+    /**
+     * Sets the number of documents, which changes are saved together.
+     *
+     * @param batchSize
+     *            the number of documents, which changes are saved together
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Sets the number of documents, which are converted in parallel. Note that the conversions are additionally bounded by the workers of
+     * the {@link ConversionScheduler}.
+     *
+     * @param concurrency
+     *            the number of documents, which are converted in parallel
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * Sets the maximum number of documents to be processed per second. A value of zero or less disables the throttling.
+     *
+     * @param maxRate
+     *            the maximum number of documents to be processed per second
+     */
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    public void setThumbnails(Map<String, Integer> thumbnails) {
+        this.thumbnails = thumbnails;
+    }
+
+    public void setView(boolean view) {
+        this.view = view;
+    }
+
+    /**
+     * Requests the job to stop. The documents being converted are completed and saved, the position is stored in the checkpoint file.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    private void storeCheckpoint() {
+        if (checkpointFile == null || status == Status.FINISHED && failedDocuments.isEmpty()) {
+            return;
+        }
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("workspace", workspace);
+        checkpoint.setProperty("rootPath", rootPath);
+        checkpoint.setProperty("position", String.valueOf(getPosition()));
+        checkpoint.setProperty("failed", StringUtils.join(getFailedDocuments(), ','));
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            FileUtils.forceMkdir(checkpointFile.getParentFile());
+            os = new FileOutputStream(tmp);
+            checkpoint.store(os, "Document viewer backfill checkpoint");
+            os.close();
+            os = null;
+            FileUtils.deleteQuietly(checkpointFile);
+            if (!tmp.renameTo(checkpointFile)) {
+                throw new IOException("Unable to rename " + tmp + " to " + checkpointFile);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to store backfill checkpoint " + checkpointFile, e);
+        } finally {
+            IOUtils.closeQuietly(os);
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        if (maxRate <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextSlot = Math.max(nextSlot, now);
+            delay = nextSlot - now;
+            nextSlot += (long) (1000000000L / maxRate);
+        }
+        if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long eta = getEstimatedTimeRemaining();
+        return new StringBuilder(128).append(status).append(", ").append(getPosition())
+                .append(" of ").append(total >= 0 ? String.valueOf(total) : "?")
+                .append(" file(s) done (converted: ").append(getConverted())
+                .append(", skipped: ").append(getSkipped()).append(", failed: ")
+                .append(getFailed()).append("), ")
+                .append(String.format("%.2f", getThroughput())).append(" docs/s, ETA: ")
+                .append(eta >= 0 ? DurationFormatUtils.formatDuration(eta, "HH:mm:ss") : "?")
+                .toString();
+    }
+
+    private void traverse(Node node) throws RepositoryException, InterruptedException {
+        for (NodeIterator iterator = node.getNodes(); iterator.hasNext() && !stopRequested;) {
+            Node child = iterator.nextNode();
+            if (child.isNodeType("nt:file")) {
+                long position = nextPosition;
+                if (position >= resumedFrom) {
+                    if (isSupported(child)) {
+                        inFlight.put(position, child.getPath());
+                        nextPosition = position + 1;
+                        enqueue(new Item(position, child.getIdentifier(), child.getPath()));
+                        continue;
+                    }
+                    skipped.incrementAndGet();
+                }
+                nextPosition = position + 1;
+            } else if (!"jcr:system".equals(child.getName())) {
+                traverse(child);
+            }
+        }
+    }
+
+    private void work(JCRSessionWrapper session) {
+        List<Item> batch = new LinkedList<Item>();
+        try {
+            while (true) {
+                // do not keep a partial batch unsaved while the traversal is slow
+                Item item = batch.isEmpty() ? queue.take() : queue.poll(1, TimeUnit.SECONDS);
+                if (item == null) {
+                    flush(session, batch);
+                    continue;
+                }
+                if (item == END) {
+                    // let the other workers see the end marker too
+                    queue.put(END);
+                    break;
+                }
+                if (stopRequested) {
+                    // the item stays in flight, so that the checkpoint does not advance past it
+                    continue;
+                }
+                throttle();
+                try {
+                    JCRNodeWrapper node = session.getNodeByIdentifier(item.identifier);
+                    DerivativeStatus result = documentViewService.createDerivatives(node, view,
+                            thumbnails, Priority.BACKGROUND, false);
+                    // a partially failed document has changes to be saved as well
+                    item.changed = result != DerivativeStatus.UNCHANGED;
+                    item.failed = result == DerivativeStatus.FAILED;
+                } catch (ItemNotFoundException e) {
+                    logger.debug("Document {} was removed in the meantime", item.path);
+                } catch (RepositoryException e) {
+                    item.failed = true;
+                    logger.warn("Unable to create derivatives for document " + item.path, e);
+                }
+                batch.add(item);
+                if (batch.size() >= batchSize) {
+                    flush(session, batch);
+                    // drop the cached items of the processed batch
+                    session.refresh(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RepositoryException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            flush(session, batch);
+        }
+    }
+}
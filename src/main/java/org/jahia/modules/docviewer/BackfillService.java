@@ -0,0 +1,240 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jahia.settings.SettingsBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Starts and keeps track of the {@link BackfillJob}s, which create the missing views and thumbnails for documents of the existing
+ * repository content. Only one job per workspace and subtree can run at a time; starting a job again after it was stopped or the server
+ * was restarted resumes it from its last checkpoint.
+ */
+public class BackfillService implements DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(BackfillService.class);
+
+    private int batchSize = 20;
+
+    private File checkpointDirectory;
+
+    private int concurrency = 2;
+
+    private DocumentViewService documentViewService;
+
+    private Map<String, BackfillJob> jobs = new LinkedHashMap<String, BackfillJob>();
+
+    private int maxConcurrency = 8;
+
+    private double maxRate;
+
+    private Map<String, Integer> thumbnails;
+
+    private boolean view = true;
+
+    public void destroy() throws Exception {
+        for (BackfillJob job : getJobs()) {
+            job.stop();
+        }
+    }
+
+    private File getCheckpointFile(String workspace, String rootPath) {
+        File dir = checkpointDirectory;
+        if (dir == null) {
+            // the checkpoints have to survive the restart, which may clean up the temp folder
+            SettingsBean settings = SettingsBean.getInstance();
+            dir = settings != null && settings.getJahiaVarDiskPath() != null ? new File(
+                    settings.getJahiaVarDiskPath(), "doc-viewer/backfill") : new File(
+                    System.getProperty("java.io.tmpdir"), "doc-viewer-backfill");
+        }
+        return new File(dir, DigestUtils.md5Hex(workspace + ":" + rootPath) + ".properties");
+    }
+
+    /**
+     * Returns the last job for the specified workspace and subtree or <code>null</code> if no job was started for it.
+     *
+     * @param workspace
+     *            the workspace name
+     * @param rootPath
+     *            the path of the subtree
+     * @return the last job for the specified workspace and subtree or <code>null</code> if no job was started for it
+     */
+    public synchronized BackfillJob getJob(String workspace, String rootPath) {
+        return jobs.get(workspace + ":" + rootPath);
+    }
+
+    public synchronized List<BackfillJob> getJobs() {
+        return new ArrayList<BackfillJob>(jobs.values());
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = StringUtils.isNotBlank(checkpointDirectory) ? new File(
+                checkpointDirectory) : null;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setDocumentViewService(DocumentViewService documentViewService) {
+        this.documentViewService = documentViewService;
+    }
+
+    /**
+     * Sets the upper limit for the number of documents converted in parallel by a single job, which also applies to the concurrency,
+     * requested on start.
+     *
+     * @param maxConcurrency
+     *            the upper limit for the number of documents converted in parallel by a single job
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Sets the default maximum number of documents to be processed per second. A value of zero or less disables the throttling.
+     *
+     * @param maxRate
+     *            the default maximum number of documents to be processed per second
+     */
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Sets the mapping of the thumbnail node names to their sizes, which should be created for the documents.
+     *
+     * @param thumbnails
+     *            the mapping of the thumbnail node names to their sizes
+     */
+    public void setThumbnails(Map<String, Integer> thumbnails) {
+        this.thumbnails = thumbnails;
+    }
+
+    public void setView(boolean view) {
+        this.view = view;
+    }
+
+    /**
+     * Starts a backfill job for the specified subtree with the default concurrency and rate, unless a job for it is already running.
+     *
+     * @param workspace
+     *            the workspace name
+     * @param rootPath
+     *            the path of the subtree to process
+     * @return the started or the already running job
+     */
+    public BackfillJob start(String workspace, String rootPath) {
+        return start(workspace, rootPath, concurrency, maxRate);
+    }
+
+    /**
+     * Starts a backfill job for the specified subtree, unless a job for it is already running. The job is executed in a separate thread.
+     *
+     * @param workspace
+     *            the workspace name
+     * @param rootPath
+     *            the path of the subtree to process
+     * @param concurrency
+     *            the number of documents to be converted in parallel; zero or less means the configured default; it is limited by
+     *            the configured maximum concurrency
+     * @param maxRate
+     *            the maximum number of documents to be processed per second; zero means no throttling, a negative value means the
+     *            configured default
+     * @return the started or the already running job
+     */
+    public synchronized BackfillJob start(String workspace, String rootPath, int concurrency,
+            double maxRate) {
+        String key = workspace + ":" + rootPath;
+        BackfillJob job = jobs.get(key);
+        if (job != null && job.isRunning()) {
+            logger.info("Backfill of {} in workspace {} is already running", rootPath, workspace);
+            return job;
+        }
+
+        job = new BackfillJob(documentViewService, workspace, rootPath);
+        job.setBatchSize(batchSize);
+        job.setCheckpointFile(getCheckpointFile(workspace, rootPath));
+        job.setConcurrency(Math.min(concurrency > 0 ? concurrency : this.concurrency,
+                Math.max(maxConcurrency, 1)));
+        job.setMaxRate(maxRate >= 0 ? maxRate : this.maxRate);
+        job.setThumbnails(thumbnails);
+        job.setView(view);
+        jobs.put(key, job);
+
+        Thread thread = new Thread(job, "doc-viewer-backfill");
+        thread.setDaemon(true);
+        thread.start();
+
+        return job;
+    }
+
+    /**
+     * Requests the running job for the specified subtree to stop. It can be resumed later on by starting it again.
+     *
+     * @param workspace
+     *            the workspace name
+     * @param rootPath
+     *            the path of the subtree
+     * @return the stopped job or <code>null</code> if there is no such job
+     */
+    public synchronized BackfillJob stop(String workspace, String rootPath) {
+        BackfillJob job = jobs.get(workspace + ":" + rootPath);
+        if (job != null) {
+            job.stop();
+        }
+        return job;
+    }
+}
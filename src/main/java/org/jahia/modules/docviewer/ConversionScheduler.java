@@ -0,0 +1,439 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Schedules the conversion work (office document to PDF, PDF to SWF, PDF page rendering) on bounded worker pools, one per conversion
+ * stage. Each stage has a configurable number of workers and a bounded queue: when the queue is full, the submitting thread waits for a
+ * free slot (backpressure) up to the configured timeout. Interactive requests are taken from the queue before the background ones; when the
+ * queue is full, they use a separate, bounded reserve of slots, so that they are not blocked by the background backlog.
+ */
+public class ConversionScheduler implements InitializingBean, DisposableBean {
+
+    /**
+     * The priority of a conversion request.
+     */
+    public enum Priority {
+        /**
+         * Request, triggered during page rendering, where a user is waiting for the result.
+         */
+        INTERACTIVE,
+        /**
+         * Request, triggered by rules or batch jobs.
+         */
+        BACKGROUND
+    }
+
+    private static class PrioritizedTask<T> extends FutureTask<T> implements
+            Comparable<PrioritizedTask<?>> {
+
+        private final Priority priority;
+
+        private final long sequence = SEQUENCE.incrementAndGet();
+
+        private final Stage stage;
+
+        private final long submitted = System.currentTimeMillis();
+
+        PrioritizedTask(Stage stage, Priority priority, Callable<T> callable) {
+            super(callable);
+            this.stage = stage;
+            this.priority = priority;
+        }
+
+        public int compareTo(PrioritizedTask<?> other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : (sequence < other.sequence ? -1
+                    : (sequence > other.sequence ? 1 : 0));
+        }
+
+        @Override
+        public void run() {
+            stage.waited(System.currentTimeMillis() - submitted);
+            super.run();
+        }
+    }
+
+    private static class Stage {
+
+        private AtomicLong completed = new AtomicLong();
+
+        private ThreadPoolExecutor executor;
+
+        private Semaphore interactiveSlots;
+
+        private AtomicLong maxWaitTime = new AtomicLong();
+
+        private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+        private final String name;
+
+        private AtomicLong rejected = new AtomicLong();
+
+        private Semaphore slots;
+
+        private AtomicLong started = new AtomicLong();
+
+        private AtomicLong totalWaitTime = new AtomicLong();
+
+        Stage(String name) {
+            super();
+            this.name = name;
+        }
+
+        void waited(long waitTime) {
+            metrics.recordTime(name + ".wait", waitTime);
+            started.incrementAndGet();
+            totalWaitTime.addAndGet(waitTime);
+            long max = maxWaitTime.get();
+            while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+                max = maxWaitTime.get();
+            }
+        }
+    }
+
+    public static final String STAGE_IMAGE = "image";
+
+    public static final String STAGE_PDF = "pdf";
+
+    public static final String STAGE_SWF = "swf";
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static Logger logger = LoggerFactory.getLogger(ConversionScheduler.class);
+
+    private int defaultWorkers = 2;
+
+    private int interactiveCapacity = 20;
+
+    private long interactiveTimeout = 30 * 1000L;
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NONE;
+
+    private int queueCapacity = 50;
+
+    private Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+    private long submitTimeout = 5 * 60 * 1000L;
+
+    private Map<String, Integer> workers = new HashMap<String, Integer>();
+
+    public void afterPropertiesSet() throws Exception {
+        for (String name : new String[] { STAGE_PDF, STAGE_SWF, STAGE_IMAGE }) {
+            getStage(name);
+        }
+    }
+
+    private Stage createStage(final String name) {
+        final Stage stage = new Stage(name);
+        stage.metrics = metricsRegistry;
+        Integer count = workers.get(name);
+        int threads = count != null && count.intValue() > 0 ? count.intValue() : defaultWorkers;
+        stage.slots = new Semaphore(threads + queueCapacity, true);
+        stage.interactiveSlots = new Semaphore(interactiveCapacity, true);
+        stage.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-viewer-" + name + "-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        metricsRegistry.registerGauge(name + ".queued", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return stage.executor.getQueue().size();
+            }
+        });
+        metricsRegistry.registerGauge(name + ".inFlight", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return stage.executor.getActiveCount();
+            }
+        });
+        logger.info("Initialized conversion stage '{}' with {} worker(s) and a queue of {}",
+                new Object[] { name, threads, queueCapacity });
+
+        return stage;
+    }
+
+    public void destroy() throws Exception {
+        synchronized (stages) {
+            for (Stage stage : stages.values()) {
+                stage.executor.shutdownNow();
+            }
+            stages.clear();
+        }
+    }
+
+    /**
+     * Executes the provided task in the specified conversion stage and waits for its result. If the stage queue is full, the calling
+     * thread of a background request waits for a free slot up to the configured submit timeout; an interactive request takes a slot from
+     * the interactive reserve, waiting for it up to the configured interactive timeout.
+     *
+     * @param stageName
+     *            the name of the conversion stage
+     * @param priority
+     *            the priority of the request
+     * @param task
+     *            the conversion task
+     * @return the result of the task
+     * @throws Exception
+     *             in case of a conversion error, if the task was rejected or the calling thread was interrupted
+     */
+    public <T> T execute(String stageName, Priority priority, Callable<T> task) throws Exception {
+        Stage stage = getStage(stageName);
+        Semaphore acquired = null;
+        if (priority == Priority.INTERACTIVE) {
+            // interactive requests are not blocked by the background backlog: they have a reserve
+            if (stage.slots.tryAcquire()) {
+                acquired = stage.slots;
+            } else if (stage.interactiveSlots.tryAcquire(interactiveTimeout,
+                    TimeUnit.MILLISECONDS)) {
+                acquired = stage.interactiveSlots;
+            }
+        } else if (stage.slots.tryAcquire(submitTimeout, TimeUnit.MILLISECONDS)) {
+            acquired = stage.slots;
+        }
+        if (acquired == null) {
+            stage.rejected.incrementAndGet();
+            metricsRegistry.increment(stageName + ".rejected", 1);
+            throw new RejectedExecutionException("The queue of the conversion stage '"
+                    + stageName + "' is full. Unable to schedule the task within "
+                    + (priority == Priority.INTERACTIVE ? interactiveTimeout : submitTimeout)
+                    + " ms");
+        }
+        PrioritizedTask<T> future = new PrioritizedTask<T>(stage, priority, task);
+        try {
+            stage.executor.execute(future);
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } finally {
+            stage.completed.incrementAndGet();
+            acquired.release();
+        }
+    }
+
+    /**
+     * Returns the number of tasks being currently executed in the specified stage.
+     *
+     * @param stageName
+     *            the name of the conversion stage
+     * @return the number of tasks being currently executed in the specified stage
+     */
+    public int getActiveCount(String stageName) {
+        return getStage(stageName).executor.getActiveCount();
+    }
+
+    /**
+     * Returns the average time in milliseconds the tasks of the specified stage were waiting in the queue.
+     *
+     * @param stageName
+     *            the name of the conversion stage
+     * @return the average time in milliseconds the tasks of the specified stage were waiting in the queue
+     */
+    public long getAverageWaitTime(String stageName) {
+        Stage stage = getStage(stageName);
+        long count = stage.started.get();
+        return count > 0 ? stage.totalWaitTime.get() / count : 0;
+    }
+
+    public long getCompletedCount(String stageName) {
+        return getStage(stageName).completed.get();
+    }
+
+    public long getMaxWaitTime(String stageName) {
+        return getStage(stageName).maxWaitTime.get();
+    }
+
+    /**
+     * Returns the number of tasks, waiting in the queue of the specified stage.
+     *
+     * @param stageName
+     *            the name of the conversion stage
+     * @return the number of tasks, waiting in the queue of the specified stage
+     */
+    public int getQueueDepth(String stageName) {
+        return getStage(stageName).executor.getQueue().size();
+    }
+
+    public long getRejectedCount(String stageName) {
+        return getStage(stageName).rejected.get();
+    }
+
+    private Stage getStage(String name) {
+        synchronized (stages) {
+            Stage stage = stages.get(name);
+            if (stage == null) {
+                stage = createStage(name);
+                stages.put(name, stage);
+            }
+            return stage;
+        }
+    }
+
+    /**
+     * Returns the names of the conversion stages.
+     *
+     * @return the names of the conversion stages
+     */
+    public Set<String> getStageNames() {
+        synchronized (stages) {
+            return Collections.unmodifiableSet(new LinkedHashSet<String>(stages.keySet()));
+        }
+    }
+
+    /**
+     * Sets the default number of concurrent workers for stages, which have no explicit configuration.
+     *
+     * @param defaultWorkers
+     *            the default number of concurrent workers per stage
+     */
+    public void setDefaultWorkers(int defaultWorkers) {
+        this.defaultWorkers = defaultWorkers;
+    }
+
+    /**
+     * Sets the number of interactive requests per stage, which can be scheduled in addition to the queue capacity, when the queue is full
+     * of background tasks.
+     *
+     * @param interactiveCapacity
+     *            the number of additional slots per stage for interactive requests
+     */
+    public void setInteractiveCapacity(int interactiveCapacity) {
+        this.interactiveCapacity = interactiveCapacity;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds an interactive request waits for a free slot of the interactive reserve before it is rejected.
+     *
+     * @param interactiveTimeout
+     *            the maximum time in milliseconds to wait for a free interactive slot
+     */
+    public void setInteractiveTimeout(long interactiveTimeout) {
+        this.interactiveTimeout = interactiveTimeout;
+    }
+
+    /**
+     * Sets the registry to publish the queue wait times and the queue gauges of the stages to.
+     *
+     * @param metricsRegistry
+     *            the metrics registry
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NONE;
+    }
+
+    /**
+     * Sets the number of tasks per stage, which can wait in the queue before the submitting threads are blocked.
+     *
+     * @param queueCapacity
+     *            the number of tasks per stage, which can wait in the queue
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a submitting thread waits for a free queue slot before the task is rejected.
+     *
+     * @param submitTimeout
+     *            the maximum time in milliseconds to wait for a free queue slot
+     */
+    public void setSubmitTimeout(long submitTimeout) {
+        this.submitTimeout = submitTimeout;
+    }
+
+    /**
+     * Sets the number of concurrent workers per conversion stage name.
+     *
+     * @param workers
+     *            the number of concurrent workers per conversion stage name
+     */
+    public void setWorkers(Map<String, Integer> workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(128);
+        for (String name : getStageNames()) {
+            out.append(out.length() > 0 ? ", " : "").append(name).append(": {queued: ")
+                    .append(getQueueDepth(name)).append(", active: ")
+                    .append(getActiveCount(name)).append(", avgWait: ")
+                    .append(getAverageWaitTime(name)).append(" ms, maxWait: ")
+                    .append(getMaxWaitTime(name)).append(" ms}");
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.File;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the local file, the binary content of a file node is stored in, if the repository uses a Jackrabbit <code>FileDataStore</code>.
+ * The content of such a file can be read in place, without copying the binary into a temporary file. The data store files are named by the
+ * SHA-1 hash of their content and are placed in the folder structure like <code>ab/cd/ef/abcdef...</code>.
+ */
+public class DataStoreFileResolver {
+
+    private static Logger logger = LoggerFactory.getLogger(DataStoreFileResolver.class);
+
+    private File dataStoreDir;
+
+    private String dataStorePath;
+
+    /**
+     * Returns the content identity (SHA-1 hash) of the binary data of the specified file node if it is stored in the data store;
+     * <code>null</code> otherwise.
+     *
+     * @param fileNode
+     *            the file node to get the content identity for
+     * @return the content identity of the binary data of the specified file node or <code>null</code> if it is not available
+     */
+    public static String getContentIdentity(JCRNodeWrapper fileNode) {
+        try {
+            Property data = fileNode.getNode(Constants.JCR_CONTENT).getRealNode()
+                    .getProperty(Constants.JCR_DATA);
+            Value value = data.getValue();
+            if (value instanceof JackrabbitValue) {
+                return ((JackrabbitValue) value).getContentIdentity();
+            }
+        } catch (RepositoryException e) {
+            logger.debug("Unable to get content identity of the node " + fileNode.getPath(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the local data store file with the binary content of the specified file node or <code>null</code> if the content is not
+     * available as a local file.
+     *
+     * @param fileNode
+     *            the file node to resolve the binary content file for
+     * @return the local data store file with the binary content of the specified file node or <code>null</code> if the content is not
+     *         available as a local file
+     */
+    public File getFile(JCRNodeWrapper fileNode) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String identity = getContentIdentity(fileNode);
+        if (identity == null || identity.length() < 6) {
+            return null;
+        }
+
+        File file = new File(new File(new File(new File(dataStoreDir, identity.substring(0, 2)),
+                identity.substring(2, 4)), identity.substring(4, 6)), identity);
+        if (!file.isFile() || !file.canRead()) {
+            logger.debug("No data store file found for node {} at {}", fileNode.getPath(), file);
+            return null;
+        }
+
+        return file;
+    }
+
+    /**
+     * Returns <code>true</code> if the data store path is configured.
+     *
+     * @return <code>true</code> if the data store path is configured
+     */
+    public boolean isEnabled() {
+        return dataStoreDir != null;
+    }
+
+    /**
+     * Checks if the provided file is located in the data store.
+     *
+     * @param file
+     *            the file to check
+     * @return <code>true</code> if the provided file is located in the data store
+     */
+    public boolean isDataStoreFile(File file) {
+        return isEnabled() && file != null
+                && file.getPath().startsWith(dataStoreDir.getPath() + File.separator);
+    }
+
+    /**
+     * Sets the file system path of the Jackrabbit <code>FileDataStore</code>. If empty, the binary content is never read in place.
+     *
+     * @param dataStorePath
+     *            the file system path of the Jackrabbit <code>FileDataStore</code>
+     */
+    public void setDataStorePath(String dataStorePath) {
+        this.dataStorePath = dataStorePath;
+        this.dataStoreDir = StringUtils.isNotBlank(dataStorePath) ? new File(dataStorePath)
+                .getAbsoluteFile() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "DataStoreFileResolver [" + dataStorePath + "]";
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Default {@link MetricsRegistry}, which keeps the counters, gauges and timers in memory and publishes them as attributes of a dynamic
+ * MBean. Timers are histograms with exponential buckets; each timer is exposed with the <code>.count</code>, <code>.mean</code>,
+ * <code>.max</code>, <code>.p50</code>, <code>.p95</code> and <code>.p99</code> attributes, the percentiles being the upper bounds of
+ * the corresponding buckets.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry, DynamicMBean, InitializingBean,
+        DisposableBean {
+
+    static final class Histogram {
+
+        private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000,
+                5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000, Long.MAX_VALUE };
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        long getMean() {
+            long c = count.get();
+            return c > 0 ? sum.get() / c : 0;
+        }
+
+        long getPercentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void update(long value) {
+            int i = 0;
+            while (value > BOUNDS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+    }
+
+    private static final String[] TIMER_ATTRIBUTES = { "count", "mean", "max", "p50", "p95",
+            "p99" };
+
+    private static Logger logger = LoggerFactory.getLogger(DefaultMetricsRegistry.class);
+
+    private ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private boolean jmxEnabled = true;
+
+    private String name = "default";
+
+    private ObjectName objectName;
+
+    private ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+
+    public void afterPropertiesSet() throws Exception {
+        if (!jmxEnabled) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName("org.jahia.modules.docviewer:type=ConversionMetrics,name="
+                    + ObjectName.quote(name));
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+            objectName = on;
+            logger.info("Registered conversion metrics MBean {}", on);
+        } catch (Exception e) {
+            logger.warn("Unable to register conversion metrics MBean", e);
+        }
+    }
+
+    public void destroy() throws Exception {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.debug("Unable to unregister MBean " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        Gauge gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return gauge.getValue();
+        }
+        Histogram timer = timers.get(StringUtils.substringBeforeLast(attribute, "."));
+        if (timer != null) {
+            String stat = StringUtils.substringAfterLast(attribute, ".");
+            if ("count".equals(stat)) {
+                return timer.getCount();
+            } else if ("mean".equals(stat)) {
+                return timer.getMean();
+            } else if ("max".equals(stat)) {
+                return timer.getMax();
+            } else if ("p50".equals(stat)) {
+                return timer.getPercentile(0.5);
+            } else if ("p95".equals(stat)) {
+                return timer.getPercentile(0.95);
+            } else if ("p99".equals(stat)) {
+                return timer.getPercentile(0.99);
+            }
+        }
+
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // skip unknown attributes
+            }
+        }
+        return list;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> values = getValues();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String attribute : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(attribute, Long.class.getName(), attribute,
+                    true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Document viewer conversion metrics",
+                attributes, null, new MBeanOperationInfo[] { new MBeanOperationInfo("reset",
+                        "Resets all counters and timers", new MBeanParameterInfo[0], "void",
+                        MBeanOperationInfo.ACTION) }, null);
+    }
+
+    /**
+     * Returns a snapshot of all metric values, sorted by name.
+     *
+     * @return a snapshot of all metric values, sorted by name
+     */
+    public Map<String, Object> getValues() {
+        Map<String, Object> values = new TreeMap<String, Object>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getValue());
+        }
+        for (String timer : timers.keySet()) {
+            for (String stat : TIMER_ATTRIBUTES) {
+                String attribute = timer + "." + stat;
+                try {
+                    values.put(attribute, getAttribute(attribute));
+                } catch (AttributeNotFoundException e) {
+                    // cannot happen
+                }
+            }
+        }
+        return values;
+    }
+
+    public void increment(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = counters.putIfAbsent(counter, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public void recordTime(String timer, long duration) {
+        Histogram histogram = timers.get(timer);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = timers.putIfAbsent(timer, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.update(Math.max(duration, 0));
+    }
+
+    public void registerGauge(String gaugeName, Gauge gauge) {
+        gauges.put(gaugeName, gauge);
+    }
+
+    /**
+     * Resets all counters and timers. Gauges are not affected.
+     */
+    public void reset() {
+        counters.clear();
+        timers.clear();
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute " + attribute.getName()
+                + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    /**
+     * Set this to <code>false</code> to keep the metrics in memory only, without publishing them via JMX.
+     *
+     * @param jmxEnabled
+     *            <code>true</code> to register the registry as an MBean
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * Sets the name of the registry, used as the <code>name</code> key of the MBean object name.
+     *
+     * @param name
+     *            the name of the registry
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return getValues().toString();
+    }
+}
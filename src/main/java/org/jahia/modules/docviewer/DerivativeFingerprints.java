@@ -0,0 +1,245 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+
+/**
+ * Utility methods for the fingerprints of the document derivatives (SWF views, thumbnails). Each derivative records the fingerprint of
+ * the source binary and of the converter configuration, it was generated with, in the properties of the
+ * <code>jmix:documentDerivative</code> mixin. Derivatives with the same fingerprints are interchangeable.
+ */
+public final class DerivativeFingerprints {
+
+    public static final String CONVERTER_FINGERPRINT = "j:converterFingerprint";
+
+    public static final String MIXIN = "jmix:documentDerivative";
+
+    public static final String SOURCE_FINGERPRINT = "j:sourceFingerprint";
+
+    // SHA-1 hashes of the content outside of a data store by content node identifier, date and length
+    private static final Map<String, String> CONTENT_HASHES = new LinkedHashMap<String, String>(64,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    private static final String QUERY = "select * from [" + MIXIN + "] as d where d.["
+            + SOURCE_FINGERPRINT + "] = $source and d.[" + CONVERTER_FINGERPRINT
+            + "] = $converter";
+
+    /**
+     * Looks up an existing derivative with the specified fingerprints, which has binary data.
+     * 
+     * @param session
+     *            the JCR session to perform the query in
+     * @param sourceFingerprint
+     *            the fingerprint of the source binary
+     * @param converterFingerprint
+     *            the fingerprint of the converter configuration
+     * @param excludePath
+     *            the path of the derivative node to be ignored, e.g. the one being regenerated; can be <code>null</code>
+     * @return an existing derivative with the specified fingerprints or <code>null</code> if there is none
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static JCRNodeWrapper findDerivative(JCRSessionWrapper session,
+            String sourceFingerprint, String converterFingerprint, String excludePath)
+            throws RepositoryException {
+        if (sourceFingerprint == null || converterFingerprint == null) {
+            return null;
+        }
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+        Query query = queryManager.createQuery(QUERY, Query.JCR_SQL2);
+        query.bindValue("source", session.getValueFactory().createValue(sourceFingerprint));
+        query.bindValue("converter", session.getValueFactory().createValue(converterFingerprint));
+        query.setLimit(5);
+        for (NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+            JCRNodeWrapper node = (JCRNodeWrapper) nodes.nextNode();
+            if (!node.getPath().equals(excludePath) && node.hasProperty(Constants.JCR_DATA)) {
+                return node;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the fingerprint of the binary content of the specified file node. The data store content identity is used if available;
+     * otherwise the SHA-1 hash of the content is computed once per content node version (modification date and length).
+     * 
+     * @param fileNode
+     *            the file node to get the fingerprint for
+     * @return the fingerprint of the binary content of the specified file node
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws IOException
+     *             in case of an error reading the content
+     */
+    public static String getSourceFingerprint(JCRNodeWrapper fileNode) throws RepositoryException,
+            IOException {
+        String identity = DataStoreFileResolver.getContentIdentity(fileNode);
+        if (identity != null) {
+            return identity;
+        }
+        JCRNodeWrapper content = fileNode.getNode(Constants.JCR_CONTENT);
+        if (!content.hasProperty(Constants.JCR_DATA)) {
+            return null;
+        }
+        long lastModified = content.hasProperty(Constants.JCR_LASTMODIFIED) ? content
+                .getProperty(Constants.JCR_LASTMODIFIED).getDate().getTimeInMillis() : 0;
+        String key = content.getIdentifier() + "|" + lastModified + "|"
+                + content.getProperty(Constants.JCR_DATA).getLength();
+        synchronized (CONTENT_HASHES) {
+            String hash = CONTENT_HASHES.get(key);
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        String hash = null;
+        InputStream is = fileNode.getFileContent().downloadFile();
+        try {
+            hash = is != null ? DigestUtils.shaHex(is) : null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        if (hash != null) {
+            synchronized (CONTENT_HASHES) {
+                CONTENT_HASHES.put(key, hash);
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Returns the version of the derivative content, which is used in the derivative URLs and as its entity tag. The version is computed
+     * from the recorded fingerprints, so it only changes when the derivative is regenerated from a different source binary or with a
+     * different converter configuration. For derivatives without fingerprints, the identifier and the last modification date of the node
+     * are used.
+     * 
+     * @param derivative
+     *            the derivative node
+     * @return the version of the derivative content
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static String getVersion(JCRNodeWrapper derivative) throws RepositoryException {
+        if (derivative.isNodeType(MIXIN) && derivative.hasProperty(SOURCE_FINGERPRINT)
+                && derivative.hasProperty(CONVERTER_FINGERPRINT)) {
+            return DigestUtils.shaHex(derivative.getPropertyAsString(SOURCE_FINGERPRINT) + "|"
+                    + derivative.getPropertyAsString(CONVERTER_FINGERPRINT));
+        }
+        long lastModified = derivative.hasProperty(Constants.JCR_LASTMODIFIED) ? derivative
+                .getProperty(Constants.JCR_LASTMODIFIED).getDate().getTimeInMillis() : 0;
+        return DigestUtils.shaHex(derivative.getIdentifier() + "|" + lastModified);
+    }
+
+    /**
+     * Checks if the specified derivative node was generated from the source binary and with the converter configuration, matching the
+     * provided fingerprints.
+     * 
+     * @param derivative
+     *            the derivative node
+     * @param sourceFingerprint
+     *            the fingerprint of the current source binary
+     * @param converterFingerprint
+     *            the fingerprint of the current converter configuration
+     * @return <code>true</code> if the derivative is up to date and does not need to be regenerated
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static boolean isUpToDate(JCRNodeWrapper derivative, String sourceFingerprint,
+            String converterFingerprint) throws RepositoryException {
+        return derivative != null && sourceFingerprint != null && converterFingerprint != null
+                && derivative.isNodeType(MIXIN)
+                && sourceFingerprint.equals(derivative.getPropertyAsString(SOURCE_FINGERPRINT))
+                && converterFingerprint.equals(derivative
+                        .getPropertyAsString(CONVERTER_FINGERPRINT));
+    }
+
+    /**
+     * Records the fingerprints on the derivative node.
+     * 
+     * @param derivative
+     *            the derivative node
+     * @param sourceFingerprint
+     *            the fingerprint of the source binary
+     * @param converterFingerprint
+     *            the fingerprint of the converter configuration
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void record(JCRNodeWrapper derivative, String sourceFingerprint,
+            String converterFingerprint) throws RepositoryException {
+        if (sourceFingerprint == null || converterFingerprint == null) {
+            return;
+        }
+        if (!derivative.isNodeType(MIXIN)) {
+            derivative.addMixin(MIXIN);
+        }
+        derivative.setProperty(SOURCE_FINGERPRINT, sourceFingerprint);
+        derivative.setProperty(CONVERTER_FINGERPRINT, converterFingerprint);
+    }
+
+    private DerivativeFingerprints() {
+        super();
+    }
+}
@@ -0,0 +1,653 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+
+import javax.jcr.Binary;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+
+import net.coobird.thumbnailator.Thumbnails;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jahia.api.Constants;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.modules.docviewer.DocumentViewService.DerivativeStatus;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and stores the derivatives of the documents for the {@link DocumentViewService}: the SWF view (monolithic or paged, with the
+ * pages converted on demand), the text index, the page count and the thumbnails. The document is converted to PDF once for all of its
+ * derivatives; derivatives, which are up to date or can be reused from an identical document, are not converted again.
+ */
+class DerivativePipeline {
+
+    private static Logger logger = LoggerFactory.getLogger(DerivativePipeline.class);
+
+    private ConcurrentMap<String, FutureTask<String>> pendingPages = new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private final DocumentViewService service;
+
+    private final TextIndexStore textIndexes;
+
+    DerivativePipeline(DocumentViewService service, TextIndexStore textIndexes) {
+        super();
+        this.service = service;
+        this.textIndexes = textIndexes;
+    }
+
+    private String convertViewPage(final JCRNodeWrapper fileNode, final int pageNumber,
+            final Priority priority) throws RepositoryException {
+        if (!fileNode.hasNode(DocumentViewService.SWF_PAGES_NODE)) {
+            return null;
+        }
+        final JCRNodeWrapper pagesNode = fileNode.getNode(DocumentViewService.SWF_PAGES_NODE);
+        String pageName = DocumentViewService.PAGE_NODE_PREFIX + pageNumber;
+        if (!pagesNode.hasNode(pageName)) {
+            try {
+                Boolean converted = service.executeWithPdfFile(fileNode, priority,
+                        new PdfFileRegistry.Callback<Boolean>() {
+                            public Boolean doWithPdfFile(File pdfFile) throws Exception {
+                                fileNode.getSession().checkout(fileNode);
+                                storeViewPage(pagesNode, pdfFile, pageNumber, priority);
+                                fileNode.getSession().save();
+                                return Boolean.TRUE;
+                            }
+                        });
+                if (converted == null) {
+                    return null;
+                }
+            } catch (RepositoryException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RepositoryException("Unable to convert page " + pageNumber
+                        + " of the document " + fileNode.getPath(), e);
+            }
+        }
+
+        return pagesNode.hasNode(pageName) ? pagesNode.getNode(pageName).getIdentifier() : null;
+    }
+
+    /**
+     * @see DocumentViewService#createDerivatives(JCRNodeWrapper, boolean, Map, Priority, boolean)
+     */
+    DerivativeStatus createDerivatives(JCRNodeWrapper fileNode, boolean view, boolean paged,
+            Map<String, Integer> thumbnails, Priority priority, boolean save)
+            throws RepositoryException {
+        String[] supportedDocumentFormats = service.getSupportedDocumentFormats();
+        if (!service.isEnabled() || supportedDocumentFormats == null) {
+            logger.info("Conversion service is not enabled." + " Skip converting node {}",
+                    fileNode.getPath());
+            return DerivativeStatus.UNCHANGED;
+        }
+
+        MetricsRegistry metricsRegistry = service.getMetricsRegistry();
+        boolean deduplicate = service.isDeduplicateDerivatives();
+        boolean changed = false;
+        int failures = 0;
+
+        long timer = System.currentTimeMillis();
+
+        if (fileNode.isNodeType("nt:file")
+                && DocumentViewService.isMimeTypeGroup(fileNode.getFileContent().getContentType(),
+                        supportedDocumentFormats)) {
+            File inFile = null;
+            File pdfFile = null;
+            BufferedImage image = null;
+            boolean needView = false;
+            boolean needTextIndex = false;
+            Map<String, Integer> toRender = new LinkedHashMap<String, Integer>();
+            try {
+                String sourceFingerprint = DerivativeFingerprints.getSourceFingerprint(fileNode);
+
+                needView = view
+                        && !(paged ? isUpToDate(fileNode, DocumentViewService.SWF_PAGES_NODE,
+                                sourceFingerprint, getPagedViewConverterFingerprint())
+                                : isUpToDate(fileNode, DocumentViewService.SWF_VIEW_NODE,
+                                        sourceFingerprint, getViewConverterFingerprint()));
+                if (needView && !paged && deduplicate && reuseView(fileNode, sourceFingerprint)) {
+                    needView = false;
+                    changed = true;
+                    metricsRegistry.increment("derivatives.reused", 1);
+                }
+
+                // the text index serves the search in both, the SWF and the image-based views; without
+                // a view request it is left to the first search instead of converting the document
+                needTextIndex = view && service.isTextIndex()
+                        && !isUpToDate(fileNode, DocumentViewService.TEXT_INDEX_NODE,
+                                sourceFingerprint, textIndexes.getConverterFingerprint());
+
+                if (thumbnails != null) {
+                    for (Map.Entry<String, Integer> thumb : thumbnails.entrySet()) {
+                        if (isUpToDate(fileNode, thumb.getKey(), sourceFingerprint,
+                                getThumbnailConverterFingerprint(thumb.getValue()))) {
+                            continue;
+                        }
+                        if (deduplicate
+                                && reuseThumbnail(fileNode, thumb.getKey(), thumb.getValue(),
+                                        sourceFingerprint)) {
+                            changed = true;
+                            metricsRegistry.increment("derivatives.reused", 1);
+                        } else {
+                            toRender.put(thumb.getKey(), thumb.getValue());
+                        }
+                    }
+                }
+
+                if (needView || needTextIndex || !toRender.isEmpty()) {
+                    inFile = service.getSourceFile(fileNode);
+                    pdfFile = service.convertToPDF(inFile, fileNode.getFileContent()
+                            .getContentType(), priority);
+                    if (pdfFile != null) {
+                        // a failed derivative does not discard the other ones
+                        fileNode.getSession().checkout(fileNode);
+                        int pageCount = -1;
+                        try {
+                            pageCount = service.getPdf2imageConverterService().getNumberOfPages(
+                                    pdfFile);
+                            storePageCount(fileNode, pageCount);
+                            changed = true;
+                        } catch (Exception e) {
+                            failures++;
+                            onDerivativeFailure("page count", fileNode, e);
+                        }
+                        if (needView && paged && pageCount < 0) {
+                            // the paged view cannot be prepared without the number of pages
+                            failures++;
+                        } else if (needView) {
+                            try {
+                                if (paged) {
+                                    storePagedView(fileNode, pdfFile, pageCount,
+                                            sourceFingerprint, priority);
+                                } else {
+                                    storeView(fileNode, pdfFile, sourceFingerprint, priority);
+                                }
+                                changed = true;
+                            } catch (Exception e) {
+                                failures++;
+                                onDerivativeFailure("view", fileNode, e);
+                            }
+                        }
+                        if (needTextIndex) {
+                            try {
+                                textIndexes.store(fileNode, pdfFile, sourceFingerprint, priority);
+                                changed = true;
+                            } catch (Exception e) {
+                                failures++;
+                                onDerivativeFailure("text index", fileNode, e);
+                            }
+                        }
+                        if (!toRender.isEmpty()) {
+                            try {
+                                image = service.getImageOfFirstPage(pdfFile,
+                                        Collections.max(toRender.values()).intValue(), priority);
+                                if (image != null) {
+                                    storeThumbnails(fileNode, image, toRender, sourceFingerprint);
+                                    changed = true;
+                                }
+                            } catch (Exception e) {
+                                failures++;
+                                onDerivativeFailure("thumbnails", fileNode, e);
+                            }
+                        }
+                    }
+                } else if (!changed) {
+                    metricsRegistry.increment("derivatives.upToDate", 1);
+                    logger.debug("Derivatives of node {} are up to date", fileNode.getPath());
+                }
+            } catch (Exception e) {
+                failures++;
+                logger.error(e.getMessage(), e);
+            } finally {
+                if (image != null) {
+                    image.flush();
+                }
+                if (pdfFile != inFile) {
+                    FileUtils.deleteQuietly(pdfFile);
+                }
+                service.releaseSourceFile(inFile);
+            }
+
+            if (changed) {
+                // store what was created, even if some of the derivatives failed
+                try {
+                    if (save) {
+                        long saveTimer = System.currentTimeMillis();
+                        fileNode.getSession().save();
+                        metricsRegistry.recordTime(MetricsRegistry.STORE,
+                                System.currentTimeMillis() - saveTimer);
+                    }
+                    metricsRegistry.increment("derivatives.created", 1);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Created derivatives (view: {}, text index: {},"
+                                + " thumbnails: {}) for node {} in {} ms", new Object[] {
+                                needView, needTextIndex, toRender.keySet(), fileNode.getPath(),
+                                System.currentTimeMillis() - timer });
+                    }
+                } catch (RepositoryException e) {
+                    changed = false;
+                    failures++;
+                    logger.error(e.getMessage(), e);
+                }
+            }
+            if (failures > 0) {
+                metricsRegistry.increment("derivatives.failed", 1);
+            }
+        } else {
+            logger.warn("Path should correspond to a file node with one"
+                    + " of the supported formats {}. Skipping node {}", supportedDocumentFormats,
+                    fileNode.getPath());
+        }
+
+        return failures > 0 ? DerivativeStatus.FAILED : (changed ? DerivativeStatus.CREATED
+                : DerivativeStatus.UNCHANGED);
+    }
+
+    /**
+     * Returns the fingerprint of the paged SWF view conversion configuration.
+     *
+     * @return the fingerprint of the paged SWF view conversion configuration
+     */
+    String getPagedViewConverterFingerprint() {
+        return DigestUtils.shaHex("swfPages|"
+                + service.getPdf2swfConverterService().getParameters() + "|"
+                + service.getPdf2imageConverterService().getClass().getName());
+    }
+
+    /**
+     * Returns the fingerprint of the thumbnail generation configuration for the specified thumbnail size.
+     *
+     * @param size
+     *            the thumbnail size
+     * @return the fingerprint of the thumbnail generation configuration for the specified thumbnail size
+     */
+    String getThumbnailConverterFingerprint(int size) {
+        return DigestUtils.shaHex("thumbnail|" + size + "|"
+                + service.getPdf2imageConverterService().getClass().getName() + "|"
+                + service.getThumbnailEncoder());
+    }
+
+    /**
+     * Returns the fingerprint of the SWF view conversion configuration.
+     *
+     * @return the fingerprint of the SWF view conversion configuration
+     */
+    String getViewConverterFingerprint() {
+        return DigestUtils.shaHex("swfView|"
+                + service.getPdf2swfConverterService().getParameters());
+    }
+
+    /**
+     * @see DocumentViewService#getViewPage(JCRNodeWrapper, int, Priority)
+     */
+    JCRNodeWrapper getViewPage(JCRNodeWrapper fileNode, final int pageNumber,
+            final Priority priority) throws RepositoryException {
+        if (!fileNode.hasNode(DocumentViewService.SWF_PAGES_NODE)) {
+            return null;
+        }
+        JCRNodeWrapper pagesNode = fileNode.getNode(DocumentViewService.SWF_PAGES_NODE);
+        long pageCount = pagesNode.hasProperty("j:pageCount") ? pagesNode.getProperty(
+                "j:pageCount").getLong() : 0;
+        String pageName = DocumentViewService.PAGE_NODE_PREFIX + pageNumber;
+        if (pageNumber < 1 || pageNumber > pageCount) {
+            return null;
+        } else if (pagesNode.hasNode(pageName)) {
+            return pagesNode.getNode(pageName);
+        }
+
+        String key = service.getPendingViewKey(fileNode) + "/" + pageNumber;
+        final String identifier = fileNode.getIdentifier();
+        final String workspace = fileNode.getSession().getWorkspace().getName();
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                        new JCRCallback<String>() {
+                            public String doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                return convertViewPage(session.getNodeByIdentifier(identifier),
+                                        pageNumber, priority);
+                            }
+                        });
+            }
+        });
+        FutureTask<String> pending = pendingPages.putIfAbsent(key, task);
+        String pageIdentifier = null;
+        try {
+            if (pending == null) {
+                task.run();
+                pending = task;
+            }
+            pageIdentifier = pending.get();
+        } catch (Exception e) {
+            logger.error("Unable to convert page " + pageNumber + " of the document "
+                    + fileNode.getPath(), e);
+        } finally {
+            if (pending == task) {
+                pendingPages.remove(key, task);
+            }
+        }
+
+        return pageIdentifier != null ? fileNode.getSession().getNodeByIdentifier(pageIdentifier)
+                : null;
+    }
+
+    private boolean isUpToDate(JCRNodeWrapper fileNode, String derivativeName,
+            String sourceFingerprint, String converterFingerprint) throws RepositoryException {
+        return fileNode.hasNode(derivativeName)
+                && DerivativeFingerprints.isUpToDate(fileNode.getNode(derivativeName),
+                        sourceFingerprint, converterFingerprint);
+    }
+
+    private void onDerivativeFailure(String derivative, JCRNodeWrapper fileNode, Exception e) {
+        logger.error("Unable to create the " + derivative + " for node " + fileNode.getPath()
+                + ": " + e.getMessage(), e);
+    }
+
+    void registerGauges(MetricsRegistry metricsRegistry) {
+        metricsRegistry.registerGauge("pages.pending", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return pendingPages.size();
+            }
+        });
+    }
+
+    /**
+     * Looks up a thumbnail of the same size, generated for an identical document binary, and copies it into the thumbnail node of the
+     * specified document node.
+     *
+     * @return <code>true</code> if an existing thumbnail was reused
+     */
+    private boolean reuseThumbnail(JCRNodeWrapper fileNode, String thumbnailName, int size,
+            String sourceFingerprint) throws RepositoryException {
+        String converterFingerprint = getThumbnailConverterFingerprint(size);
+        JCRNodeWrapper existing = DerivativeFingerprints.findDerivative(fileNode.getSession(),
+                sourceFingerprint, converterFingerprint, fileNode.getPath() + "/" + thumbnailName);
+        if (existing == null) {
+            return false;
+        }
+
+        fileNode.getSession().checkout(fileNode);
+        JCRNodeWrapper node = null;
+        try {
+            node = fileNode.getNode(thumbnailName);
+        } catch (PathNotFoundException e) {
+            node = fileNode.addNode(thumbnailName, Constants.JAHIANT_RESOURCE);
+            node.addMixin(Constants.JAHIAMIX_IMAGE);
+        }
+        Binary b = existing.getProperty(Constants.JCR_DATA).getBinary();
+        try {
+            // the binary references the same data store record; no content is copied
+            node.setProperty(Constants.JCR_DATA, b);
+        } finally {
+            b.dispose();
+        }
+        node.setProperty("j:width", existing.getProperty("j:width").getLong());
+        node.setProperty("j:height", existing.getProperty("j:height").getLong());
+        node.setProperty(Constants.JCR_MIMETYPE, existing.getProperty(Constants.JCR_MIMETYPE)
+                .getString());
+        node.setProperty(Constants.JCR_LASTMODIFIED, Calendar.getInstance());
+        DerivativeFingerprints.record(node, sourceFingerprint, converterFingerprint);
+        logger.debug("Reused thumbnail {} for node {}", existing.getPath(), fileNode.getPath());
+
+        return true;
+    }
+
+    /**
+     * Looks up an SWF view, generated for an identical document binary, and stores its binary as the view of the specified document
+     * node.
+     *
+     * @return <code>true</code> if an existing view was reused
+     */
+    private boolean reuseView(JCRNodeWrapper fileNode, String sourceFingerprint)
+            throws RepositoryException {
+        String converterFingerprint = getViewConverterFingerprint();
+        JCRNodeWrapper existing = DerivativeFingerprints.findDerivative(fileNode.getSession(),
+                sourceFingerprint, converterFingerprint, fileNode.getPath() + "/"
+                        + DocumentViewService.SWF_VIEW_NODE);
+        if (existing == null) {
+            return false;
+        }
+
+        // the binary references the same data store record; no conversion is needed
+        Binary swfBinary = existing.getProperty(Constants.JCR_DATA).getBinary();
+        try {
+            storeViewNode(fileNode, swfBinary, sourceFingerprint, converterFingerprint);
+        } finally {
+            swfBinary.dispose();
+        }
+        logger.debug("Reusing SWF view {} for node {}", existing.getPath(), fileNode.getPath());
+
+        return true;
+    }
+
+    private void storePageCount(JCRNodeWrapper fileNode, int pageCount)
+            throws RepositoryException {
+        if (!fileNode.isNodeType("jmix:documentPageCount")) {
+            fileNode.addMixin("jmix:documentPageCount");
+        } else if (fileNode.hasProperty("j:pageCount")
+                && fileNode.getProperty("j:pageCount").getLong() == pageCount) {
+            return;
+        }
+        fileNode.setProperty("j:pageCount", pageCount);
+    }
+
+    private void storePagedView(JCRNodeWrapper fileNode, File pdfFile, int pageCount,
+            String sourceFingerprint, Priority priority) throws Exception {
+        fileNode.getSession().checkout(fileNode);
+        if (!fileNode.isNodeType("jmix:swfDocumentView")) {
+            fileNode.addMixin("jmix:swfDocumentView");
+        }
+        if (fileNode.hasNode(DocumentViewService.SWF_PAGES_NODE)) {
+            // drop pages of the previous document version
+            fileNode.getNode(DocumentViewService.SWF_PAGES_NODE).remove();
+        }
+        JCRNodeWrapper pagesNode = fileNode.addNode(DocumentViewService.SWF_PAGES_NODE,
+                "jnt:swfDocumentPages");
+        pagesNode.setProperty("j:pageCount", pageCount);
+        DerivativeFingerprints.record(pagesNode, sourceFingerprint,
+                getPagedViewConverterFingerprint());
+        if (pageCount > 0) {
+            storeViewPage(pagesNode, pdfFile, 1, priority);
+        }
+    }
+
+    /**
+     * Scales the provided page image into thumbnails of the requested sizes, starting with the largest one and using each thumbnail as a
+     * source for the next smaller size, and stores them as child nodes of the document node.
+     *
+     * @param fileNode
+     *            the document node
+     * @param image
+     *            the image of the document page
+     * @param thumbnails
+     *            the mapping of the thumbnail node names to their sizes
+     * @param sourceFingerprint
+     *            the fingerprint of the document binary to be recorded on the thumbnail nodes
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws IOException
+     *             in case of an image processing error
+     */
+    private void storeThumbnails(JCRNodeWrapper fileNode, BufferedImage image,
+            Map<String, Integer> thumbnails, String sourceFingerprint) throws RepositoryException,
+            IOException {
+        List<Map.Entry<String, Integer>> bySize = new LinkedList<Map.Entry<String, Integer>>(
+                thumbnails.entrySet());
+        Collections.sort(bySize, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+
+        BufferedImage source = image;
+        try {
+            for (Map.Entry<String, Integer> thumb : bySize) {
+                int size = thumb.getValue().intValue();
+                long timer = System.currentTimeMillis();
+                BufferedImage thumbnail = Thumbnails.of(source).size(size, size)
+                        .asBufferedImage();
+                service.getMetricsRegistry().recordTime(MetricsRegistry.SCALE,
+                        System.currentTimeMillis() - timer);
+                JCRNodeWrapper thumbNode = service.storeThumbnailNode(fileNode, thumbnail,
+                        thumb.getKey());
+                DerivativeFingerprints.record(thumbNode, sourceFingerprint,
+                        getThumbnailConverterFingerprint(size));
+                if (source != image) {
+                    source.flush();
+                }
+                source = thumbnail;
+            }
+        } finally {
+            if (source != image) {
+                source.flush();
+            }
+        }
+    }
+
+    private void storeView(JCRNodeWrapper fileNode, final File pdfFile, String sourceFingerprint,
+            Priority priority) throws Exception {
+        File swfFile = service.executeStage(ConversionScheduler.STAGE_SWF, priority,
+                new Callable<File>() {
+                    public File call() throws Exception {
+                        return service.getPdf2swfConverterService().convert(pdfFile);
+                    }
+                });
+        if (swfFile == null) {
+            return;
+        }
+        InputStream convertedStream = null;
+        Binary swfBinary = null;
+        try {
+            convertedStream = new BufferedInputStream(new FileInputStream(swfFile));
+            long timer = System.currentTimeMillis();
+            // stream the SWF directly into the repository binary (data store)
+            swfBinary = fileNode.getSession().getValueFactory().createBinary(convertedStream);
+            service.getMetricsRegistry().recordTime(MetricsRegistry.STORE,
+                    System.currentTimeMillis() - timer);
+            storeViewNode(fileNode, swfBinary, sourceFingerprint, getViewConverterFingerprint());
+        } finally {
+            IOUtils.closeQuietly(convertedStream);
+            if (swfBinary != null) {
+                swfBinary.dispose();
+            }
+            FileUtils.deleteQuietly(swfFile);
+        }
+    }
+
+    private void storeViewNode(JCRNodeWrapper fileNode, Binary swfBinary,
+            String sourceFingerprint, String converterFingerprint) throws RepositoryException {
+        fileNode.getSession().checkout(fileNode);
+        JCRNodeWrapper swfNode = null;
+        try {
+            swfNode = fileNode.getNode(DocumentViewService.SWF_VIEW_NODE);
+        } catch (PathNotFoundException e) {
+            if (!fileNode.isNodeType("jmix:swfDocumentView")) {
+                fileNode.addMixin("jmix:swfDocumentView");
+            }
+            swfNode = fileNode.addNode(DocumentViewService.SWF_VIEW_NODE, "nt:resource");
+        }
+        if (swfNode.hasProperty(Constants.JCR_DATA)) {
+            swfNode.getProperty(Constants.JCR_DATA).remove();
+        }
+        swfNode.setProperty(Constants.JCR_DATA, swfBinary);
+        swfNode.setProperty(Constants.JCR_MIMETYPE, "application/x-shockwave-flash");
+        swfNode.setProperty(Constants.JCR_LASTMODIFIED, Calendar.getInstance());
+        DerivativeFingerprints.record(swfNode, sourceFingerprint, converterFingerprint);
+    }
+
+    private void storeViewPage(JCRNodeWrapper pagesNode, final File pdfFile,
+            final int pageNumber, Priority priority) throws Exception {
+        File pageFile = service.executeStage(ConversionScheduler.STAGE_SWF, priority,
+                new Callable<File>() {
+                    public File call() throws Exception {
+                        return service.getPdf2swfConverterService().convertPage(pdfFile,
+                                pageNumber);
+                    }
+                });
+        if (pageFile == null) {
+            return;
+        }
+        InputStream pageStream = new BufferedInputStream(new FileInputStream(pageFile));
+        Binary pageBinary = null;
+        try {
+            String pageName = DocumentViewService.PAGE_NODE_PREFIX + pageNumber;
+            JCRNodeWrapper pageNode = pagesNode.hasNode(pageName) ? pagesNode.getNode(pageName)
+                    : pagesNode.addNode(pageName, "nt:resource");
+            long timer = System.currentTimeMillis();
+            pageBinary = pagesNode.getSession().getValueFactory().createBinary(pageStream);
+            service.getMetricsRegistry().recordTime(MetricsRegistry.STORE,
+                    System.currentTimeMillis() - timer);
+            pageNode.setProperty(Constants.JCR_DATA, pageBinary);
+            pageNode.setProperty(Constants.JCR_MIMETYPE, "application/x-shockwave-flash");
+            pageNode.setProperty(Constants.JCR_LASTMODIFIED, Calendar.getInstance());
+        } finally {
+            IOUtils.closeQuietly(pageStream);
+            if (pageBinary != null) {
+                pageBinary.dispose();
+            }
+            FileUtils.deleteQuietly(pageFile);
+        }
+    }
+}
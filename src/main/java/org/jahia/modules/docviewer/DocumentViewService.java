@@ -47,38 +47,93 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
 import javax.jcr.Binary;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 
-import net.coobird.thumbnailator.Thumbnails;
-
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang.StringUtils;
-import org.apache.jackrabbit.value.BinaryImpl;
 import org.jahia.api.Constants;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.services.content.JCRCallback;
 import org.jahia.services.content.JCRContentUtils;
 import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
 import org.jahia.services.transform.DocumentConverterService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
 /**
  * Document to SWF converter service that uses pdf2swf from SWFTools for file conversion. Additionally a thumbnails can be generated for a
- * document.
+ * document. The page images, the text index and the creation of the stored derivatives are handled by the {@link PageImageRenderer},
+ * the {@link TextIndexStore} and the {@link DerivativePipeline}.
  * 
  * @author Sergiy Shyrkov
  */
-public class DocumentViewService {
+public class DocumentViewService implements InitializingBean, DisposableBean {
+
+    /**
+     * The outcome of the derivative creation for a document.
+     */
+    public enum DerivativeStatus {
+        /**
+         * At least one derivative was created or updated and none failed.
+         */
+        CREATED,
+        /**
+         * At least one derivative could not be created; the other ones are stored nevertheless.
+         */
+        FAILED,
+        /**
+         * Nothing was created: the derivatives are up to date or the document is not supported.
+         */
+        UNCHANGED
+    }
 
     private static Logger logger = LoggerFactory.getLogger(DocumentViewService.class);
 
+    /**
+     * Name prefix of the per-page SWF resource nodes.
+     */
+    public static final String PAGE_NODE_PREFIX = "page-";
+
+    /**
+     * Name of the node, which holds per-page SWF resources of a document.
+     */
+    public static final String SWF_PAGES_NODE = "swfPages";
+
+    /**
+     * Name of the node with the monolithic SWF view of a document.
+     */
+    public static final String SWF_VIEW_NODE = "swfView";
+
+    /**
+     * Name of the node with the per-page text index of a document, used for the server-side search in the document views.
+     */
+    public static final String TEXT_INDEX_NODE = "textIndex";
+
     /**
      * Checks if the specified mime type belongs to one of the specified groups (like pdf,word,openoffice, etc.).
      * 
@@ -89,7 +144,7 @@ public class DocumentViewService {
      * @return if the specified mime type belongs to one of the specified groups (like pdf,word,openoffice, etc.)
      */
     public static boolean isMimeTypeGroup(String mimeType, String mimeTypeGroup) {
-        return isMimeTypeGroup(mimeType, StringUtils.split(mimeTypeGroup, ", "));
+        return MimeTypeGroupIndex.getInstance().matches(mimeType, mimeTypeGroup);
     }
 
     /**
@@ -102,48 +157,107 @@ public class DocumentViewService {
      * @return if the specified mime type belongs to one of the specified groups (like pdf,word,openoffice, etc.)
      */
     public static boolean isMimeTypeGroup(String mimeType, String... mimeTypeGroups) {
-        if (mimeType == null) {
-            return false;
-        }
+        return MimeTypeGroupIndex.getInstance().matches(mimeType, mimeTypeGroups);
+    }
 
-        boolean found = false;
-        for (String grp : mimeTypeGroups) {
-            List<String> mimeTypes = JCRContentUtils.getInstance().getMimeTypes().get(grp);
-            if (mimeTypes == null) {
-                continue;
-            }
-            for (String mime : mimeTypes) {
-                if (mime.contains("*")) {
-                    found = Pattern.matches(
-                            StringUtils.replace(StringUtils.replace(mime, ".", "\\."), "*", ".*"),
-                            mimeType);
-                } else {
-                    found = mime.equals(mimeType);
-                }
-                if (found) {
-                    break;
-                }
-            }
-            if (found) {
-                break;
-            }
-        }
+    private ConversionScheduler conversionScheduler;
 
-        return found;
-    }
+    private boolean createViewAsynchronously;
+
+    private DataStoreFileResolver dataStoreFileResolver;
 
     private DocumentConverterService documentConverterService;
 
     private boolean enabled;
 
+    private Map<String, Long> failedViews = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    private long failedViewRetryInterval = 60 * 60 * 1000L;
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NONE;
+
+    private String pageImageFormat = "jpeg";
+
+    private final PageImageRenderer pageImages = new PageImageRenderer(this);
+
     private PDF2ImageConverter pdf2imageConverterService;
 
     private PDF2SWFConverterService pdf2swfConverterService;
 
+    private FileCache pdfCache;
+
+    // the PDF files of the recently viewed document versions, shared by their page requests
+    private PdfFileRegistry pdfFiles = new PdfFileRegistry() {
+        @Override
+        protected void dispose(File pdfFile) {
+            // the PDF file of a PDF document can be its data store file
+            releaseSourceFile(pdfFile);
+        }
+    };
+
     private String[] supportedDocumentFormats;
 
+    private boolean textIndex = true;
+
+    private final TextIndexStore textIndexes = new TextIndexStore(this);
+
+    private ThumbnailEncoder thumbnailEncoder;
+
+    private Map<String, ThumbnailEncoder> thumbnailEncoders;
+
     private String thumbnailImageFormat = "png";
 
+    private ConcurrentMap<String, Future<Boolean>> pendingViews = new ConcurrentHashMap<String, Future<Boolean>>();
+
+    private boolean deduplicateDerivatives = true;
+
+    private final DerivativePipeline derivatives = new DerivativePipeline(this, textIndexes);
+
+    private ExecutorService viewCreationExecutor;
+
+    private int viewCreationQueueCapacity = 100;
+
+    private int viewCreationThreads = 2;
+
+    private boolean pagedView;
+
+    public void afterPropertiesSet() throws Exception {
+        thumbnailEncoder = getEncoder(thumbnailImageFormat);
+        pageImages.setPageImageEncoder(getEncoder(pageImageFormat));
+        if (!textIndex && !pdf2swfConverterService.isStoreAllCharacters()) {
+            // without the server-side search the viewer searches the text, stored in the SWF views
+            pdf2swfConverterService.setStoreAllCharacters(true);
+        }
+        // a bounded queue: when it is full, the view is reported as not ready yet and queued again
+        // on a later request
+        viewCreationExecutor = new ThreadPoolExecutor(viewCreationThreads, viewCreationThreads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(
+                        viewCreationQueueCapacity, 1)), new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-viewer-view-creation-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        metricsRegistry.registerGauge("views.pending", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return pendingViews.size();
+            }
+        });
+        derivatives.registerGauges(metricsRegistry);
+        pageImages.registerGauges(metricsRegistry);
+    }
+
     /**
      * Performs the conversion of the specified file into the SWF, possible using an intermediate conversion to PDF if needed and it is it
      * supported.
@@ -157,12 +271,37 @@ public class DocumentViewService {
      *             in case of a conversion error
      */
     public File convert(File sourceFile, String sourceContentType) throws Exception {
-        File pdfFile = convertToPDF(sourceFile, sourceContentType);
+        return convert(sourceFile, sourceContentType, Priority.BACKGROUND);
+    }
+
+    /**
+     * Performs the conversion of the specified file into the SWF, possible using an intermediate conversion to PDF if needed and it is it
+     * supported.
+     * 
+     * @param sourceFile
+     *            the original file to be converted
+     * @param sourceContentType
+     *            the mime type of the original file
+     * @param priority
+     *            the priority of the conversion request
+     * @return the file with the result of the conversion
+     * @throws Exception
+     *             in case of a conversion error
+     */
+    public File convert(File sourceFile, String sourceContentType, Priority priority)
+            throws Exception {
+        final File pdfFile = convertToPDF(sourceFile, sourceContentType, priority);
         if (pdfFile != null) {
             try {
-                return pdf2swfConverterService.convert(pdfFile);
+                return executeStage(ConversionScheduler.STAGE_SWF, priority, new Callable<File>() {
+                    public File call() throws Exception {
+                        return pdf2swfConverterService.convert(pdfFile);
+                    }
+                });
             } finally {
-                FileUtils.deleteQuietly(pdfFile);
+                if (pdfFile != sourceFile) {
+                    FileUtils.deleteQuietly(pdfFile);
+                }
             }
         }
         
@@ -196,9 +335,8 @@ public class DocumentViewService {
             File inFile = null;
             File outFile = null;
             try {
-                inFile = createTempFile();
-                outFile = convert(JCRContentUtils.downloadFileContent(fileNode, inFile), fileNode
-                        .getFileContent().getContentType());
+                inFile = getSourceFile(fileNode);
+                outFile = convert(inFile, fileNode.getFileContent().getContentType());
                 if (outFile != null) {
                     JCRNodeWrapper folder = fileNode.getParent();
                     String newName = StringUtils.substringBeforeLast(fileNode.getName(), ".")
@@ -230,7 +368,7 @@ public class DocumentViewService {
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
             } finally {
-                FileUtils.deleteQuietly(inFile);
+                releaseSourceFile(inFile);
                 FileUtils.deleteQuietly(outFile);
             }
         } else {
@@ -241,7 +379,8 @@ public class DocumentViewService {
     }
 
     /**
-     * Performs the conversion of the specified file into the PDF document.
+     * Performs the conversion of the specified file into the PDF document. Results of the office document conversion are cached by the
+     * hash of the source file content, if the PDF cache is configured. The returned file is owned by the caller.
      * 
      * @param sourceFile
      *            the original file to be converted
@@ -252,6 +391,25 @@ public class DocumentViewService {
      *             in case of a conversion error
      */
     public File convertToPDF(File sourceFile, String sourceContentType) throws Exception {
+        return convertToPDF(sourceFile, sourceContentType, Priority.BACKGROUND);
+    }
+
+    /**
+     * Performs the conversion of the specified file into the PDF document. Results of the office document conversion are cached by the
+     * hash of the source file content, if the PDF cache is configured. The returned file is owned by the caller.
+     * 
+     * @param sourceFile
+     *            the original file to be converted
+     * @param sourceContentType
+     *            the mime type of the original file
+     * @param priority
+     *            the priority of the conversion request
+     * @return the file with the result of the conversion
+     * @throws Exception
+     *             in case of a conversion error
+     */
+    public File convertToPDF(final File sourceFile, final String sourceContentType,
+            Priority priority) throws Exception {
         if (isMimeTypeGroup(sourceContentType, "pdf")) {
             return sourceFile;
         } else if (!documentConverterService.isEnabled()) {
@@ -259,16 +417,65 @@ public class DocumentViewService {
                     "Document converter service is not enabled. Cannot convert file {} into a PDF.",
                     sourceFile);
             return null;
-        } else {
-            return documentConverterService.convert(sourceFile, sourceContentType,
-                    "application/pdf");
         }
+
+        String cacheKey = null;
+        if (pdfCache != null && pdfCache.isEnabled()) {
+            cacheKey = getPDFCacheKey(sourceFile);
+            File pdfFile = createTempFile();
+            if (pdfCache.copyTo(cacheKey, pdfFile)) {
+                metricsRegistry.increment(MetricsRegistry.PDF + ".cacheHits", 1);
+                logger.debug("Using cached PDF for file {} with key {}", sourceFile, cacheKey);
+                return pdfFile;
+            }
+            FileUtils.deleteQuietly(pdfFile);
+        }
+
+        File pdfFile = executeStage(ConversionScheduler.STAGE_PDF, priority, new Callable<File>() {
+            public File call() throws Exception {
+                long timer = System.currentTimeMillis();
+                File result = null;
+                try {
+                    result = documentConverterService.convert(sourceFile, sourceContentType,
+                            "application/pdf");
+                } finally {
+                    metricsRegistry.recordTime(MetricsRegistry.PDF, System.currentTimeMillis()
+                            - timer);
+                    metricsRegistry.increment(MetricsRegistry.PDF
+                            + (result != null ? ".success" : ".failure"), 1);
+                }
+                if (result != null) {
+                    metricsRegistry.increment(MetricsRegistry.PDF + ".bytesIn",
+                            sourceFile.length());
+                    metricsRegistry.increment(MetricsRegistry.PDF + ".bytesOut", result.length());
+                }
+                return result;
+            }
+        });
+        if (pdfFile != null && cacheKey != null) {
+            pdfCache.put(cacheKey, pdfFile);
+        }
+
+        return pdfFile;
     }
 
     protected File createTempFile() throws IOException {
         return File.createTempFile("doc-viewer", null);
     }
 
+    private String getPDFCacheKey(File sourceFile) throws IOException {
+        if (dataStoreFileResolver != null && dataStoreFileResolver.isDataStoreFile(sourceFile)) {
+            // data store files are named by the SHA-1 of their content
+            return sourceFile.getName() + ".pdf";
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(sourceFile));
+        try {
+            return DigestUtils.shaHex(is) + ".pdf";
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
     /**
      * Generates thumbnails for the specified document node.
      * 
@@ -283,53 +490,142 @@ public class DocumentViewService {
      */
     public void createThumbnail(JCRNodeWrapper fileNode, String thumbnailName, int thumbnailSize)
             throws RepositoryException {
-        if (!isEnabled() || supportedDocumentFormats == null) {
-            logger.info("Conversion service is not enabled." + " Skip converting node {}",
-                    fileNode.getPath());
+        createThumbnail(fileNode, thumbnailName, thumbnailSize, Priority.BACKGROUND);
+    }
+
+    /**
+     * Generates thumbnails for the specified document node.
+     * 
+     * @param fileNode
+     *            the node to generate thumbnails for
+     * @param thumbnailName
+     *            the name of the thumbnail node
+     * @param thumbnailSize
+     *            the size of the generated thumbnail
+     * @param priority
+     *            the priority of the conversion request
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createThumbnail(JCRNodeWrapper fileNode, String thumbnailName, int thumbnailSize,
+            Priority priority) throws RepositoryException {
+        createThumbnails(fileNode, Collections.singletonMap(thumbnailName, thumbnailSize),
+                priority, false);
+    }
+
+    /**
+     * Generates a set of thumbnails of different sizes for the specified document node. The first page is rendered only once and the
+     * thumbnails are produced from it by successive downscaling, starting with the largest size. All thumbnails are stored with a single
+     * session save.
+     * 
+     * @param fileNode
+     *            the node to generate thumbnails for
+     * @param thumbnails
+     *            the mapping of the thumbnail node names to their sizes
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createThumbnails(JCRNodeWrapper fileNode, Map<String, Integer> thumbnails)
+            throws RepositoryException {
+        createThumbnails(fileNode, thumbnails, Priority.BACKGROUND);
+    }
+
+    /**
+     * Generates a set of thumbnails of different sizes for the specified document node. The first page is rendered only once and the
+     * thumbnails are produced from it by successive downscaling, starting with the largest size. All thumbnails are stored with a single
+     * session save.
+     * 
+     * @param fileNode
+     *            the node to generate thumbnails for
+     * @param thumbnails
+     *            the mapping of the thumbnail node names to their sizes
+     * @param priority
+     *            the priority of the conversion request
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createThumbnails(JCRNodeWrapper fileNode, Map<String, Integer> thumbnails,
+            Priority priority) throws RepositoryException {
+        createThumbnails(fileNode, thumbnails, priority, true);
+    }
+
+    private void createThumbnails(JCRNodeWrapper fileNode, Map<String, Integer> thumbnails,
+            Priority priority, boolean save) throws RepositoryException {
+        if (thumbnails == null || thumbnails.isEmpty()) {
             return;
         }
+        derivatives.createDerivatives(fileNode, false, false, thumbnails, priority, save);
+    }
 
-        long timer = System.currentTimeMillis();
+    /**
+     * Creates the SWF view and the thumbnails for the specified document node in a single pass: the binary is read once, converted to
+     * PDF once and the SWF view, the thumbnails and the page count are produced from that PDF. All changes are stored with a single
+     * session save. Derivatives, which are up to date, are skipped.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param view
+     *            set to <code>true</code> to create the SWF view (paged or not, according to the configuration)
+     * @param thumbnails
+     *            the mapping of the thumbnail node names to their sizes; can be <code>null</code>
+     * @param priority
+     *            the priority of the conversion request
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createDerivatives(JCRNodeWrapper fileNode, boolean view,
+            Map<String, Integer> thumbnails, Priority priority) throws RepositoryException {
+        derivatives.createDerivatives(fileNode, view, pagedView, thumbnails, priority, true);
+    }
 
-        if (fileNode.isNodeType("nt:file")
-                && isMimeTypeGroup(fileNode.getFileContent().getContentType(),
-                        supportedDocumentFormats)) {
-            BufferedImage image = null;
-            BufferedImage thumbnail = null;
-            try {
-                image = getImageOfFirstPage(fileNode);
+    /**
+     * Creates the SWF view and the thumbnails for the specified document node in a single pass (see
+     * {@link #createDerivatives(JCRNodeWrapper, boolean, Map, Priority)}), optionally leaving the session save to the caller, e.g. a batch
+     * job, which saves the changes of multiple documents at once.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param view
+     *            set to <code>true</code> to create the SWF view (paged or not, according to the configuration)
+     * @param thumbnails
+     *            the mapping of the thumbnail node names to their sizes; can be <code>null</code>
+     * @param priority
+     *            the priority of the conversion request
+     * @param save
+     *            set to <code>false</code> to skip the session save
+     * @return {@link DerivativeStatus#FAILED} if any of the derivatives could not be created (the other ones are still stored),
+     *         {@link DerivativeStatus#CREATED} if any of them was created or updated and {@link DerivativeStatus#UNCHANGED} if they are all
+     *         up to date
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public DerivativeStatus createDerivatives(JCRNodeWrapper fileNode, boolean view,
+            Map<String, Integer> thumbnails, Priority priority, boolean save)
+            throws RepositoryException {
+        return derivatives.createDerivatives(fileNode, view, pagedView, thumbnails, priority,
+                save);
+    }
 
-                if (image != null) {
-                    thumbnail = Thumbnails.of(image).size(thumbnailSize, thumbnailSize)
-                            .asBufferedImage();
-                    JCRNodeWrapper thumbNode = storeThumbnailNode(fileNode, thumbnail,
-                            thumbnailName);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug(
-                                "Generated thumbnail {} for node {} in {} ms",
-                                new Object[] { thumbNode.getPath(), fileNode.getPath(),
-                                        (System.currentTimeMillis() - timer) });
-                    }
-                }
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-            } finally {
-                if (image != null) {
-                    image.flush();
-                }
-                if (thumbnail != null) {
-                    thumbnail.flush();
-                }
-            }
-        } else {
-            logger.warn("Path should correspond to a file node with one"
-                    + " of the supported formats {}. Skipping node {}", supportedDocumentFormats,
-                    fileNode.getPath());
-        }
+    /**
+     * Prepares the paged SWF view for the specified file node: detects the number of pages of the document and converts its first page.
+     * The remaining pages are converted on demand, when they are requested for the first time (see
+     * {@link #getViewPage(JCRNodeWrapper, int, Priority)}).
+     * 
+     * @param fileNode
+     *            the node to create a view for
+     * @param priority
+     *            the priority of the conversion request
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createPagedView(JCRNodeWrapper fileNode, Priority priority)
+            throws RepositoryException {
+        derivatives.createDerivatives(fileNode, true, true, null, priority, true);
     }
 
     /**
-     * Creates the SWF view for the specified PDF file node.
+     * Creates the SWF view for the specified PDF file node. If the paged view mode is enabled, the view is created using
+     * {@link #createPagedView(JCRNodeWrapper, Priority)}.
      * 
      * @param fileNode
      *            the node to create a view for
@@ -337,111 +633,405 @@ public class DocumentViewService {
      *             in case of an error
      */
     public void createView(JCRNodeWrapper fileNode) throws RepositoryException {
-        if (!isEnabled() || supportedDocumentFormats == null) {
-            logger.info("Conversion service is not enabled." + " Skip converting node {}",
+        createView(fileNode, Priority.BACKGROUND);
+    }
+
+    /**
+     * Creates the SWF view for the specified PDF file node. If the paged view mode is enabled, the view is created using
+     * {@link #createPagedView(JCRNodeWrapper, Priority)}.
+     * 
+     * @param fileNode
+     *            the node to create a view for
+     * @param priority
+     *            the priority of the conversion request
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createView(JCRNodeWrapper fileNode, Priority priority) throws RepositoryException {
+        derivatives.createDerivatives(fileNode, true, pagedView, null, priority, true);
+    }
+
+    /**
+     * Queues the creation of the SWF view for the specified file node and returns immediately. Concurrent requests for the same node and
+     * binary version share the same in-flight conversion. The conversion is done in a system session in the workspace of the provided
+     * node. If the view creation for the same binary version failed recently, it is not queued again until the retry interval elapses.
+     * If the queue of the view creation is full, the request is not queued and the view is not ready yet.
+     * 
+     * @param fileNode
+     *            the node to create a view for
+     * @return the future for the view creation, which results in <code>true</code> if the view was created, or <code>null</code> if the
+     *         view creation failed recently or the queue is full and it is not queued
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public Future<Boolean> createViewAsync(JCRNodeWrapper fileNode) throws RepositoryException {
+        final String key = getPendingViewKey(fileNode);
+        Future<Boolean> pending = pendingViews.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        if (isViewCreationFailed(key)) {
+            logger.debug("SWF view creation for node {} failed recently. Skip queueing it.",
                     fileNode.getPath());
-            return;
+            return null;
+        }
+
+        final String identifier = fileNode.getIdentifier();
+        final String workspace = fileNode.getSession().getWorkspace().getName();
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                boolean created = false;
+                try {
+                    created = JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                            workspace, new JCRCallback<Boolean>() {
+                                public Boolean doInJCR(JCRSessionWrapper session)
+                                        throws RepositoryException {
+                                    JCRNodeWrapper node = session.getNodeByIdentifier(identifier);
+                                    createView(node, Priority.INTERACTIVE);
+                                    return node.hasNode(SWF_VIEW_NODE)
+                                            || node.hasNode(SWF_PAGES_NODE);
+                                }
+                            });
+                } finally {
+                    setViewCreationFailed(key, !created);
+                }
+                return created;
+            }
+        }) {
+            @Override
+            protected void done() {
+                pendingViews.remove(key, this);
+            }
+        };
+
+        pending = pendingViews.putIfAbsent(key, task);
+        if (pending != null) {
+            return pending;
+        }
+        logger.debug("Queueing SWF view creation for node {}", fileNode.getPath());
+        try {
+            viewCreationExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            pendingViews.remove(key, task);
+            logger.debug("SWF view creation queue is full. Skip queueing node {}",
+                    fileNode.getPath());
+            return null;
+        }
+
+        return task;
+    }
+
+    public void destroy() throws Exception {
+        if (viewCreationExecutor != null) {
+            viewCreationExecutor.shutdownNow();
+        }
+        pdfFiles.clear();
+    }
+
+    /**
+     * Returns the file with the binary content of the specified node. If the content is stored in a local data store file, it is
+     * returned to be read in place; otherwise the content is downloaded into a temporary file. The returned file should be released via
+     * {@link #releaseSourceFile(File)}.
+     * 
+     * @param fileNode
+     *            the file node to get the content for
+     * @return the file with the binary content of the specified node
+     * @throws IOException
+     *             in case of an I/O error
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    protected File getSourceFile(JCRNodeWrapper fileNode) throws IOException,
+            RepositoryException {
+        File file = dataStoreFileResolver != null ? dataStoreFileResolver.getFile(fileNode) : null;
+        if (file != null) {
+            logger.debug("Reading content of node {} in place from data store file {}",
+                    fileNode.getPath(), file);
+            metricsRegistry.increment(MetricsRegistry.DOWNLOAD + ".inPlace", 1);
+            return file;
         }
 
         long timer = System.currentTimeMillis();
+        file = JCRContentUtils.downloadFileContent(fileNode, createTempFile());
+        metricsRegistry.recordTime(MetricsRegistry.DOWNLOAD, System.currentTimeMillis() - timer);
+        metricsRegistry.increment(MetricsRegistry.DOWNLOAD + ".bytes", file.length());
 
-        if (fileNode.isNodeType("nt:file")
-                && isMimeTypeGroup(fileNode.getFileContent().getContentType(),
-                        supportedDocumentFormats)) {
-            File inFile = null;
-            File outFile = null;
-            try {
-                inFile = createTempFile();
-                outFile = convert(JCRContentUtils.downloadFileContent(fileNode, inFile), fileNode
-                        .getFileContent().getContentType());
-                if (outFile != null) {
-                    fileNode.getSession().checkout(fileNode);
-                    JCRNodeWrapper swfNode = null;
-                    try {
-                        swfNode = fileNode.getNode("swfView");
-                    } catch (PathNotFoundException e) {
-                        if (!fileNode.isNodeType("jmix:swfDocumentView")) {
-                            fileNode.addMixin("jmix:swfDocumentView");
-                        }
-                        swfNode = fileNode.addNode("swfView", "nt:resource");
-                    }
+        return file;
+    }
 
-                    BufferedInputStream convertedStream = new BufferedInputStream(
-                            new FileInputStream(outFile));
-                    try {
-                        if (swfNode.hasProperty(Constants.JCR_DATA)) {
-                            swfNode.getProperty(Constants.JCR_DATA).remove();
-                        }
-                        swfNode.setProperty(Constants.JCR_DATA, new BinaryImpl(convertedStream));
-                        swfNode.setProperty(Constants.JCR_MIMETYPE, "application/x-shockwave-flash");
-                        Calendar lastModified = Calendar.getInstance();
-                        swfNode.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
-                        fileNode.getSession().save();
-                    } finally {
-                        IOUtils.closeQuietly(convertedStream);
-                    }
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Created SWF view for node {} in {} ms", fileNode.getPath(),
-                                System.currentTimeMillis() - timer);
+    /**
+     * Passes the PDF file of the current version of the document to the callback. The PDF file is shared by the concurrent and the
+     * subsequent requests for the same document version, so that the document is fetched and converted only once while its pages are
+     * viewed.
+     */
+    <T> T executeWithPdfFile(final JCRNodeWrapper fileNode, final Priority priority,
+            PdfFileRegistry.Callback<T> callback) throws Exception {
+        return pdfFiles.execute(getPendingViewKey(fileNode), new Callable<File>() {
+            public File call() throws Exception {
+                File inFile = getSourceFile(fileNode);
+                File pdfFile = null;
+                try {
+                    pdfFile = convertToPDF(inFile, fileNode.getFileContent().getContentType(),
+                            priority);
+                } finally {
+                    if (pdfFile != inFile) {
+                        releaseSourceFile(inFile);
                     }
                 }
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-            } finally {
-                FileUtils.deleteQuietly(inFile);
-                FileUtils.deleteQuietly(outFile);
+                return pdfFile;
             }
-        } else {
-            logger.warn("Path should correspond to a file node with one"
-                    + " of the supported formats {}. Skipping node {}", supportedDocumentFormats,
-                    fileNode.getPath());
+        }, callback);
+    }
+
+    <T> T executeStage(String stage, Priority priority, Callable<T> task) throws Exception {
+        return conversionScheduler != null ? conversionScheduler.execute(stage, priority, task)
+                : task.call();
+    }
+
+    private ThumbnailEncoder getEncoder(String format) {
+        ThumbnailEncoder encoder = thumbnailEncoders != null ? thumbnailEncoders.get(format)
+                : null;
+        if (encoder == null) {
+            encoder = "png".equals(format) ? new PNGThumbnailEncoder()
+                    : new JPEGThumbnailEncoder();
         }
+        return encoder;
     }
 
+    /**
+     * Renders the first page of the specified document node at its natural size as a background request.
+     * 
+     * @param fileNode
+     *            the document node
+     * @return the image of the first page or <code>null</code> if the document cannot be rendered
+     * @throws Exception
+     *             in case of a conversion error
+     * @deprecated use {@link #getImageOfFirstPage(JCRNodeWrapper, Priority)} instead
+     */
+    @Deprecated
     protected BufferedImage getImageOfFirstPage(JCRNodeWrapper fileNode) throws Exception {
+        return getImageOfFirstPage(fileNode, Priority.BACKGROUND);
+    }
+
+    /**
+     * Renders the first page of the specified document node at its natural size.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param priority
+     *            the priority of the conversion request
+     * @return the image of the first page or <code>null</code> if the document cannot be rendered
+     * @throws Exception
+     *             in case of a conversion error
+     */
+    protected BufferedImage getImageOfFirstPage(JCRNodeWrapper fileNode, Priority priority)
+            throws Exception {
+        return getImageOfFirstPage(fileNode, priority, 0);
+    }
+
+    /**
+     * Renders the first page of the specified document node, so that it fits into a square of the specified size. The PDF is passed to
+     * the renderer as a file: either the data store file, read in place, or a temporary file the content is spooled into, so that the
+     * document is not buffered in memory.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param priority
+     *            the priority of the conversion request
+     * @param targetSize
+     *            the size of the square the page should fit into; if zero or less, the page is rendered at its natural size
+     * @return the image of the first page or <code>null</code> if the document cannot be rendered
+     * @throws Exception
+     *             in case of a conversion error
+     */
+    protected BufferedImage getImageOfFirstPage(JCRNodeWrapper fileNode, Priority priority,
+            int targetSize) throws Exception {
         BufferedImage image = null;
 
         String sourceContentType = fileNode.getFileContent().getContentType();
-        InputStream pdfInputStream = null;
+        boolean isPdf = isMimeTypeGroup(sourceContentType, "pdf");
+        if (!isPdf && !documentConverterService.isEnabled()) {
+            logger.warn(
+                    "Document converter service is not enabled. Cannot convert node {} into a PDF.",
+                    fileNode.getPath());
+            return null;
+        }
+
+        File inFile = null;
         File pdfFile = null;
         try {
-            if (isMimeTypeGroup(sourceContentType, "pdf")) {
-                pdfInputStream = fileNode.getFileContent().downloadFile();
-            } else {
-                if (!documentConverterService.isEnabled()) {
-                    logger.warn(
-                            "Document converter service is not enabled. Cannot convert node {} into a PDF.",
-                            fileNode.getPath());
-                    return null;
-                } else {
-                    File inFile = null;
-                    try {
-                        inFile = createTempFile();
-                        JCRContentUtils.downloadFileContent(fileNode, inFile);
-                        pdfFile = documentConverterService.convert(inFile, sourceContentType,
-                                "application/pdf");
-                        pdfInputStream = new FileInputStream(pdfFile);
-                    } finally {
-                        FileUtils.deleteQuietly(inFile);
-                    }
-                }
-            }
-
-            if (pdfInputStream != null) {
-                image = pdf2imageConverterService.getImageOfPage(pdfInputStream, 0);
+            inFile = getSourceFile(fileNode);
+            pdfFile = isPdf ? inFile : convertToPDF(inFile, sourceContentType, priority);
+            if (pdfFile != null) {
+                image = getImageOfFirstPage(pdfFile, targetSize, priority);
             }
         } finally {
-            IOUtils.closeQuietly(pdfInputStream);
-            FileUtils.deleteQuietly(pdfFile);
+            if (pdfFile != inFile) {
+                FileUtils.deleteQuietly(pdfFile);
+            }
+            releaseSourceFile(inFile);
         }
 
         return image;
     }
 
+    BufferedImage getImageOfFirstPage(final File pdfFile, final int targetSize, Priority priority)
+            throws Exception {
+        return executeStage(ConversionScheduler.STAGE_IMAGE, priority,
+                new Callable<BufferedImage>() {
+                    public BufferedImage call() throws Exception {
+                        return pdf2imageConverterService.getImageOfPage(pdfFile, 0, targetSize,
+                                targetSize);
+                    }
+                });
+    }
+
+    /**
+     * Returns the number of pages of the specified document. The page count, stored on the document node during the derivative creation,
+     * is used if available; otherwise the pages of the (converted) PDF document are counted and the result is kept in memory.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param priority
+     *            the priority of the conversion request
+     * @return the number of pages of the specified document or <code>0</code> if the document cannot be read
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public int getPageCount(JCRNodeWrapper fileNode, Priority priority)
+            throws RepositoryException {
+        return pageImages.getPageCount(fileNode, priority);
+    }
+
+    /**
+     * Returns the image of the specified document page, rendered to the specified width. The width is rounded up to the configured step
+     * and limited by the maximum page image width to keep the number of distinct renditions low. Rendered images are kept in the page
+     * image cache; concurrent requests for the same image share a single rendering.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param pageNumber
+     *            the number of the page (starting from 1)
+     * @param width
+     *            the requested image width in pixels; if zero or less, the half of the maximum page image width is used
+     * @param priority
+     *            the priority of the conversion request
+     * @return the file with the encoded page image or <code>null</code> if there is no such page or it cannot be rendered; the file
+     *         should be only read and then passed to {@link #releasePageImage(File)}
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public File getPageImage(JCRNodeWrapper fileNode, int pageNumber, int width,
+            Priority priority) throws RepositoryException {
+        return pageImages.getPageImage(fileNode, pageNumber, width, priority);
+    }
+
+    /**
+     * Returns the version of the page images of the specified document, which changes with the document content and the page image
+     * rendering configuration.
+     * 
+     * @param fileNode
+     *            the document node
+     * @return the version of the page images of the specified document
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public String getPageImageVersion(JCRNodeWrapper fileNode) throws RepositoryException {
+        return pageImages.getPageImageVersion(fileNode);
+    }
+
+    /**
+     * Returns the MIME type of the page images.
+     * 
+     * @return the MIME type of the page images
+     */
+    public String getPageImageMimeType() {
+        return pageImages.getPageImageMimeType();
+    }
+
+    /**
+     * Returns the width the page image is effectively rendered with for the requested width.
+     * 
+     * @param width
+     *            the requested width in pixels
+     * @return the width the page image is effectively rendered with
+     */
+    public int getPageImageWidth(int width) {
+        return pageImages.getPageImageWidth(width);
+    }
+
+    /**
+     * Searches the per-page text index of the specified document for the provided text. Recently used indexes are kept in memory. If the
+     * document has no text index yet, it is created on the first search.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param query
+     *            the text to search for
+     * @param maxHits
+     *            the maximum number of returned hits; zero or less means no limit
+     * @return the list of the matches or <code>null</code> if the document has no text index and it cannot be created
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public List<PageTextIndex.Hit> searchText(JCRNodeWrapper fileNode, String query, int maxHits)
+            throws RepositoryException {
+        return textIndexes.search(fileNode, query, maxHits);
+    }
+
+    /**
+     * Returns the SWF resource node for the specified page of the paged document view, converting the page if it is requested for the
+     * first time. Concurrent requests for the same page share a single conversion. The converted page is stored in a system session, as
+     * the session of the visitor could be not allowed to write (e.g. guests in the live workspace); the returned node is read in the
+     * session of the provided document node.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param pageNumber
+     *            the number of the page (starting from 1)
+     * @param priority
+     *            the priority of the conversion request
+     * @return the SWF resource node for the specified page or <code>null</code> if the document has no paged view or there is no such
+     *         page
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public JCRNodeWrapper getViewPage(JCRNodeWrapper fileNode, int pageNumber,
+            Priority priority) throws RepositoryException {
+        return derivatives.getViewPage(fileNode, pageNumber, priority);
+    }
+
+    String getPendingViewKey(JCRNodeWrapper fileNode) throws RepositoryException {
+        long version = 0;
+        JCRNodeWrapper content = fileNode.getNode(Constants.JCR_CONTENT);
+        if (content.hasProperty(Constants.JCR_LASTMODIFIED)) {
+            version = content.getProperty(Constants.JCR_LASTMODIFIED).getDate().getTimeInMillis();
+        }
+
+        return fileNode.getSession().getWorkspace().getName() + "/" + fileNode.getIdentifier()
+                + "/" + version;
+    }
+
+    MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    PDF2ImageConverter getPdf2imageConverterService() {
+        return pdf2imageConverterService;
+    }
+
+    PDF2SWFConverterService getPdf2swfConverterService() {
+        return pdf2swfConverterService;
+    }
+
     public String[] getSupportedDocumentFormats() {
         return supportedDocumentFormats;
     }
 
+    ThumbnailEncoder getThumbnailEncoder() {
+        return thumbnailEncoder;
+    }
+
     /**
      * Returns <code>true</code> if the conversion service is enabled; <code>false</code> otherwise.
      * 
@@ -451,6 +1041,142 @@ public class DocumentViewService {
         return enabled;
     }
 
+    boolean isDeduplicateDerivatives() {
+        return deduplicateDerivatives;
+    }
+
+    boolean isViewCreationFailed(String key) {
+        synchronized (failedViews) {
+            Long failed = failedViews.get(key);
+            if (failed == null) {
+                return false;
+            }
+            if (System.currentTimeMillis() - failed < failedViewRetryInterval) {
+                return true;
+            }
+            failedViews.remove(key);
+        }
+        return false;
+    }
+
+    /**
+     * Records the outcome of a background conversion for the specified key, so that a failed one is not retried until the retry interval
+     * elapses (see {@link #isViewCreationFailed(String)}).
+     */
+    void setViewCreationFailed(String key, boolean failed) {
+        synchronized (failedViews) {
+            if (failed) {
+                failedViews.put(key, System.currentTimeMillis());
+            } else {
+                failedViews.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the per-page text index of the documents is created for the server-side search.
+     * 
+     * @return <code>true</code> if the per-page text index of the documents is created for the server-side search
+     */
+    public boolean isTextIndex() {
+        return textIndex;
+    }
+
+    /**
+     * Returns <code>true</code> if the SWF views, requested during page rendering, should be created in background instead of blocking the
+     * request.
+     * 
+     * @return <code>true</code> if the SWF views, requested during page rendering, should be created in background
+     */
+    public boolean isCreateViewAsynchronously() {
+        return createViewAsynchronously;
+    }
+
+    /**
+     * Returns <code>true</code> if the document views are created in the paged mode, i.e. each page is stored and loaded as a separate SWF
+     * resource.
+     * 
+     * @return <code>true</code> if the document views are created in the paged mode
+     */
+    public boolean isPagedView() {
+        return pagedView;
+    }
+
+    /**
+     * Returns <code>true</code> if the creation of the SWF view for the current binary version of the specified node is queued or in
+     * progress.
+     * 
+     * @param fileNode
+     *            the node to be checked
+     * @return <code>true</code> if the creation of the SWF view for the specified node is queued or in progress
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public boolean isViewPending(JCRNodeWrapper fileNode) throws RepositoryException {
+        return !pendingViews.isEmpty() && pendingViews.containsKey(getPendingViewKey(fileNode));
+    }
+
+    /**
+     * Injects the resolver for the local data store files, which allows reading the binary content of the documents in place.
+     * 
+     * @param dataStoreFileResolver
+     *            the resolver for the local data store files
+     */
+    public void setDataStoreFileResolver(DataStoreFileResolver dataStoreFileResolver) {
+        this.dataStoreFileResolver = dataStoreFileResolver;
+    }
+
+    /**
+     * Injects the scheduler, which limits the number of concurrent conversions per stage. If not set, conversions are done in the calling
+     * thread.
+     * 
+     * @param conversionScheduler
+     *            the conversion scheduler
+     */
+    public void setConversionScheduler(ConversionScheduler conversionScheduler) {
+        this.conversionScheduler = conversionScheduler;
+    }
+
+    /**
+     * Releases the file, obtained via {@link #getPageImage(JCRNodeWrapper, int, int, Priority)}: an entry of the page image cache is
+     * unpinned, a temporary file is removed.
+     * 
+     * @param pageImage
+     *            the file to be released
+     */
+    public void releasePageImage(File pageImage) {
+        pageImages.releasePageImage(pageImage);
+    }
+
+    /**
+     * Removes the file, obtained via {@link #getSourceFile(JCRNodeWrapper)}, if it is a temporary one.
+     * 
+     * @param sourceFile
+     *            the file to be released
+     */
+    protected void releaseSourceFile(File sourceFile) {
+        if (sourceFile != null
+                && (dataStoreFileResolver == null || !dataStoreFileResolver
+                        .isDataStoreFile(sourceFile))) {
+            FileUtils.deleteQuietly(sourceFile);
+        }
+    }
+
+    public void setCreateViewAsynchronously(boolean createViewAsynchronously) {
+        this.createViewAsynchronously = createViewAsynchronously;
+    }
+
+    /**
+     * If set to <code>true</code>, SWF views and thumbnails, already generated for an identical document binary with the same converter
+     * configuration, are reused instead of running the conversion again.
+     * 
+     * @param deduplicateDerivatives
+     *            <code>true</code> to reuse the existing derivatives of identical documents
+     */
+    public void setDeduplicateDerivatives(boolean deduplicateDerivatives) {
+        this.deduplicateDerivatives = deduplicateDerivatives;
+    }
+
     public void setDocumentConverterService(DocumentConverterService documentConverterService) {
         this.documentConverterService = documentConverterService;
     }
@@ -465,6 +1191,78 @@ public class DocumentViewService {
         this.enabled = enabled;
     }
 
+    /**
+     * Sets the time in milliseconds, during which a failed asynchronous view creation is not queued again for the same binary version of
+     * the document.
+     * 
+     * @param failedViewRetryInterval
+     *            the time in milliseconds before a failed view creation is retried
+     */
+    public void setFailedViewRetryInterval(long failedViewRetryInterval) {
+        this.failedViewRetryInterval = failedViewRetryInterval;
+    }
+
+    /**
+     * Sets the registry to publish the timings and counters of the conversion stages to.
+     * 
+     * @param metricsRegistry
+     *            the metrics registry
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NONE;
+    }
+
+    /**
+     * Enables or disables the paged view mode, where each page is stored and loaded as a separate SWF resource and is converted on
+     * demand.
+     * 
+     * @param pagedView
+     *            set to <code>true</code> to enable the paged view mode
+     */
+    public void setPagedView(boolean pagedView) {
+        this.pagedView = pagedView;
+    }
+
+    /**
+     * Sets the maximum width in pixels of the rendered page images.
+     * 
+     * @param maxPageImageWidth
+     *            the maximum width in pixels of the rendered page images
+     */
+    public void setMaxPageImageWidth(int maxPageImageWidth) {
+        pageImages.setMaxPageImageWidth(maxPageImageWidth);
+    }
+
+    /**
+     * Injects the cache for the rendered page images of the image-based document view.
+     * 
+     * @param pageImageCache
+     *            the cache for the rendered page images
+     */
+    public void setPageImageCache(FileCache pageImageCache) {
+        pageImages.setPageImageCache(pageImageCache);
+    }
+
+    /**
+     * Sets the format of the rendered page images: one of the keys of the thumbnail encoders.
+     * 
+     * @param pageImageFormat
+     *            the format of the rendered page images
+     */
+    public void setPageImageFormat(String pageImageFormat) {
+        this.pageImageFormat = pageImageFormat;
+    }
+
+    /**
+     * Sets the step in pixels, the requested page image widths are rounded up to.
+     * 
+     * @param pageImageWidthStep
+     *            the step in pixels, the requested page image widths are rounded up to
+     */
+    public void setPageImageWidthStep(int pageImageWidthStep) {
+        pageImages.setPageImageWidthStep(pageImageWidthStep);
+    }
+
     public void setPdf2imageConverterService(PDF2ImageConverter pdf2imageConverterService) {
         this.pdf2imageConverterService = pdf2imageConverterService;
     }
@@ -473,15 +1271,79 @@ public class DocumentViewService {
         this.pdf2swfConverterService = pdf2swfConverterService;
     }
 
+    /**
+     * Injects the cache for the intermediate PDF documents, produced from the office documents. The cache is shared by the SWF view and
+     * the thumbnail generation.
+     * 
+     * @param pdfCache
+     *            the cache for the intermediate PDF documents
+     */
+    public void setPdfCache(FileCache pdfCache) {
+        this.pdfCache = pdfCache;
+    }
+
+    /**
+     * Sets the number of the recently viewed document versions, which PDF files are kept to render their pages.
+     * 
+     * @param sharedPdfFiles
+     *            the number of the kept PDF files of the viewed documents
+     */
+    public void setSharedPdfFiles(int sharedPdfFiles) {
+        pdfFiles.setMaxEntries(sharedPdfFiles);
+    }
+
     public void setSupportedDocumentFormats(String[] supportedDocumentFormats) {
         this.supportedDocumentFormats = supportedDocumentFormats != null
                 && supportedDocumentFormats.length > 0 ? supportedDocumentFormats : null;
     }
 
+    /**
+     * Enables or disables the creation of the per-page text index together with the document view or on the first search.
+     * If it is disabled, the text is stored in the SWF views instead, to be searched in the viewer.
+     * 
+     * @param textIndex
+     *            <code>true</code> to create the text index for the server-side search in the document views
+     */
+    public void setTextIndex(boolean textIndex) {
+        this.textIndex = textIndex;
+    }
+
+    /**
+     * Sets the mapping of the thumbnail image format names to the encoders.
+     * 
+     * @param thumbnailEncoders
+     *            the mapping of the thumbnail image format names to the encoders
+     */
+    public void setThumbnailEncoders(Map<String, ThumbnailEncoder> thumbnailEncoders) {
+        this.thumbnailEncoders = thumbnailEncoders;
+    }
+
+    /**
+     * Sets the format of the generated thumbnails. The encoder is looked up in the configured thumbnail encoders; if not found, a default
+     * PNG or JPEG encoder is used.
+     * 
+     * @param thumbnailImageFormat
+     *            the format of the generated thumbnails
+     */
     public void setThumbnailImageFormat(String thumbnailImageFormat) {
         this.thumbnailImageFormat = thumbnailImageFormat;
     }
 
+    /**
+     * Sets the maximum number of the queued background view creations (see {@link #createViewAsync(JCRNodeWrapper)}). Further requests
+     * are not queued until the queue has room again.
+     * 
+     * @param viewCreationQueueCapacity
+     *            the maximum number of the queued background view creations
+     */
+    public void setViewCreationQueueCapacity(int viewCreationQueueCapacity) {
+        this.viewCreationQueueCapacity = viewCreationQueueCapacity;
+    }
+
+    public void setViewCreationThreads(int viewCreationThreads) {
+        this.viewCreationThreads = viewCreationThreads;
+    }
+
     protected JCRNodeWrapper storeThumbnailNode(JCRNodeWrapper fileNode, BufferedImage thumbnail,
             String thumbnailName) throws RepositoryException, IOException {
         JCRNodeWrapper node = null;
@@ -500,25 +1362,27 @@ public class DocumentViewService {
         }
 
         Binary b = null;
-        ByteArrayOutputStream os = null;
+        ImageOutputBuffer os = ImageOutputBuffer.acquire();
         try {
-            os = new ByteArrayOutputStream(16 * 1024);
-            ImageIO.write(thumbnail, thumbnailImageFormat, os);
-            b = new BinaryImpl(os.toByteArray());
+            long timer = System.currentTimeMillis();
+            thumbnailEncoder.encode(thumbnail, os);
+            metricsRegistry.recordTime(MetricsRegistry.ENCODE, System.currentTimeMillis() - timer);
+            metricsRegistry.increment(MetricsRegistry.ENCODE + ".bytesOut", os.size());
+            timer = System.currentTimeMillis();
+            // read the encoded image directly from the buffer, without copying it
+            b = fileNode.getSession().getValueFactory().createBinary(os.getInputStream());
+            metricsRegistry.recordTime(MetricsRegistry.STORE, System.currentTimeMillis() - timer);
             node.setProperty(Constants.JCR_DATA, b);
         } finally {
-            os = null;
             if (b != null) {
                 b.dispose();
             }
+            ImageOutputBuffer.release(os);
         }
         node.setProperty("j:width", thumbnail.getWidth());
         node.setProperty("j:height", thumbnail.getHeight());
-        node.setProperty(Constants.JCR_MIMETYPE, "png".equals(thumbnailImageFormat) ? "image/png"
-                : "image/jpeg");
-        Calendar lastModified = Calendar.getInstance();
-        node.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
-        fileNode.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
+        node.setProperty(Constants.JCR_MIMETYPE, thumbnailEncoder.getMimeType());
+        node.setProperty(Constants.JCR_LASTMODIFIED, Calendar.getInstance());
 
         return node;
     }
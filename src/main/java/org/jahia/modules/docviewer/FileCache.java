@@ -0,0 +1,404 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Disk-backed cache of files (e.g. intermediate PDF documents or rendered page images), which evicts least recently used entries when
+ * the total size of the cached files exceeds the configured quota. The cache keys are used as file names, so they should be file system
+ * safe, like hex encoded content hashes, and the same key always has to denote the same content. Cached files are read between
+ * {@link #acquire(String)} and {@link #release(File)}: such pinned entries are neither evicted nor deleted until they are released.
+ */
+public class FileCache implements InitializingBean {
+
+    private static Logger logger = LoggerFactory.getLogger(FileCache.class);
+
+    private File directory;
+
+    private Map<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+    private long hits;
+
+    private long maxSize = 500L * 1024 * 1024;
+
+    private long misses;
+
+    private String name = "doc-viewer-cache";
+
+    private Map<String, Integer> pins = new HashMap<String, Integer>();
+
+    // pinned entries, removed from the cache, which files are deleted on their release
+    private Set<String> removed = new HashSet<String>();
+
+    private long totalSize;
+
+    public void afterPropertiesSet() throws Exception {
+        if (directory == null) {
+            directory = new File(System.getProperty("java.io.tmpdir"), name);
+        }
+        if (!isEnabled()) {
+            logger.info("File cache {} is disabled", name);
+            return;
+        }
+        FileUtils.forceMkdir(directory);
+
+        // restore the existing entries, oldest first
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long diff = f1.lastModified() - f2.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            synchronized (this) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        if (file.getName().startsWith(".")) {
+                            // incomplete entry
+                            FileUtils.deleteQuietly(file);
+                        } else {
+                            entries.put(file.getName(), file.length());
+                            totalSize += file.length();
+                        }
+                    }
+                }
+                evict();
+            }
+        }
+
+        logger.info("File cache {} initialized in {} with {} entries ({} bytes)", new Object[] {
+                name, directory, entries.size(), totalSize });
+    }
+
+    /**
+     * Returns the cached file for the specified key or <code>null</code> if there is no such entry. The entry is pinned, i.e. its file is
+     * neither evicted nor deleted, until it is passed to {@link #release(File)}. The returned file should be only read and not modified or
+     * deleted by the caller.
+     *
+     * @param key
+     *            the cache key
+     * @return the cached file for the specified key or <code>null</code> if there is no such entry
+     */
+    public File acquire(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        File cached = new File(directory, key);
+        synchronized (this) {
+            Long size = entries.get(key);
+            if (size != null && !cached.exists()) {
+                // deleted behind our back
+                entries.remove(key);
+                totalSize -= size;
+                size = null;
+            }
+            if (size == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            Integer count = pins.get(key);
+            pins.put(key, count != null ? count + 1 : 1);
+        }
+
+        return cached;
+    }
+
+    /**
+     * Copies the cached file for the specified key into the provided target file.
+     *
+     * @param key
+     *            the cache key
+     * @param target
+     *            the file to copy the cached content into
+     * @return <code>true</code> if the entry was found in the cache and copied; <code>false</code> otherwise
+     */
+    public boolean copyTo(String key, File target) {
+        File cached = acquire(key);
+        if (cached == null) {
+            return false;
+        }
+        try {
+            FileUtils.copyFile(cached, target);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Unable to copy cached file " + cached, e);
+            return false;
+        } finally {
+            release(cached);
+        }
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator(); totalSize > maxSize
+                && iterator.hasNext();) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (pins.containsKey(eldest.getKey())) {
+                // being read: evicted on a later run
+                continue;
+            }
+            iterator.remove();
+            totalSize -= eldest.getValue();
+            FileUtils.deleteQuietly(new File(directory, eldest.getKey()));
+            logger.debug("Evicted entry {} from file cache {}", eldest.getKey(), name);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private File getTempFile(String key) {
+        // entries, starting with a dot, are considered incomplete
+        return new File(directory, "." + key + "." + Thread.currentThread().getId());
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Returns <code>true</code> if the cache is enabled, i.e. it has a positive size quota.
+     *
+     * @return <code>true</code> if the cache is enabled, i.e. it has a positive size quota
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    private File commit(String key, File tmp) throws IOException {
+        File cached = new File(directory, key);
+        synchronized (this) {
+            if (pins.containsKey(key)) {
+                // the entry is being read: keep its file, which has the same content
+                removed.remove(key);
+                if (entries.get(key) == null) {
+                    entries.put(key, cached.length());
+                    totalSize += cached.length();
+                }
+                FileUtils.deleteQuietly(tmp);
+                return cached;
+            }
+            Long previous = entries.remove(key);
+            if (previous != null) {
+                totalSize -= previous;
+                FileUtils.deleteQuietly(cached);
+            }
+            if (!tmp.renameTo(cached)) {
+                throw new IOException("Unable to rename " + tmp + " to " + cached);
+            }
+            entries.put(key, cached.length());
+            totalSize += cached.length();
+            evict();
+        }
+        return cached;
+    }
+
+    /**
+     * Stores a copy of the provided file in the cache under the specified key, evicting least recently used entries if the size quota is
+     * exceeded.
+     *
+     * @param key
+     *            the cache key
+     * @param source
+     *            the file to be cached; it is left untouched
+     * @return the cached file or <code>null</code> if the file cannot be cached
+     */
+    public File put(String key, File source) {
+        if (!isEnabled() || source == null || !source.isFile() || source.length() > maxSize) {
+            return null;
+        }
+
+        File cached = null;
+        File tmp = getTempFile(key);
+        try {
+            FileUtils.copyFile(source, tmp);
+            cached = commit(key, tmp);
+        } catch (IOException e) {
+            logger.warn("Unable to store file " + source + " in the file cache " + name, e);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+
+        return cached;
+    }
+
+    /**
+     * Stores the content of the provided stream in the cache under the specified key, evicting least recently used entries if the size
+     * quota is exceeded. The stream is read to its end, but not closed.
+     *
+     * @param key
+     *            the cache key
+     * @param source
+     *            the stream to read the content to be cached from
+     * @return the cached file or <code>null</code> if the content cannot be cached
+     */
+    public File put(String key, InputStream source) {
+        if (!isEnabled() || source == null) {
+            return null;
+        }
+
+        File cached = null;
+        File tmp = getTempFile(key);
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                IOUtils.copy(source, out);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            if (tmp.length() <= maxSize) {
+                cached = commit(key, tmp);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to store entry " + key + " in the file cache " + name, e);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+
+        return cached;
+    }
+
+    /**
+     * Releases the entry, obtained via {@link #acquire(String)}. The file of the entry can be evicted or deleted afterwards.
+     *
+     * @param cached
+     *            the cached file to be released
+     */
+    public synchronized void release(File cached) {
+        if (cached == null) {
+            return;
+        }
+        String key = cached.getName();
+        Integer count = pins.get(key);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            pins.put(key, count - 1);
+            return;
+        }
+        pins.remove(key);
+        if (removed.remove(key)) {
+            FileUtils.deleteQuietly(cached);
+        } else {
+            evict();
+        }
+    }
+
+    /**
+     * Removes the entry with the specified key from the cache. The file of a pinned entry is deleted, when it is released.
+     *
+     * @param key
+     *            the cache key
+     */
+    public synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalSize -= size;
+            if (pins.containsKey(key)) {
+                removed.add(key);
+            } else {
+                FileUtils.deleteQuietly(new File(directory, key));
+            }
+        }
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = StringUtils.isNotBlank(directory) ? new File(directory) : null;
+    }
+
+    /**
+     * Sets the size quota of the cache in bytes. A value of zero or less disables the cache.
+     *
+     * @param maxSize
+     *            the size quota of the cache in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+}
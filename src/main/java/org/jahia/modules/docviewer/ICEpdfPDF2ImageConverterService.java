@@ -41,67 +41,117 @@
 package org.jahia.modules.docviewer;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.icepdf.core.exceptions.PDFException;
 import org.icepdf.core.exceptions.PDFSecurityException;
 import org.icepdf.core.pobjects.Document;
+import org.icepdf.core.pobjects.PDimension;
 import org.icepdf.core.pobjects.Page;
 import org.icepdf.core.util.GraphicsRenderingHints;
 
 /**
- * Creates images for PDF document pages.
+ * Creates images for PDF document pages using ICEpdf library. Documents are always read from files, which ICEpdf accesses randomly,
+ * instead of being buffered in memory.
  * 
  * @author Sergiy Shyrkov
  */
-public class ICEpdfPDF2ImageConverterService implements PDF2ImageConverter {
+public class ICEpdfPDF2ImageConverterService extends AbstractPDF2ImageConverter<Document> {
 
-    public BufferedImage getImageOfPage(File pdfFile, int pageNumber) throws IOException,
-            PDFException, PDFSecurityException {
-        BufferedImage image = null;
+    private File scratchDirectory;
 
-        Document document = null;
+    @Override
+    protected void closeDocument(Document document) {
         try {
-            document = new Document();
-            document.setFile(pdfFile.getPath());
-            image = (BufferedImage) document.getPageImage(pageNumber, GraphicsRenderingHints.PRINT,
-                    Page.BOUNDARY_CROPBOX, 0, 1);
-        } finally {
-            if (document != null) {
-                try {
-                    document.dispose();
-                } catch (Exception e) {
-                    // ignore
-                }
-            }
+            document.dispose();
+        } catch (Exception e) {
+            // ignore
         }
-
-        return image;
     }
 
+    /**
+     * Renders the specified page of the PDF document, provided as a stream. ICEpdf buffers a stream input completely in memory, so the
+     * stream is spooled into a temporary file first and the document is read from that file.
+     */
     public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
             throws PDFException, PDFSecurityException, IOException {
-        BufferedImage image = null;
-
-        Document document = null;
+        File spool = File.createTempFile("doc-viewer-icepdf-", ".pdf", scratchDirectory);
         try {
-            document = new Document();
-            document.setInputStream(pdfInputStream, null);
-            image = (BufferedImage) document.getPageImage(pageNumber, GraphicsRenderingHints.PRINT,
-                    Page.BOUNDARY_CROPBOX, 0, 1);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(spool));
+            try {
+                IOUtils.copy(pdfInputStream, out);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            Document document = openDocument(spool);
+            try {
+                return renderPage(document, pageNumber);
+            } finally {
+                closeDocument(document);
+            }
         } finally {
-            if (document != null) {
-                try {
-                    document.dispose();
-                } catch (Exception e) {
-                    // ignore
-                }
+            FileUtils.deleteQuietly(spool);
+        }
+    }
+
+    @Override
+    protected int getNumberOfPages(Document document) {
+        return document.getNumberOfPages();
+    }
+
+    @Override
+    protected boolean isConcurrentRenderingSupported() {
+        // page initialization and painting is synchronized per page in ICEpdf
+        return true;
+    }
+
+    @Override
+    protected Document openDocument(File pdfFile) throws IOException, PDFException,
+            PDFSecurityException {
+        Document document = new Document();
+        try {
+            document.setFile(pdfFile.getPath());
+        } catch (IOException e) {
+            closeDocument(document);
+            throw e;
+        } catch (PDFException e) {
+            closeDocument(document);
+            throw e;
+        } catch (PDFSecurityException e) {
+            closeDocument(document);
+            throw e;
+        }
+        return document;
+    }
+
+    @Override
+    protected BufferedImage renderPage(Document document, int pageNumber, int maxWidth,
+            int maxHeight) {
+        float scale = 1;
+        if (maxWidth > 0 && maxHeight > 0) {
+            // crop box size at scale 1, with the page rotation applied
+            PDimension size = document.getPageDimension(pageNumber, 0);
+            float target = getScale(size.getWidth(), size.getHeight(), maxWidth, maxHeight);
+            if (target > 0) {
+                scale = target;
             }
         }
 
-        return image;
+        return (BufferedImage) document.getPageImage(pageNumber, GraphicsRenderingHints.PRINT,
+                Page.BOUNDARY_CROPBOX, 0, scale);
+    }
+
+    public void setScratchDirectory(String scratchDirectory) {
+        this.scratchDirectory = StringUtils.isNotBlank(scratchDirectory) ? new File(
+                scratchDirectory) : null;
     }
 
 }
@@ -0,0 +1,98 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-memory output buffer for encoded images, which exposes its content as an input stream without copying the underlying array. Buffers
+ * are pooled to avoid re-allocating and growing them for every thumbnail.
+ */
+class ImageOutputBuffer extends ByteArrayOutputStream {
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED = 16;
+
+    private static final int MAX_RETAINED_SIZE = 2 * 1024 * 1024;
+
+    private static final Queue<ImageOutputBuffer> POOL = new ConcurrentLinkedQueue<ImageOutputBuffer>();
+
+    /**
+     * Returns a buffer from the pool or a new one, if the pool is empty.
+     * 
+     * @return an empty buffer
+     */
+    static ImageOutputBuffer acquire() {
+        ImageOutputBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : new ImageOutputBuffer();
+    }
+
+    /**
+     * Returns the buffer into the pool. Buffers, which have grown too large, are dropped.
+     * 
+     * @param buffer
+     *            the buffer to be released
+     */
+    static void release(ImageOutputBuffer buffer) {
+        if (buffer != null && buffer.buf.length <= MAX_RETAINED_SIZE && POOL.size() < MAX_POOLED) {
+            buffer.reset();
+            POOL.offer(buffer);
+        }
+    }
+
+    private ImageOutputBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * Returns an input stream, reading the current content of this buffer.
+     * 
+     * @return an input stream, reading the current content of this buffer
+     */
+    synchronized InputStream getInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
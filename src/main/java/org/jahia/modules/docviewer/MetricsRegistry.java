@@ -0,0 +1,149 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+/**
+ * Registry for the metrics of the conversion pipeline: latency timers (histograms) per conversion stage, counters for successes,
+ * failures, skips and transferred bytes and gauges for in-flight and queued jobs. The default implementation is
+ * {@link DefaultMetricsRegistry}, which publishes the metrics via JMX; other implementations can forward them to an external metrics
+ * system.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * A metric, which value is computed on request.
+     */
+    interface Gauge {
+        /**
+         * Returns the current value of the gauge.
+         *
+         * @return the current value of the gauge
+         */
+        long getValue();
+    }
+
+    /**
+     * Registry, which discards all metrics.
+     */
+    MetricsRegistry NONE = new MetricsRegistry() {
+        public void increment(String counter, long delta) {
+            // do nothing
+        }
+
+        public void recordTime(String timer, long duration) {
+            // do nothing
+        }
+
+        public void registerGauge(String name, Gauge gauge) {
+            // do nothing
+        }
+    };
+
+    /**
+     * Stage of the document download from the repository.
+     */
+    String DOWNLOAD = "download";
+
+    /**
+     * Stage of the pixel image encoding into thumbnails.
+     */
+    String ENCODE = "encode";
+
+    /**
+     * Stage of the office document conversion to PDF.
+     */
+    String PDF = "pdf";
+
+    /**
+     * Stage of the PDF page rasterization; the name of the renderer is appended to it.
+     */
+    String RENDER = "render";
+
+    /**
+     * Stage of the page image downscaling.
+     */
+    String SCALE = "scale";
+
+    /**
+     * Stage of storing the derivatives in the repository.
+     */
+    String STORE = "store";
+
+    /**
+     * Stage of the PDF to SWF conversion.
+     */
+    String SWF = "swf";
+
+    /**
+     * Stage of the per-page text extraction for the document text index.
+     */
+    String TEXT = "text";
+
+    /**
+     * Adds the specified value to the counter with the provided name.
+     *
+     * @param counter
+     *            the name of the counter
+     * @param delta
+     *            the value to be added
+     */
+    void increment(String counter, long delta);
+
+    /**
+     * Records the duration of an operation in the timer with the provided name.
+     *
+     * @param timer
+     *            the name of the timer, usually a stage name
+     * @param duration
+     *            the duration of the operation in milliseconds
+     */
+    void recordTime(String timer, long duration);
+
+    /**
+     * Registers a gauge under the provided name, replacing an existing one with the same name.
+     *
+     * @param name
+     *            the name of the gauge
+     * @param gauge
+     *            the gauge to be registered
+     */
+    void registerGauge(String name, Gauge gauge);
+}
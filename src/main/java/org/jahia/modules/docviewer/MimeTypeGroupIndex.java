@@ -0,0 +1,220 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.services.content.JCRContentUtils;
+
+/**
+ * Precompiled index of the MIME type groups (like pdf, word, openoffice etc.). Exact MIME types of a group are looked up in a hash set,
+ * wildcard entries are compiled once into a single pattern per group and the match results are memoized per MIME type and group list.
+ */
+public class MimeTypeGroupIndex {
+
+    private static final class Group {
+        private final Set<String> exact = new HashSet<String>();
+
+        private Pattern wildcards;
+    }
+
+    private static volatile MimeTypeGroupIndex instance;
+
+    private static final int MAX_CACHED_RESULTS = 2000;
+
+    /**
+     * Returns an index for the MIME type groups, currently configured in the {@link JCRContentUtils}. The index is rebuilt if the MIME
+     * type mapping has been changed.
+     *
+     * @return an index for the MIME type groups, currently configured in the {@link JCRContentUtils}
+     */
+    public static MimeTypeGroupIndex getInstance() {
+        Map<String, List<String>> mimeTypes = JCRContentUtils.getInstance().getMimeTypes();
+        MimeTypeGroupIndex index = instance;
+        if (index == null || !index.isBuiltFrom(mimeTypes)) {
+            index = new MimeTypeGroupIndex(mimeTypes);
+            instance = index;
+        }
+
+        return index;
+    }
+
+    private final Map<String, Group> groups;
+
+    private final Map<String, Boolean> results = new ConcurrentHashMap<String, Boolean>();
+
+    private final Map<String, List<String>> source;
+
+    /**
+     * Initializes an instance of this class.
+     *
+     * @param mimeTypes
+     *            the mapping of the group names to the lists of the MIME types (can contain '*' wildcards)
+     */
+    public MimeTypeGroupIndex(Map<String, List<String>> mimeTypes) {
+        super();
+        groups = new HashMap<String, Group>();
+        if (mimeTypes != null) {
+            // a copy of the mapping detects the changes, made in place, e.g. to the list of a group
+            source = new HashMap<String, List<String>>(mimeTypes.size());
+            for (Map.Entry<String, List<String>> entry : mimeTypes.entrySet()) {
+                source.put(entry.getKey(), entry.getValue() != null ? new ArrayList<String>(entry
+                        .getValue()) : null);
+                groups.put(entry.getKey(), compile(entry.getValue()));
+            }
+        } else {
+            source = null;
+        }
+    }
+
+    private Group compile(List<String> mimeTypes) {
+        Group grp = new Group();
+        if (mimeTypes == null) {
+            return grp;
+        }
+        StringBuilder regexp = null;
+        for (String mime : mimeTypes) {
+            if (mime.contains("*")) {
+                regexp = regexp == null ? new StringBuilder() : regexp.append('|');
+                regexp.append("(?:")
+                        .append(StringUtils.replace(StringUtils.replace(mime, ".", "\\."), "*",
+                                ".*")).append(')');
+            } else {
+                grp.exact.add(mime);
+            }
+        }
+        if (regexp != null) {
+            grp.wildcards = Pattern.compile(regexp.toString());
+        }
+
+        return grp;
+    }
+
+    /**
+     * Returns <code>true</code> if this index was built from a mapping, equal to the specified one, i.e. the index does not need to be
+     * rebuilt.
+     *
+     * @param mimeTypes
+     *            the current mapping of the group names to the lists of the MIME types
+     * @return <code>true</code> if this index was built from a mapping, equal to the specified one
+     */
+    boolean isBuiltFrom(Map<String, List<String>> mimeTypes) {
+        return source != null ? source.equals(mimeTypes) : mimeTypes == null;
+    }
+
+    /**
+     * Checks if the specified mime type belongs to one of the specified groups.
+     *
+     * @param mimeType
+     *            the mime type to be checked
+     * @param mimeTypeGroup
+     *            the group (or multiple groups, separated by comma) the specified mime type should belong to
+     * @return if the specified mime type belongs to one of the specified groups
+     */
+    public boolean matches(String mimeType, String mimeTypeGroup) {
+        if (mimeType == null || mimeTypeGroup == null) {
+            return false;
+        }
+        String key = mimeTypeGroup + '|' + mimeType;
+        Boolean found = results.get(key);
+        if (found == null) {
+            found = Boolean.valueOf(matchesAny(mimeType, StringUtils.split(mimeTypeGroup, ", ")));
+            remember(key, found);
+        }
+
+        return found.booleanValue();
+    }
+
+    /**
+     * Checks if the specified mime type belongs to one of the specified groups.
+     *
+     * @param mimeType
+     *            the mime type to be checked
+     * @param mimeTypeGroups
+     *            the groups the specified mime type should belong to; each one is a single group name
+     * @return if the specified mime type belongs to one of the specified groups
+     */
+    public boolean matches(String mimeType, String... mimeTypeGroups) {
+        if (mimeType == null || mimeTypeGroups == null) {
+            return false;
+        }
+        // a separator, which differs from the single group list key, as the names are not split here
+        String key = StringUtils.join(mimeTypeGroups, '\n') + '\n' + mimeType;
+        Boolean found = results.get(key);
+        if (found == null) {
+            found = Boolean.valueOf(matchesAny(mimeType, mimeTypeGroups));
+            remember(key, found);
+        }
+
+        return found.booleanValue();
+    }
+
+    private boolean matchesAny(String mimeType, String[] mimeTypeGroups) {
+        for (String grpName : mimeTypeGroups) {
+            Group grp = groups.get(grpName);
+            if (grp == null) {
+                continue;
+            }
+            if (grp.exact.contains(mimeType) || grp.wildcards != null
+                    && grp.wildcards.matcher(mimeType).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void remember(String key, Boolean found) {
+        if (results.size() >= MAX_CACHED_RESULTS) {
+            // MIME types are coming from the uploaded content; do not let the cache grow unbounded
+            results.clear();
+        }
+        results.put(key, found);
+    }
+}
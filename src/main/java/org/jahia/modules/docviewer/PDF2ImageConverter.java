@@ -53,5 +53,54 @@ public interface PDF2ImageConverter {
 
     BufferedImage getImageOfPage(File pdfFile, int pageNumber) throws Exception;
 
+    /**
+     * Renders the specified page at a scale, computed from the page crop box, so that the image fits into the provided bounding box
+     * (optionally slightly oversampled for a better downscaling quality). This avoids rasterizing large-format pages at full resolution
+     * when only a small image is needed.
+     * 
+     * @param pdfFile
+     *            the PDF document file
+     * @param pageNumber
+     *            the number of the page (starting from 0)
+     * @param maxWidth
+     *            the width of the target bounding box in pixels; if zero or less, the page is rendered at its natural size
+     * @param maxHeight
+     *            the height of the target bounding box in pixels; if zero or less, the page is rendered at its natural size
+     * @return the image of the page or <code>null</code> if there is no such page
+     * @throws Exception
+     *             in case of a document parsing or rendering error
+     */
+    BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws Exception;
+
     BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber) throws Exception;
-}
\ No newline at end of file
+
+    /**
+     * Renders the specified range of pages, opening the document only once. The images are passed to the callback one by one, as they
+     * become available, in the order of the page numbers, so that the caller never holds all the pages in memory.
+     * 
+     * @param pdfFile
+     *            the PDF document file
+     * @param fromPage
+     *            the number of the first page to be rendered (starting from 0)
+     * @param toPage
+     *            the number of the last page to be rendered (inclusive); it is adjusted to the last page of the document if exceeds it
+     * @param callback
+     *            the callback to receive the page images
+     * @throws Exception
+     *             in case of a document parsing or rendering error or if the callback has failed
+     */
+    void getImagesOfPages(File pdfFile, int fromPage, int toPage, PageImageCallback callback)
+            throws Exception;
+
+    /**
+     * Returns the number of pages in the specified PDF document.
+     * 
+     * @param pdfFile
+     *            the PDF document file
+     * @return the number of pages in the specified PDF document
+     * @throws Exception
+     *             in case of a document parsing error
+     */
+    int getNumberOfPages(File pdfFile) throws Exception;
+}
@@ -44,14 +44,26 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.ShutdownHookProcessDestroyer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Document to SWF converter service that uses pdf2swf from SWFTools for file conversion.
+ * Document to SWF converter service that uses pdf2swf from SWFTools for file conversion. Each conversion process is guarded by a watchdog,
+ * which kills it if it runs longer than the timeout, computed from the input file size, or if it produces more output than allowed.
  * 
  * @author Sergiy Shyrkov
  */
@@ -59,12 +71,43 @@ public class PDF2SWFConverterService {
 
     private static Logger logger = LoggerFactory.getLogger(PDF2SWFConverterService.class);
 
+    private static final ScheduledExecutorService OUTPUT_MONITOR = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "doc-viewer-pdf2swf-monitor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final ShutdownHookProcessDestroyer PROCESS_DESTROYER = new ShutdownHookProcessDestroyer();
+
     private boolean enabled;
 
     private String executablePath;
 
+    private AtomicLong failedCount = new AtomicLong();
+
+    private long maxOutputSize;
+
+    private long maxTimeout = 30 * 60 * 1000L;
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NONE;
+
+    private AtomicLong outputLimitExceededCount = new AtomicLong();
+
     private String parameters;
 
+    private boolean storeAllCharacters = true;
+
+    private AtomicLong succeededCount = new AtomicLong();
+
+    private long timeout = 60 * 1000L;
+
+    private long timeoutPerMegabyte = 10 * 1000L;
+
+    private AtomicLong timedOutCount = new AtomicLong();
+
     /**
      * Converts the provided PDF input file into an SWF file, using a temporary file as output.
      * 
@@ -82,7 +125,15 @@ public class PDF2SWFConverterService {
         }
 
         File out = createTempFile();
-        convert(inputFile, out);
+        boolean ok = false;
+        try {
+            convert(inputFile, out);
+            ok = true;
+        } finally {
+            if (!ok) {
+                FileUtils.deleteQuietly(out);
+            }
+        }
         return out;
     }
 
@@ -93,6 +144,8 @@ public class PDF2SWFConverterService {
      *            the source file
      * @param outputFile
      *            the output file descriptor to store converted content into
+     * @throws ConversionTimeoutException
+     *             in case the conversion process did not finish in time and was killed
      * @throws Exception
      *             in case of a conversion error
      */
@@ -104,15 +157,96 @@ public class PDF2SWFConverterService {
 
         }
 
+        execute(inputFile, outputFile, null);
+    }
+
+    /**
+     * Converts the specified page of the provided PDF input file into an SWF file, using a temporary file as output.
+     * 
+     * @param inputFile
+     *            the source file
+     * @param pageNumber
+     *            the number of the page to be converted (starting from 1)
+     * @return the SFW file with the converted page content
+     * @throws ConversionTimeoutException
+     *             in case the conversion process did not finish in time and was killed
+     * @throws Exception
+     *             in case of a conversion error
+     */
+    public File convertPage(File inputFile, int pageNumber) throws Exception {
+        if (!isEnabled()) {
+            logger.info("pdf2swf conversion service is not enabled." + " Skip converting file {}",
+                    inputFile);
+            return null;
+        }
+
+        File out = createTempFile();
+        boolean ok = false;
+        try {
+            execute(inputFile, out, String.valueOf(pageNumber));
+            ok = true;
+        } finally {
+            if (!ok) {
+                FileUtils.deleteQuietly(out);
+            }
+        }
+        return out;
+    }
+
+    protected File createTempFile() throws IOException {
+        return File.createTempFile("doc-viewer", null);
+    }
+
+    private void execute(File inputFile, File outputFile, String pageRange) throws Exception {
         long timer = System.currentTimeMillis();
 
-        CommandLine cmd = getConvertCommandLine(inputFile, outputFile);
+        CommandLine cmd = getConvertCommandLine(inputFile, outputFile, pageRange);
 
         if (logger.isDebugEnabled()) {
             logger.debug("Execuiting conversion command: {}", cmd.toString());
         }
 
-        int exitValue = new DefaultExecutor().execute(cmd);
+        long conversionTimeout = getTimeout(inputFile);
+        ExecuteWatchdog watchdog = new ExecuteWatchdog(conversionTimeout);
+        DefaultExecutor executor = new DefaultExecutor();
+        executor.setWatchdog(watchdog);
+        executor.setProcessDestroyer(PROCESS_DESTROYER);
+
+        AtomicBoolean outputLimitExceeded = new AtomicBoolean();
+        ScheduledFuture<?> outputCheck = maxOutputSize > 0 ? monitorOutput(outputFile, watchdog,
+                outputLimitExceeded) : null;
+
+        int exitValue;
+        try {
+            exitValue = executor.execute(cmd);
+        } catch (Exception e) {
+            if (outputLimitExceeded.get()) {
+                outputLimitExceededCount.incrementAndGet();
+                metricsRegistry.increment(MetricsRegistry.SWF + ".outputLimitExceeded", 1);
+                throw new IOException("Conversion of the file " + inputFile
+                        + " was aborted as the output exceeds the limit of " + maxOutputSize
+                        + " bytes");
+            } else if (watchdog.killedProcess()) {
+                timedOutCount.incrementAndGet();
+                metricsRegistry.increment(MetricsRegistry.SWF + ".timedOut", 1);
+                logger.warn("pdf2swf process for file {} was stuck and killed after {} ms",
+                        inputFile, System.currentTimeMillis() - timer);
+                throw new ConversionTimeoutException("Conversion of the file " + inputFile
+                        + " did not finish in " + conversionTimeout + " ms", conversionTimeout);
+            }
+            failedCount.incrementAndGet();
+            metricsRegistry.increment(MetricsRegistry.SWF + ".failure", 1);
+            throw e;
+        } finally {
+            if (outputCheck != null) {
+                outputCheck.cancel(false);
+            }
+            metricsRegistry.recordTime(MetricsRegistry.SWF, System.currentTimeMillis() - timer);
+        }
+        succeededCount.incrementAndGet();
+        metricsRegistry.increment(MetricsRegistry.SWF + ".success", 1);
+        metricsRegistry.increment(MetricsRegistry.SWF + ".bytesIn", inputFile.length());
+        metricsRegistry.increment(MetricsRegistry.SWF + ".bytesOut", outputFile.length());
 
         if (logger.isDebugEnabled()) {
             logger.debug("Conversion from {} to {} done (exit code: {}) in {} ms", new Object[] {
@@ -120,15 +254,19 @@ public class PDF2SWFConverterService {
         }
     }
 
-    protected File createTempFile() throws IOException {
-        return File.createTempFile("doc-viewer", null);
+    protected CommandLine getConvertCommandLine(File inputFile, File outputFile) {
+        return getConvertCommandLine(inputFile, outputFile, null);
     }
 
-    protected CommandLine getConvertCommandLine(File inputFile, File outputFile) {
+    protected CommandLine getConvertCommandLine(File inputFile, File outputFile, String pageRange) {
         CommandLine cmd = new CommandLine(getExecutablePath());
         cmd.addArgument("${inFile}");
         cmd.addArgument("-o");
         cmd.addArgument("${outFile}");
+        if (pageRange != null) {
+            cmd.addArgument("-p");
+            cmd.addArgument(pageRange);
+        }
         cmd.addArguments(getParameters(), false);
 
         Map<String, File> params = new HashMap<String, File>(2);
@@ -144,8 +282,61 @@ public class PDF2SWFConverterService {
         return executablePath;
     }
 
+    /**
+     * Returns the number of conversions, which failed with an error (excluding timeouts).
+     * 
+     * @return the number of conversions, which failed with an error
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of conversions, which were aborted because their output exceeded the limit.
+     * 
+     * @return the number of conversions, which were aborted because their output exceeded the limit
+     */
+    public long getOutputLimitExceededCount() {
+        return outputLimitExceededCount.get();
+    }
+
     protected String getParameters() {
-        return parameters;
+        return storeAllCharacters ? StringUtils.trim(StringUtils.defaultString(parameters)
+                + " -s storeallcharacters") : parameters;
+    }
+
+    /**
+     * Returns <code>true</code> if the text of the documents is stored in the SWF files, so that it can be searched in the viewer.
+     * 
+     * @return <code>true</code> if the text of the documents is stored in the SWF files
+     */
+    public boolean isStoreAllCharacters() {
+        return storeAllCharacters;
+    }
+
+    public long getSucceededCount() {
+        return succeededCount.get();
+    }
+
+    /**
+     * Returns the number of conversion processes, which were stuck and killed by the watchdog.
+     * 
+     * @return the number of conversion processes, which were stuck and killed by the watchdog
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * Computes the conversion timeout for the specified input file, based on its size.
+     * 
+     * @param inputFile
+     *            the file to be converted
+     * @return the conversion timeout in milliseconds for the specified input file
+     */
+    protected long getTimeout(File inputFile) {
+        long value = timeout + timeoutPerMegabyte * (inputFile.length() / (1024 * 1024));
+        return maxTimeout > 0 ? Math.min(value, maxTimeout) : value;
     }
 
     /**
@@ -157,6 +348,20 @@ public class PDF2SWFConverterService {
         return enabled;
     }
 
+    private ScheduledFuture<?> monitorOutput(final File outputFile,
+            final ExecuteWatchdog watchdog, final AtomicBoolean outputLimitExceeded) {
+        return OUTPUT_MONITOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (!outputLimitExceeded.get() && outputFile.length() > maxOutputSize) {
+                    outputLimitExceeded.set(true);
+                    logger.warn("Output file {} exceeds the limit of {} bytes. Killing pdf2swf process.",
+                            outputFile, maxOutputSize);
+                    watchdog.destroyProcess();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
     /**
      * Enables or disables the conversion service
      * 
@@ -171,8 +376,70 @@ public class PDF2SWFConverterService {
         this.executablePath = executablePath;
     }
 
+    /**
+     * Sets the maximum size in bytes of the produced SWF file. The conversion process is killed if its output exceeds this limit. A value
+     * of zero or less means no limit.
+     * 
+     * @param maxOutputSize
+     *            the maximum size in bytes of the produced SWF file
+     */
+    public void setMaxOutputSize(long maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    /**
+     * Sets the upper bound in milliseconds for the computed conversion timeout. A value of zero or less means no upper bound.
+     * 
+     * @param maxTimeout
+     *            the upper bound in milliseconds for the computed conversion timeout
+     */
+    public void setMaxTimeout(long maxTimeout) {
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Sets the registry to publish the conversion timings, outcomes and sizes to.
+     * 
+     * @param metricsRegistry
+     *            the metrics registry
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NONE;
+    }
+
     public void setParameters(String parameters) {
         this.parameters = parameters;
     }
 
+    /**
+     * Sets if the text of the documents should be stored in the SWF files, so that it can be searched in the viewer. It is not needed
+     * if the documents are searched on the server side.
+     * 
+     * @param storeAllCharacters
+     *            <code>true</code> to store the text of the documents in the SWF files
+     */
+    public void setStoreAllCharacters(boolean storeAllCharacters) {
+        this.storeAllCharacters = storeAllCharacters;
+    }
+
+    /**
+     * Sets the base conversion timeout in milliseconds.
+     * 
+     * @param timeout
+     *            the base conversion timeout in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the time in milliseconds, which is added to the base conversion timeout per each megabyte of the input file.
+     * 
+     * @param timeoutPerMegabyte
+     *            the time in milliseconds, added to the conversion timeout per each megabyte of the input file
+     */
+    public void setTimeoutPerMegabyte(long timeoutPerMegabyte) {
+        this.timeoutPerMegabyte = timeoutPerMegabyte;
+    }
+
 }
@@ -41,73 +41,243 @@
 package org.jahia.modules.docviewer;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.RandomAccess;
+import org.apache.pdfbox.io.RandomAccessFile;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Creates images for PDF document pages using PDFBox library.
+ * Creates images for PDF document pages using PDFBox library. In the low-memory mode the parsed stream data of the document is kept in a
+ * scratch file instead of the heap, only the requested page is resolved from the page tree and the rendering resolution is reduced if the
+ * page image would exceed the configured memory budget.
  * 
  * @author Sergiy Shyrkov
  */
-public class PDFBoxPDF2ImageConverterService implements PDF2ImageConverter {
+public class PDFBoxPDF2ImageConverterService extends AbstractPDF2ImageConverter<PDDocument> {
 
     private static final Logger logger = LoggerFactory
             .getLogger(PDFBoxPDF2ImageConverterService.class);
 
     private int imageType = BufferedImage.TYPE_INT_RGB;
 
+    private boolean lowMemory;
+
+    private long maxRenderMemory = 64L * 1024 * 1024;
+
     private int resolution = 96;
 
+    private Map<PDDocument, File> scratchFiles = new ConcurrentHashMap<PDDocument, File>();
+
+    private File scratchDirectory;
+
+    @Override
+    protected void closeDocument(PDDocument document) {
+        try {
+            document.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        File scratch = scratchFiles.remove(document);
+        if (scratch != null) {
+            FileUtils.deleteQuietly(scratch);
+        }
+    }
+
+    /**
+     * Resolves the page with the specified index, walking down the page tree using the page counts of the intermediate nodes, without
+     * building the list of all document pages.
+     */
+    private PDPage findPage(PDDocument document, int pageNumber) {
+        if (pageNumber < 0) {
+            return null;
+        }
+        COSDictionary node = document.getDocumentCatalog().getPages().getDictionary();
+        int index = pageNumber;
+        while (node != null) {
+            COSArray kids = (COSArray) node.getDictionaryObject(COSName.KIDS);
+            if (kids == null) {
+                return null;
+            }
+            COSDictionary next = null;
+            for (int i = 0; i < kids.size() && next == null; i++) {
+                COSDictionary kid = (COSDictionary) kids.getObject(i);
+                if (COSName.PAGES.equals(kid.getDictionaryObject(COSName.TYPE))) {
+                    int count = kid.getInt(COSName.COUNT, 0);
+                    if (index < count) {
+                        next = kid;
+                    } else {
+                        index -= count;
+                    }
+                } else if (index == 0) {
+                    return new PDPage(kid);
+                } else {
+                    index--;
+                }
+            }
+            node = next;
+        }
+
+        return null;
+    }
+
     public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
             throws Exception {
         BufferedImage image = null;
 
         PDDocument pdfDoc = null;
+        File scratch = lowMemory ? createScratchFile() : null;
         try {
-            pdfDoc = PDDocument.load(pdfInputStream);
-            PDPage page = (PDPage) pdfDoc.getDocumentCatalog().getAllPages().get(pageNumber);
-            image = page.convertToImage(imageType, resolution);
-        } catch (IndexOutOfBoundsException e) {
-            logger.warn("No page with the number {} found in the PDF document", pageNumber);
+            pdfDoc = scratch != null ? PDDocument.load(pdfInputStream, openScratch(scratch))
+                    : PDDocument.load(pdfInputStream);
+            image = renderPage(pdfDoc, pageNumber);
         } finally {
-            try {
-                pdfDoc.close();
-            } catch (Exception e) {
-                // ignore
+            if (pdfDoc != null) {
+                closeDocument(pdfDoc);
             }
+            FileUtils.deleteQuietly(scratch);
         }
 
         return image;
     }
 
-    public BufferedImage getImageOfPage(File pdfFile, int pageNumber) throws Exception {
-        BufferedImage image = null;
+    private File createScratchFile() throws IOException {
+        return File.createTempFile("doc-viewer-pdfbox-", ".scratch", scratchDirectory);
+    }
 
-        InputStream is = null;
+    @Override
+    protected int getNumberOfPages(PDDocument document) {
+        return document.getNumberOfPages();
+    }
+
+    @Override
+    protected boolean isConcurrentRenderingSupported() {
+        // the PDFBox object model is not thread-safe: pages of the same document are rendered sequentially
+        return false;
+    }
+
+    @Override
+    protected PDDocument openDocument(File pdfFile) throws Exception {
+        if (!lowMemory) {
+            return PDDocument.load(pdfFile);
+        }
+        File scratch = createScratchFile();
+        PDDocument document = null;
         try {
-            is = new BufferedInputStream(new FileInputStream(pdfFile));
-            image = getImageOfPage(is, pageNumber);
+            document = PDDocument.load(pdfFile, openScratch(scratch));
+            scratchFiles.put(document, scratch);
         } finally {
-            IOUtils.closeQuietly(is);
+            if (document == null) {
+                FileUtils.deleteQuietly(scratch);
+            }
         }
 
-        return image;
+        return document;
+    }
+
+    private RandomAccess openScratch(File scratch) throws IOException {
+        return new RandomAccessFile(scratch, "rw");
+    }
+
+    @Override
+    protected BufferedImage renderPage(PDDocument document, int pageNumber, int maxWidth,
+            int maxHeight) throws Exception {
+        PDPage page = null;
+        if (lowMemory) {
+            page = findPage(document, pageNumber);
+        } else {
+            try {
+                page = (PDPage) document.getDocumentCatalog().getAllPages().get(pageNumber);
+            } catch (IndexOutOfBoundsException e) {
+                // no such page
+            }
+        }
+        if (page == null) {
+            logger.warn("No page with the number {} found in the PDF document", pageNumber);
+            return null;
+        }
+
+        int dpi = resolution;
+        if (maxWidth > 0 && maxHeight > 0) {
+            PDRectangle box = page.findCropBox();
+            int rotation = page.findRotation();
+            boolean rotated = rotation % 180 != 0;
+            float scale = getScale(rotated ? box.getHeight() : box.getWidth(),
+                    rotated ? box.getWidth() : box.getHeight(), maxWidth, maxHeight);
+            if (scale > 0) {
+                // the page size is in 1/72 inch units
+                dpi = Math.max(1, Math.round(72 * scale));
+            }
+        }
+
+        return page.convertToImage(imageType, lowMemory ? getResolution(page, dpi) : dpi);
+    }
+
+    /**
+     * Returns the rendering resolution for the specified page, reduced if needed, so that the page image fits into the memory budget.
+     */
+    private int getResolution(PDPage page, int dpi) {
+        if (maxRenderMemory <= 0) {
+            return dpi;
+        }
+        PDRectangle box = page.findMediaBox();
+        // 4 bytes per pixel at most; the page size is in 1/72 inch units
+        double bytes = 4.0 * box.getWidth() * box.getHeight() * dpi * dpi / (72 * 72);
+        if (bytes <= maxRenderMemory) {
+            return dpi;
+        }
+        int reduced = Math.max(1, (int) (dpi * Math.sqrt(maxRenderMemory / bytes)));
+        logger.debug("Reducing rendering resolution from {} to {} dpi to fit into the memory budget",
+                dpi, reduced);
+
+        return reduced;
     }
 
     public void setImageType(int imageType) {
         this.imageType = imageType;
     }
 
+    /**
+     * If set to <code>true</code>, the document stream data is kept in a scratch file, only the requested page is resolved from the page
+     * tree and the rendering resolution is limited by the memory budget.
+     * 
+     * @param lowMemory
+     *            <code>true</code> to enable the low-memory mode
+     */
+    public void setLowMemory(boolean lowMemory) {
+        this.lowMemory = lowMemory;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a single page image in the low-memory mode. A value of zero or less disables the limit.
+     * 
+     * @param maxRenderMemory
+     *            the maximum size in bytes of a single page image
+     */
+    public void setMaxRenderMemory(long maxRenderMemory) {
+        this.maxRenderMemory = maxRenderMemory;
+    }
+
     public void setResolution(int resolution) {
         this.resolution = resolution;
     }
 
+    public void setScratchDirectory(String scratchDirectory) {
+        this.scratchDirectory = StringUtils.isNotBlank(scratchDirectory) ? new File(
+                scratchDirectory) : null;
+    }
+
 }
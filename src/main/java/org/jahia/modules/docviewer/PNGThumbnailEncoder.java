@@ -0,0 +1,184 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes thumbnails as 8-bit truecolor PNG images with a configurable deflate compression level. Scanlines are filtered with the "Sub"
+ * filter and deflated directly into the output stream, without an intermediate raster copy, which is considerably faster than the
+ * ImageIO PNG writer.
+ */
+public class PNGThumbnailEncoder implements ThumbnailEncoder {
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static final byte FILTER_SUB = 1;
+
+    private static final byte[] IDAT = { 'I', 'D', 'A', 'T' };
+
+    private static final byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+    private static final byte[] IHDR = { 'I', 'H', 'D', 'R' };
+
+    private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', 13, 10, 26, 10 };
+
+    private int compressionLevel = 4;
+
+    private int deflate(Deflater deflater, byte[] chunk, int filled, DataOutputStream out,
+            CRC32 crc) throws IOException {
+        int len = filled;
+        while (true) {
+            int count = deflater.deflate(chunk, len, chunk.length - len);
+            len += count;
+            if (len == chunk.length) {
+                writeChunk(out, IDAT, chunk, len, crc);
+                len = 0;
+            } else if (count == 0) {
+                return len;
+            }
+        }
+    }
+
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        int bytesPerPixel = alpha ? 4 : 3;
+
+        DataOutputStream data = new DataOutputStream(out);
+        CRC32 crc = new CRC32();
+        data.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = (byte) (alpha ? 6 : 2); // color type: truecolor with or without alpha
+        // compression, filter and interlace methods are all 0
+        writeChunk(data, IHDR, header, header.length, crc);
+
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            int[] pixels = new int[width];
+            byte[] row = new byte[1 + width * bytesPerPixel];
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int filled = 0;
+            row[0] = FILTER_SUB;
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, pixels, 0, width);
+                int r0 = 0, g0 = 0, b0 = 0, a0 = 0;
+                for (int x = 0, i = 1; x < width; x++) {
+                    int argb = pixels[x];
+                    int r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+                    row[i++] = (byte) (r - r0);
+                    row[i++] = (byte) (g - g0);
+                    row[i++] = (byte) (b - b0);
+                    r0 = r;
+                    g0 = g;
+                    b0 = b;
+                    if (alpha) {
+                        int a = (argb >>> 24);
+                        row[i++] = (byte) (a - a0);
+                        a0 = a;
+                    }
+                }
+                deflater.setInput(row);
+                filled = deflate(deflater, chunk, filled, data, crc);
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                filled = deflate(deflater, chunk, filled, data, crc);
+            }
+            if (filled > 0) {
+                writeChunk(data, IDAT, chunk, filled, crc);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(data, IEND, new byte[0], 0, crc);
+        data.flush();
+    }
+
+    public String getMimeType() {
+        return "image/png";
+    }
+
+    /**
+     * Sets the deflate compression level (0-9). Lower levels are faster and produce slightly larger files.
+     * 
+     * @param compressionLevel
+     *            the deflate compression level (0-9)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION,
+                Math.min(compressionLevel, Deflater.BEST_COMPRESSION));
+    }
+
+    @Override
+    public String toString() {
+        return "PNGThumbnailEncoder [compressionLevel=" + compressionLevel + "]";
+    }
+
+    private void writeChunk(DataOutputStream out, byte[] type, byte[] data, int len, CRC32 crc)
+            throws IOException {
+        out.writeInt(len);
+        out.write(type);
+        out.write(data, 0, len);
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+
+import javax.jcr.RepositoryException;
+
+import net.coobird.thumbnailator.Thumbnails;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders the pages of the documents into images for the image-based document view of the {@link DocumentViewService}. The page images
+ * are produced from the shared PDF file of the document version, kept in the page image cache and rendered only once for concurrent
+ * requests.
+ */
+class PageImageRenderer {
+
+    private static Logger logger = LoggerFactory.getLogger(PageImageRenderer.class);
+
+    private int maxPageImageWidth = 2048;
+
+    private Map<String, Integer> pageCounts = new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    private FileCache pageImageCache;
+
+    private ThumbnailEncoder pageImageEncoder;
+
+    private int pageImageWidthStep = 128;
+
+    private ConcurrentMap<String, FutureTask<File>> pendingPageImages = new ConcurrentHashMap<String, FutureTask<File>>();
+
+    private final DocumentViewService service;
+
+    PageImageRenderer(DocumentViewService service) {
+        super();
+        this.service = service;
+    }
+
+    /**
+     * Returns the fingerprint of the page image rendering configuration.
+     *
+     * @return the fingerprint of the page image rendering configuration
+     */
+    String getConverterFingerprint() {
+        return DigestUtils.shaHex("pageImage|"
+                + service.getPdf2imageConverterService().getClass().getName() + "|"
+                + pageImageEncoder);
+    }
+
+    /**
+     * @see DocumentViewService#getPageCount(JCRNodeWrapper, Priority)
+     */
+    int getPageCount(JCRNodeWrapper fileNode, final Priority priority) throws RepositoryException {
+        if (fileNode.isNodeType("jmix:documentPageCount") && fileNode.hasProperty("j:pageCount")) {
+            return (int) fileNode.getProperty("j:pageCount").getLong();
+        }
+        String key = service.getPendingViewKey(fileNode);
+        synchronized (pageCounts) {
+            Integer known = pageCounts.get(key);
+            if (known != null) {
+                return known.intValue();
+            }
+        }
+        if (!service.isEnabled()) {
+            return 0;
+        }
+
+        int pageCount = 0;
+        try {
+            Integer count = service.executeWithPdfFile(fileNode, priority,
+                    new PdfFileRegistry.Callback<Integer>() {
+                        public Integer doWithPdfFile(final File pdf) throws Exception {
+                            return service.executeStage(ConversionScheduler.STAGE_IMAGE, priority,
+                                    new Callable<Integer>() {
+                                        public Integer call() throws Exception {
+                                            return service.getPdf2imageConverterService()
+                                                    .getNumberOfPages(pdf);
+                                        }
+                                    });
+                        }
+                    });
+            if (count != null) {
+                pageCount = count.intValue();
+                synchronized (pageCounts) {
+                    pageCounts.put(key, pageCount);
+                }
+            }
+        } catch (RepositoryException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Unable to get the number of pages of the document " + fileNode.getPath(),
+                    e);
+        }
+
+        return pageCount;
+    }
+
+    /**
+     * @see DocumentViewService#getPageImage(JCRNodeWrapper, int, int, Priority)
+     */
+    File getPageImage(final JCRNodeWrapper fileNode, final int pageNumber, int width,
+            final Priority priority) throws RepositoryException {
+        if (!service.isEnabled() || pageNumber < 1
+                || pageNumber > getPageCount(fileNode, priority)) {
+            return null;
+        }
+
+        final int targetWidth = getPageImageWidth(width);
+        final String key = DigestUtils.shaHex(service.getPendingViewKey(fileNode) + "|"
+                + pageNumber + "|" + targetWidth + "|" + getConverterFingerprint())
+                + "." + StringUtils.substringAfter(pageImageEncoder.getMimeType(), "/");
+        final boolean cacheEnabled = pageImageCache != null && pageImageCache.isEnabled();
+        if (cacheEnabled) {
+            File cached = pageImageCache.acquire(key);
+            if (cached != null) {
+                service.getMetricsRegistry().increment("pageImages.cacheHits", 1);
+                return cached;
+            }
+        }
+
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            public File call() throws Exception {
+                return render(fileNode, pageNumber, targetWidth, cacheEnabled ? key : null,
+                        priority);
+            }
+        });
+        // without a cache each request gets its own temporary file, which cannot be shared
+        FutureTask<File> pending = cacheEnabled ? pendingPageImages.putIfAbsent(key, task) : null;
+        try {
+            if (pending == null) {
+                task.run();
+                pending = task;
+            }
+            File pageImage = pending.get();
+            if (pageImage != null && isCacheEntry(pageImage)) {
+                // pin the entry for this request; it could have been evicted in the meantime
+                pageImage = pageImageCache.acquire(key);
+                if (pageImage == null) {
+                    pageImage = render(fileNode, pageNumber, targetWidth, null, priority);
+                }
+            } else if (pageImage != null && pending != task) {
+                // the temporary file belongs to the request, which rendered it
+                pageImage = render(fileNode, pageNumber, targetWidth, null, priority);
+            }
+            return pageImage;
+        } catch (Exception e) {
+            logger.error("Unable to render page " + pageNumber + " of the document "
+                    + fileNode.getPath(), e);
+        } finally {
+            if (pending == task) {
+                pendingPageImages.remove(key, task);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @see DocumentViewService#getPageImageMimeType()
+     */
+    String getPageImageMimeType() {
+        return pageImageEncoder.getMimeType();
+    }
+
+    /**
+     * @see DocumentViewService#getPageImageVersion(JCRNodeWrapper)
+     */
+    String getPageImageVersion(JCRNodeWrapper fileNode) throws RepositoryException {
+        return DigestUtils.md5Hex(service.getPendingViewKey(fileNode) + "|"
+                + getConverterFingerprint());
+    }
+
+    /**
+     * @see DocumentViewService#getPageImageWidth(int)
+     */
+    int getPageImageWidth(int width) {
+        int target = width > 0 ? Math.min(width, maxPageImageWidth) : maxPageImageWidth / 2;
+        if (pageImageWidthStep > 1) {
+            target = Math.min((target + pageImageWidthStep - 1) / pageImageWidthStep
+                    * pageImageWidthStep, maxPageImageWidth);
+        }
+        return target;
+    }
+
+    private boolean isCacheEntry(File pageImage) {
+        return pageImageCache != null && pageImageCache.isEnabled()
+                && pageImage.getParentFile().equals(pageImageCache.getDirectory());
+    }
+
+    void registerGauges(MetricsRegistry metricsRegistry) {
+        metricsRegistry.registerGauge("pageImages.pending", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return pendingPageImages.size();
+            }
+        });
+    }
+
+    /**
+     * @see DocumentViewService#releasePageImage(File)
+     */
+    void releasePageImage(File pageImage) {
+        if (pageImage == null) {
+            return;
+        }
+        if (isCacheEntry(pageImage)) {
+            pageImageCache.release(pageImage);
+        } else {
+            FileUtils.deleteQuietly(pageImage);
+        }
+    }
+
+    private File render(JCRNodeWrapper fileNode, final int pageNumber, final int width,
+            String key, final Priority priority) throws Exception {
+        BufferedImage image = service.executeWithPdfFile(fileNode, priority,
+                new PdfFileRegistry.Callback<BufferedImage>() {
+                    public BufferedImage doWithPdfFile(final File pdf) throws Exception {
+                        return service.executeStage(ConversionScheduler.STAGE_IMAGE, priority,
+                                new Callable<BufferedImage>() {
+                                    public BufferedImage call() throws Exception {
+                                        // the height is not limited: fit into the width
+                                        return service.getPdf2imageConverterService()
+                                                .getImageOfPage(pdf, pageNumber - 1, width,
+                                                        Integer.MAX_VALUE);
+                                    }
+                                });
+                    }
+                });
+        if (image == null) {
+            return null;
+        }
+
+        MetricsRegistry metricsRegistry = service.getMetricsRegistry();
+        ImageOutputBuffer os = ImageOutputBuffer.acquire();
+        try {
+            if (image.getWidth() > width) {
+                long timer = System.currentTimeMillis();
+                // fit into the target width, keeping the aspect ratio
+                BufferedImage scaled = Thumbnails.of(image).size(width, image.getHeight())
+                        .asBufferedImage();
+                metricsRegistry.recordTime(MetricsRegistry.SCALE, System.currentTimeMillis()
+                        - timer);
+                image.flush();
+                image = scaled;
+            }
+            long timer = System.currentTimeMillis();
+            pageImageEncoder.encode(image, os);
+            metricsRegistry.recordTime(MetricsRegistry.ENCODE, System.currentTimeMillis() - timer);
+            metricsRegistry.increment(MetricsRegistry.ENCODE + ".bytesOut", os.size());
+            metricsRegistry.increment("pageImages.rendered", 1);
+
+            File pageImage = key != null ? pageImageCache.put(key, os.getInputStream()) : null;
+            if (pageImage == null) {
+                // the cache is disabled or the entry cannot be stored: use a temporary file
+                pageImage = service.createTempFile();
+                OutputStream out = new FileOutputStream(pageImage);
+                try {
+                    os.writeTo(out);
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+            }
+            return pageImage;
+        } finally {
+            image.flush();
+            ImageOutputBuffer.release(os);
+        }
+    }
+
+    void setMaxPageImageWidth(int maxPageImageWidth) {
+        this.maxPageImageWidth = maxPageImageWidth;
+    }
+
+    void setPageImageCache(FileCache pageImageCache) {
+        this.pageImageCache = pageImageCache;
+    }
+
+    void setPageImageEncoder(ThumbnailEncoder pageImageEncoder) {
+        this.pageImageEncoder = pageImageEncoder;
+    }
+
+    void setPageImageWidthStep(int pageImageWidthStep) {
+        this.pageImageWidthStep = pageImageWidthStep;
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFTextStripper;
+
+/**
+ * Per-page text of a document, extracted once from the PDF during the derivative creation and stored next to the document view, which is
+ * used for searching the document on the server side instead of embedding all characters into the SWF view. The serialized form is a
+ * GZIP-compressed UTF-8 text with each page terminated by the form feed character.
+ */
+public class PageTextIndex {
+
+    /**
+     * A single match of the searched text.
+     */
+    public static class Hit {
+
+        private final int page;
+
+        private final int position;
+
+        private final String snippet;
+
+        Hit(int page, int position, String snippet) {
+            super();
+            this.page = page;
+            this.position = position;
+            this.snippet = snippet;
+        }
+
+        /**
+         * Returns the number of the page (starting from 1) the match is found on.
+         *
+         * @return the number of the page (starting from 1) the match is found on
+         */
+        public int getPage() {
+            return page;
+        }
+
+        /**
+         * Returns the character offset of the match in the normalized text of the page.
+         *
+         * @return the character offset of the match in the normalized text of the page
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the text around the match.
+         *
+         * @return the text around the match
+         */
+        public String getSnippet() {
+            return snippet;
+        }
+    }
+
+    /**
+     * The version of the text extraction and of the serialized form; it is a part of the converter fingerprint of the stored indexes.
+     */
+    public static final String FORMAT_VERSION = "1";
+
+    /**
+     * The MIME type of the serialized index.
+     */
+    public static final String MIME_TYPE = "application/x-doc-viewer-text-index";
+
+    private static final char PAGE_END = '\f';
+
+    private static final int SNIPPET_CONTEXT = 40;
+
+    /**
+     * Extracts the text of each page of the specified PDF document. The document stream data is kept in a scratch file instead of the
+     * heap, as the whole document is read.
+     *
+     * @param pdfFile
+     *            the PDF document
+     * @return the per-page text index of the document
+     * @throws IOException
+     *             in case the document cannot be read
+     */
+    public static PageTextIndex extract(File pdfFile) throws IOException {
+        File scratch = File.createTempFile("doc-viewer-text-", ".scratch");
+        PDDocument document = null;
+        try {
+            document = PDDocument.load(pdfFile, new RandomAccessFile(scratch, "rw"));
+            int pageCount = document.getNumberOfPages();
+            List<String> pages = new ArrayList<String>(pageCount);
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setSortByPosition(true);
+            for (int i = 1; i <= pageCount; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                pages.add(normalize(stripper.getText(document)));
+            }
+            return new PageTextIndex(pages);
+        } finally {
+            if (document != null) {
+                document.close();
+            }
+            FileUtils.deleteQuietly(scratch);
+        }
+    }
+
+    /**
+     * Collapses the whitespace of the text into single spaces, so that the matches do not depend on the line breaks of the page layout.
+     */
+    private static String normalize(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = out.length() > 0;
+            } else {
+                if (space) {
+                    out.append(' ');
+                    space = false;
+                }
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads the index from its serialized form.
+     *
+     * @param is
+     *            the stream with the serialized index; it is not closed by this method
+     * @return the read index
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public static PageTextIndex read(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(is),
+                "UTF-8"));
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            text.append(buffer, 0, n);
+        }
+        List<String> pages = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == PAGE_END) {
+                pages.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return new PageTextIndex(pages);
+    }
+
+    private final List<String> pages;
+
+    // the lower-cased page text, used for the case-insensitive matching
+    private final List<String> searchablePages;
+
+    PageTextIndex(List<String> pages) {
+        super();
+        this.pages = Collections.unmodifiableList(pages);
+        searchablePages = new ArrayList<String>(pages.size());
+        for (String page : pages) {
+            // the per-character lower casing keeps the offsets of the original text
+            char[] chars = page.toCharArray();
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(chars[i]);
+            }
+            searchablePages.add(new String(chars));
+        }
+    }
+
+    /**
+     * Returns the number of pages in the index.
+     *
+     * @return the number of pages in the index
+     */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Returns the text of the specified page.
+     *
+     * @param pageNumber
+     *            the number of the page (starting from 1)
+     * @return the text of the specified page
+     */
+    public String getPageText(int pageNumber) {
+        return pages.get(pageNumber - 1);
+    }
+
+    /**
+     * Searches the document for the specified text, ignoring the case and the differences in the whitespace.
+     *
+     * @param query
+     *            the text to search for
+     * @param maxHits
+     *            the maximum number of returned hits; zero or less means no limit
+     * @return the list of the matches in the order of pages and their positions on the page
+     */
+    public List<Hit> search(String query, int maxHits) {
+        char[] chars = normalize(StringUtils.defaultString(query)).toCharArray();
+        if (chars.length == 0) {
+            return Collections.emptyList();
+        }
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        String term = new String(chars);
+
+        List<Hit> hits = new ArrayList<Hit>();
+        for (int page = 0; page < searchablePages.size(); page++) {
+            String text = searchablePages.get(page);
+            for (int pos = text.indexOf(term); pos != -1; pos = text.indexOf(term, pos
+                    + term.length())) {
+                hits.add(new Hit(page + 1, pos,
+                        getSnippet(pages.get(page), pos, term.length())));
+                if (maxHits > 0 && hits.size() >= maxHits) {
+                    return hits;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private String getSnippet(String text, int position, int length) {
+        int start = Math.max(position - SNIPPET_CONTEXT, 0);
+        int end = Math.min(position + length + SNIPPET_CONTEXT, text.length());
+        return (start > 0 ? "..." : "") + text.substring(start, end)
+                + (end < text.length() ? "..." : "");
+    }
+
+    /**
+     * Writes the serialized form of the index into the specified stream.
+     *
+     * @param os
+     *            the target stream; it is not closed by this method
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public void write(OutputStream os) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(os);
+        Writer writer = new OutputStreamWriter(gzip, "UTF-8");
+        for (String page : pages) {
+            writer.write(page);
+            writer.write(PAGE_END);
+        }
+        writer.flush();
+        gzip.finish();
+    }
+}
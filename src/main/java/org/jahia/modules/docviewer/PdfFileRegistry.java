@@ -0,0 +1,218 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Keeps the PDF files of the recently used document versions, so that the page count, the page images and the view pages of a document
+ * are produced from a single PDF file instead of fetching (and converting) the document again for each page. Concurrent requests for the
+ * same document version share a single loading. The files are used only within {@link #execute(String, Callable, Callback)}; the files
+ * of the evicted entries are disposed as soon as they are no longer used.
+ */
+public class PdfFileRegistry {
+
+    /**
+     * Callback, which uses the PDF file of a document version.
+     */
+    public interface Callback<T> {
+
+        /**
+         * Uses the PDF file, which should be only read and not modified or deleted.
+         *
+         * @param pdfFile
+         *            the PDF file of the document version
+         * @return the result of the callback
+         * @throws Exception
+         *             in case of an error
+         */
+        T doWithPdfFile(File pdfFile) throws Exception;
+    }
+
+    private static class Entry {
+
+        private boolean evicted;
+
+        private final FutureTask<File> file;
+
+        private int references;
+
+        Entry(Callable<File> loader) {
+            super();
+            file = new FutureTask<File>(loader);
+        }
+    }
+
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evict(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private int maxEntries = 16;
+
+    /**
+     * Disposes all entries, which are not in use; the entries in use are disposed when they are no longer used.
+     */
+    public void clear() {
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (entries) {
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                evicted.add(iterator.next());
+                iterator.remove();
+            }
+            for (Entry entry : evicted) {
+                evict(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the PDF file, which is no longer used. Deletes the file by default.
+     *
+     * @param pdfFile
+     *            the PDF file to be removed
+     */
+    protected void dispose(File pdfFile) {
+        FileUtils.deleteQuietly(pdfFile);
+    }
+
+    private void evict(Entry entry) {
+        entry.evicted = true;
+        if (entry.references == 0) {
+            dispose(entry);
+        }
+    }
+
+    private void dispose(Entry entry) {
+        try {
+            File pdfFile = entry.file.isDone() ? entry.file.get() : null;
+            if (pdfFile != null) {
+                dispose(pdfFile);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the file was not loaded
+        }
+    }
+
+    /**
+     * Passes the PDF file of the specified document version to the callback, loading it with the provided loader if it is not known yet.
+     * The callback is not called if the loader returns <code>null</code>.
+     *
+     * @param key
+     *            the key of the document version
+     * @param loader
+     *            returns the PDF file of the document version, which is then owned by this registry, or <code>null</code> if the
+     *            document cannot be converted into a PDF
+     * @param callback
+     *            the callback, which uses the PDF file
+     * @return the result of the callback or <code>null</code> if there is no PDF file
+     * @throws Exception
+     *             in case the PDF file cannot be loaded or the callback fails
+     */
+    public <T> T execute(String key, Callable<File> loader, Callback<T> callback) throws Exception {
+        Entry entry;
+        boolean load = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(loader);
+                entries.put(key, entry);
+                load = true;
+            }
+            entry.references++;
+        }
+
+        boolean loaded = false;
+        try {
+            if (load) {
+                entry.file.run();
+            }
+            File pdfFile = entry.file.get();
+            loaded = pdfFile != null;
+            return loaded ? callback.doWithPdfFile(pdfFile) : null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            synchronized (entries) {
+                if (!loaded && entries.get(key) == entry) {
+                    // the next request retries the loading
+                    entries.remove(key);
+                    entry.evicted = true;
+                }
+                entry.references--;
+                if (entry.evicted && entry.references == 0) {
+                    dispose(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of the kept PDF files. The files, which are in use, are kept in addition to them until they are released.
+     *
+     * @param maxEntries
+     *            the maximum number of the kept PDF files
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+}
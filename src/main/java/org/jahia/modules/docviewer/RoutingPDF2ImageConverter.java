@@ -0,0 +1,790 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * {@link PDF2ImageConverter}, which routes each document to one of the configured rendering engines (e.g. ICEpdf and PDFBox). The
+ * document is classified by a cheap scan of its raw bytes (file size, number of pages, embedded images and fonts) and sent to the engine
+ * with the lowest average (exponentially weighted) render time, measured for documents of that class. Until enough samples are
+ * collected, the configured preferred engine per class is used; every N-th request of a class is sent to another engine to keep the
+ * measurements up to date. The render times are measured separately for full-size pages, thumbnails and pages of multi-page renders. If
+ * the selected engine fails or does not finish in time, the document is rendered by the next engine. As the engines ignore interrupts,
+ * an engine, which did not finish in time, keeps rendering in the background; the number of such renders is capped, and when the cap is
+ * reached, the documents are rendered in the calling thread without a timeout.
+ */
+public class RoutingPDF2ImageConverter implements PDF2ImageConverter, InitializingBean,
+        DisposableBean {
+
+    /**
+     * The class of a PDF document, as detected from its raw bytes.
+     */
+    public enum DocumentClass {
+        /**
+         * Very large documents, which should be rendered with a bounded memory footprint.
+         */
+        LARGE,
+        /**
+         * Scanned documents: mostly one or more images per page and (almost) no embedded fonts.
+         */
+        SCANNED,
+        /**
+         * Text documents with embedded fonts and few images.
+         */
+        TEXT,
+        /**
+         * Documents with neither many images nor embedded fonts, usually vector drawings.
+         */
+        VECTOR
+    }
+
+    /**
+     * The kind of a render request; the render times of an engine are measured per kind.
+     */
+    public enum RequestType {
+        /**
+         * A single page in its natural size.
+         */
+        PAGE,
+        /**
+         * A page of a multi-page render; the time is measured per page, including the amortized document opening.
+         */
+        PAGES,
+        /**
+         * A single page, scaled to fit into a bounding box.
+         */
+        THUMBNAIL
+    }
+
+    private static class EngineStats {
+
+        private double average;
+
+        private long samples;
+
+        synchronized double getAverage() {
+            return average;
+        }
+
+        synchronized long getSamples() {
+            return samples;
+        }
+
+        synchronized void update(long duration, double smoothing) {
+            average = samples == 0 ? duration : average + smoothing * (duration - average);
+            samples++;
+        }
+    }
+
+    /**
+     * A render, which is executed in a separate thread, so that the caller can stop waiting for it.
+     */
+    private class Render<T> implements Callable<T> {
+
+        private final Callable<T> task;
+
+        // 0 - running, 1 - finished, 2 - abandoned by the caller
+        private final AtomicInteger state = new AtomicInteger();
+
+        Render(Callable<T> task) {
+            super();
+            this.task = task;
+        }
+
+        /**
+         * Marks the render as abandoned by the caller, so that it is counted as an orphan until it finishes.
+         */
+        void abandon() {
+            orphans.incrementAndGet();
+            if (!state.compareAndSet(0, 2)) {
+                // finished in the meantime
+                orphans.decrementAndGet();
+            }
+        }
+
+        public T call() throws Exception {
+            try {
+                return task.call();
+            } finally {
+                if (!state.compareAndSet(0, 1)) {
+                    orphans.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the pages, rendered by an engine in a separate thread, over to the calling thread, one page at a time.
+     */
+    private static class PageHandOff implements PageImageCallback {
+
+        private static final Object END = new Object();
+
+        private volatile boolean abandoned;
+
+        private final BlockingQueue<Object> pages = new ArrayBlockingQueue<Object>(1);
+
+        void abandon() {
+            abandoned = true;
+            pages.clear();
+        }
+
+        void end() throws InterruptedException {
+            offer(END);
+        }
+
+        private void offer(Object item) throws InterruptedException {
+            while (!pages.offer(item, 1, TimeUnit.SECONDS)) {
+                if (abandoned) {
+                    // stop the engine as early as possible, it is not waited for anymore
+                    throw new InterruptedException("Rendering abandoned");
+                }
+            }
+        }
+
+        public void pageRendered(int pageNumber, BufferedImage image) throws Exception {
+            if (abandoned) {
+                throw new InterruptedException("Rendering abandoned");
+            }
+            offer(new Object[] { pageNumber, image });
+        }
+
+        /**
+         * Returns the next rendered page as an array of the page number and the image, {@link #END} if the engine is done or
+         * <code>null</code> if no page was rendered within the specified time.
+         */
+        Object poll(long timeout) throws InterruptedException {
+            return pages.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final Pattern FONT_FILE = Pattern.compile("/FontFile[23]?\\b");
+
+    private static final Pattern IMAGE = Pattern.compile("/Subtype\\s*/Image\\b");
+
+    private static Logger logger = LoggerFactory.getLogger(RoutingPDF2ImageConverter.class);
+
+    private static final Pattern PAGE = Pattern.compile("/Type\\s*/Page\\b(?!s)");
+
+    private static final int SCAN_OVERLAP = 64;
+
+    private Map<String, DocumentClass> classifications = new LinkedHashMap<String, DocumentClass>(
+            64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DocumentClass> eldest) {
+            return size() > 100;
+        }
+    };
+
+    private Map<String, PDF2ImageConverter> engines = new LinkedHashMap<String, PDF2ImageConverter>();
+
+    private ThreadPoolExecutor executor;
+
+    private int explorationInterval = 20;
+
+    private long largeDocumentSize = 50L * 1024 * 1024;
+
+    private int maxOrphans = 4;
+
+    private int maxThreads = 16;
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NONE;
+
+    private int minSamples = 5;
+
+    private AtomicInteger orphans = new AtomicInteger();
+
+    private Map<DocumentClass, String> preferredEngines = new HashMap<DocumentClass, String>();
+
+    private ConcurrentMap<DocumentClass, AtomicLong> requests = new ConcurrentHashMap<DocumentClass, AtomicLong>();
+
+    private long renderTimeout = 2 * 60 * 1000L;
+
+    private int scanLimit = 4 * 1024 * 1024;
+
+    private double smoothing = 0.2;
+
+    private ConcurrentMap<String, EngineStats> stats = new ConcurrentHashMap<String, EngineStats>();
+
+    public void afterPropertiesSet() throws Exception {
+        if (engines.isEmpty()) {
+            throw new IllegalArgumentException("At least one rendering engine has to be configured");
+        }
+        for (DocumentClass documentClass : DocumentClass.values()) {
+            requests.put(documentClass, new AtomicLong());
+        }
+        // no queue: a render either starts immediately or is executed in the calling thread
+        executor = new ThreadPoolExecutor(0, Math.max(maxThreads, 1), 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-viewer-render-routing-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        metricsRegistry.registerGauge("routing.orphans", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return orphans.get();
+            }
+        });
+    }
+
+    /**
+     * Classifies the specified PDF document by scanning its raw bytes (up to the configured scan limit) for page, image and embedded font
+     * objects. Objects, compressed into object streams, are not visible to the scan; the classification is a heuristic.
+     *
+     * @param pdfFile
+     *            the PDF document file
+     * @return the class of the document
+     * @throws IOException
+     *             in case the file cannot be read
+     */
+    public DocumentClass classify(File pdfFile) throws IOException {
+        String key = pdfFile.getPath() + '|' + pdfFile.length() + '|' + pdfFile.lastModified();
+        synchronized (classifications) {
+            DocumentClass known = classifications.get(key);
+            if (known != null) {
+                return known;
+            }
+        }
+
+        DocumentClass documentClass = null;
+        if (pdfFile.length() > largeDocumentSize) {
+            documentClass = DocumentClass.LARGE;
+        } else {
+            int pages = 0;
+            int images = 0;
+            int fonts = 0;
+            InputStream is = new BufferedInputStream(new FileInputStream(pdfFile));
+            try {
+                byte[] buffer = new byte[256 * 1024];
+                int carry = 0;
+                int total = 0;
+                int read;
+                while (total < scanLimit
+                        && (read = is.read(buffer, carry, buffer.length - carry)) > 0) {
+                    total += read;
+                    int length = carry + read;
+                    // PDF syntax is ASCII; ISO-8859-1 maps each byte to a single char
+                    String chunk = new String(buffer, 0, length, "ISO-8859-1");
+                    pages += count(PAGE, chunk, carry);
+                    images += count(IMAGE, chunk, carry);
+                    fonts += count(FONT_FILE, chunk, carry);
+                    // keep the tail to find the tokens spanning the chunk boundary
+                    carry = Math.min(SCAN_OVERLAP, length);
+                    System.arraycopy(buffer, length - carry, buffer, 0, carry);
+                }
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            if (images > 0 && images >= pages && fonts <= Math.max(1, pages / 10)) {
+                documentClass = DocumentClass.SCANNED;
+            } else if (fonts > 0) {
+                documentClass = DocumentClass.TEXT;
+            } else {
+                documentClass = DocumentClass.VECTOR;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Classified {} as {} (pages: {}, images: {}, fonts: {})",
+                        new Object[] { pdfFile, documentClass, pages, images, fonts });
+            }
+        }
+
+        synchronized (classifications) {
+            classifications.put(key, documentClass);
+        }
+
+        return documentClass;
+    }
+
+    private int count(Pattern pattern, String chunk, int carry) {
+        int count = 0;
+        Matcher m = pattern.matcher(chunk);
+        while (m.find()) {
+            // matches, lying completely in the carried tail, were counted with the previous chunk
+            if (m.end() > carry) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T execute(String engineName, DocumentClass documentClass, RequestType type,
+            boolean learn, Callable<T> task) throws Exception {
+        long timer = System.currentTimeMillis();
+        Render<T> render = new Render<T>(task);
+        Future<T> future = submit(render);
+        T result = null;
+        if (future == null) {
+            result = task.call();
+        } else {
+            try {
+                result = future.get(renderTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // the engines ignore interrupts: leave the render to finish in the background
+                render.abandon();
+                throw new ConversionTimeoutException("Rendering with engine " + engineName
+                        + " did not finish in " + renderTimeout + " ms", renderTimeout);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            } catch (InterruptedException e) {
+                render.abandon();
+                throw e;
+            }
+        }
+        if (learn) {
+            getStats(documentClass, engineName, type).update(System.currentTimeMillis() - timer,
+                    smoothing);
+        }
+        return result;
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber) throws Exception {
+        return getImageOfPage(pdfFile, pageNumber, 0, 0);
+    }
+
+    public BufferedImage getImageOfPage(final File pdfFile, final int pageNumber,
+            final int maxWidth, final int maxHeight) throws Exception {
+        DocumentClass documentClass = classify(pdfFile);
+        RequestType type = maxWidth > 0 || maxHeight > 0 ? RequestType.THUMBNAIL
+                : RequestType.PAGE;
+        Exception failure = null;
+        for (String engineName : route(documentClass, type)) {
+            final PDF2ImageConverter engine = engines.get(engineName);
+            try {
+                return execute(engineName, documentClass, type, true,
+                        new Callable<BufferedImage>() {
+                            public BufferedImage call() throws Exception {
+                                return engine.getImageOfPage(pdfFile, pageNumber, maxWidth,
+                                        maxHeight);
+                            }
+                        });
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                failure = onFailure(engineName, documentClass, type, pdfFile, e, failure);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Renders the page of a document stream with the first configured engine, as the stream can neither be classified in advance nor
+     * re-read by another engine.
+     */
+    public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
+            throws Exception {
+        return engines.values().iterator().next().getImageOfPage(pdfInputStream, pageNumber);
+    }
+
+    public void getImagesOfPages(final File pdfFile, int fromPage, final int toPage,
+            final PageImageCallback callback) throws Exception {
+        DocumentClass documentClass = classify(pdfFile);
+        final int[] next = new int[] { fromPage };
+        final Exception[] callbackFailure = new Exception[1];
+        PageImageCallback tracker = new PageImageCallback() {
+            public void pageRendered(int pageNumber, BufferedImage image) throws Exception {
+                try {
+                    callback.pageRendered(pageNumber, image);
+                } catch (Exception e) {
+                    callbackFailure[0] = e;
+                    throw e;
+                }
+                next[0] = pageNumber + 1;
+            }
+        };
+        Exception failure = null;
+        for (String engineName : route(documentClass, RequestType.PAGES)) {
+            long timer = System.currentTimeMillis();
+            int first = next[0];
+            try {
+                // a fallback engine continues with the first page, not yet passed to the callback
+                renderPages(engineName, pdfFile, first, toPage, tracker);
+                if (next[0] > first) {
+                    getStats(documentClass, engineName, RequestType.PAGES).update(
+                            (System.currentTimeMillis() - timer) / (next[0] - first), smoothing);
+                }
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                if (callbackFailure[0] != null) {
+                    throw callbackFailure[0];
+                }
+                failure = onFailure(engineName, documentClass, RequestType.PAGES, pdfFile, e,
+                        failure);
+            }
+        }
+        throw failure;
+    }
+
+    public int getNumberOfPages(final File pdfFile) throws Exception {
+        DocumentClass documentClass = classify(pdfFile);
+        Exception failure = null;
+        for (String engineName : route(documentClass, RequestType.PAGE)) {
+            final PDF2ImageConverter engine = engines.get(engineName);
+            try {
+                return execute(engineName, documentClass, RequestType.PAGE, false,
+                        new Callable<Integer>() {
+                            public Integer call() throws Exception {
+                                return engine.getNumberOfPages(pdfFile);
+                            }
+                        });
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                failure = onFailure(engineName, documentClass, RequestType.PAGE, pdfFile, e,
+                        failure);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Renders the pages with the specified engine in a separate thread and passes them to the callback in the calling thread, as long as
+     * the engine delivers each next page in time.
+     */
+    private void renderPages(String engineName, final File pdfFile, final int fromPage,
+            final int toPage, PageImageCallback callback) throws Exception {
+        final PDF2ImageConverter engine = engines.get(engineName);
+        final PageHandOff handOff = new PageHandOff();
+        Render<Object> render = new Render<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    engine.getImagesOfPages(pdfFile, fromPage, toPage, handOff);
+                } finally {
+                    handOff.end();
+                }
+                return null;
+            }
+        });
+        Future<Object> future = submit(render);
+        if (future == null) {
+            engine.getImagesOfPages(pdfFile, fromPage, toPage, callback);
+            return;
+        }
+
+        boolean done = false;
+        try {
+            Object page;
+            while ((page = handOff.poll(renderTimeout)) != PageHandOff.END) {
+                if (page == null) {
+                    throw new ConversionTimeoutException("Rendering with engine " + engineName
+                            + " did not deliver a page in " + renderTimeout + " ms",
+                            renderTimeout);
+                }
+                Object[] rendered = (Object[]) page;
+                callback.pageRendered((Integer) rendered[0], (BufferedImage) rendered[1]);
+            }
+            done = true;
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            if (!done) {
+                // stops the engine with its next page; until then it is counted as an orphan
+                handOff.abandon();
+                render.abandon();
+            }
+        }
+    }
+
+    private EngineStats getStats(DocumentClass documentClass, String engineName,
+            RequestType type) {
+        String key = documentClass + "." + engineName + "." + type.name().toLowerCase();
+        EngineStats engineStats = stats.get(key);
+        if (engineStats == null) {
+            final EngineStats created = new EngineStats();
+            engineStats = stats.putIfAbsent(key, created);
+            if (engineStats == null) {
+                engineStats = created;
+                metricsRegistry.registerGauge("routing." + key + ".average",
+                        new MetricsRegistry.Gauge() {
+                            public long getValue() {
+                                return (long) created.getAverage();
+                            }
+                        });
+            }
+        }
+        return engineStats;
+    }
+
+    private Exception onFailure(String engineName, DocumentClass documentClass, RequestType type,
+            File pdfFile, Exception e, Exception previous) {
+        // penalize the engine, so that it is not selected for such requests for a while
+        getStats(documentClass, engineName, type).update(renderTimeout, smoothing);
+        metricsRegistry.increment("routing.fallbacks", 1);
+        logger.warn("Rendering engine {} failed for document {} ({}): {}", new Object[] {
+                engineName, pdfFile, documentClass, e.getMessage() });
+        logger.debug(e.getMessage(), e);
+        return previous != null ? previous : e;
+    }
+
+    /**
+     * Returns the names of the engines in the order they should be tried for a request of the specified type and a document of the
+     * specified class: the selected engine first, followed by the fallbacks.
+     *
+     * @param documentClass
+     *            the class of the document
+     * @param type
+     *            the kind of the render request
+     * @return the names of the engines in the order they should be tried
+     */
+    protected List<String> route(DocumentClass documentClass, RequestType type) {
+        List<String> order = new ArrayList<String>(engines.keySet());
+        String preferred = preferredEngines.get(documentClass);
+        String selected = preferred != null && engines.containsKey(preferred) ? preferred
+                : order.get(0);
+
+        boolean measured = true;
+        for (String engineName : order) {
+            measured = measured
+                    && getStats(documentClass, engineName, type).getSamples() >= minSamples;
+        }
+        if (measured) {
+            double best = Double.MAX_VALUE;
+            for (String engineName : order) {
+                double average = getStats(documentClass, engineName, type).getAverage();
+                if (average < best) {
+                    best = average;
+                    selected = engineName;
+                }
+            }
+        }
+
+        long request = requests.get(documentClass).incrementAndGet();
+        if (order.size() > 1 && explorationInterval > 0 && request % explorationInterval == 0) {
+            // explore: give another engine a chance to prove it became faster for this class
+            int index = (order.indexOf(selected) + 1 + (int) (request / explorationInterval)
+                    % (order.size() - 1)) % order.size();
+            selected = order.get(index);
+        }
+
+        order.remove(selected);
+        order.add(0, selected);
+        metricsRegistry.increment("routing." + documentClass + "." + selected, 1);
+
+        return order;
+    }
+
+    /**
+     * Sets the rendering engines by their names. The first engine is the default one.
+     *
+     * @param engines
+     *            the rendering engines by their names
+     */
+    public void setEngines(Map<String, PDF2ImageConverter> engines) {
+        this.engines = engines;
+    }
+
+    /**
+     * Sets every how many requests of a document class another engine is tried to keep its measurements up to date. Zero disables the
+     * exploration.
+     *
+     * @param explorationInterval
+     *            every how many requests of a document class another engine is tried
+     */
+    public void setExplorationInterval(int explorationInterval) {
+        this.explorationInterval = explorationInterval;
+    }
+
+    /**
+     * Sets the file size in bytes, starting from which the document is classified as {@link DocumentClass#LARGE} without scanning it.
+     *
+     * @param largeDocumentSize
+     *            the file size in bytes of large documents
+     */
+    public void setLargeDocumentSize(long largeDocumentSize) {
+        this.largeDocumentSize = largeDocumentSize;
+    }
+
+    /**
+     * Sets the maximum number of renders, which did not finish in time and still run in the background. When it is reached, the documents
+     * are rendered in the calling thread without a timeout until some of these renders finish.
+     *
+     * @param maxOrphans
+     *            the maximum number of timed out renders, still running in the background
+     */
+    public void setMaxOrphans(int maxOrphans) {
+        this.maxOrphans = maxOrphans;
+    }
+
+    /**
+     * Sets the maximum number of threads, the renders are executed in. When all of them are busy, the documents are rendered in the
+     * calling thread without a timeout.
+     *
+     * @param maxThreads
+     *            the maximum number of render threads
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NONE;
+    }
+
+    /**
+     * Sets the number of render time measurements per engine and document class, required before the engines are selected by their
+     * measured render times instead of the configured preferences.
+     *
+     * @param minSamples
+     *            the number of required render time measurements per engine and document class
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Sets the names of the engines, which are used for the document classes until enough render times are measured.
+     *
+     * @param preferredEngines
+     *            the names of the preferred engines by document class
+     */
+    public void setPreferredEngines(Map<DocumentClass, String> preferredEngines) {
+        this.preferredEngines = preferredEngines;
+    }
+
+    /**
+     * Sets the time in milliseconds an engine has to render a page before the next engine is tried.
+     *
+     * @param renderTimeout
+     *            the render timeout in milliseconds
+     */
+    public void setRenderTimeout(long renderTimeout) {
+        this.renderTimeout = renderTimeout;
+    }
+
+    /**
+     * Sets the maximum number of bytes of a document, which are scanned to classify it.
+     *
+     * @param scanLimit
+     *            the maximum number of bytes to scan
+     */
+    public void setScanLimit(int scanLimit) {
+        this.scanLimit = scanLimit;
+    }
+
+    /**
+     * Sets the weight (0-1) of a new render time measurement in the average render time of an engine.
+     *
+     * @param smoothing
+     *            the weight of a new measurement
+     */
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * Starts the render in a separate thread or returns <code>null</code> if the render has to be executed in the calling thread, because
+     * too many timed out renders are still running or no thread is available.
+     */
+    private <T> Future<T> submit(Render<T> render) {
+        if (orphans.get() >= maxOrphans) {
+            return null;
+        }
+        try {
+            return executor.submit(render);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(128);
+        for (Map.Entry<String, EngineStats> entry : new TreeMap<String, EngineStats>(stats)
+                .entrySet()) {
+            out.append(out.length() > 0 ? ", " : "").append(entry.getKey()).append(": ")
+                    .append(Math.round(entry.getValue().getAverage())).append(" ms (")
+                    .append(entry.getValue().getSamples()).append(")");
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jahia.api.Constants;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates, stores and searches the per-page text index of the documents for the {@link DocumentViewService}. The index is stored in the
+ * {@link DocumentViewService#TEXT_INDEX_NODE} child node of the document; the recently searched indexes are kept in memory.
+ */
+class TextIndexStore {
+
+    private static Logger logger = LoggerFactory.getLogger(TextIndexStore.class);
+
+    private ConcurrentMap<String, FutureTask<String>> pendingTextIndexes = new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private final DocumentViewService service;
+
+    private Map<String, PageTextIndex> textIndexes = new LinkedHashMap<String, PageTextIndex>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PageTextIndex> eldest) {
+            return size() > 50;
+        }
+    };
+
+    TextIndexStore(DocumentViewService service) {
+        super();
+        this.service = service;
+    }
+
+    private String createTextIndex(final JCRNodeWrapper fileNode) throws RepositoryException {
+        if (!fileNode.hasNode(DocumentViewService.TEXT_INDEX_NODE)) {
+            try {
+                final String sourceFingerprint = DerivativeFingerprints
+                        .getSourceFingerprint(fileNode);
+                service.executeWithPdfFile(fileNode, Priority.INTERACTIVE,
+                        new PdfFileRegistry.Callback<Boolean>() {
+                            public Boolean doWithPdfFile(File pdfFile) throws Exception {
+                                fileNode.getSession().checkout(fileNode);
+                                store(fileNode, pdfFile, sourceFingerprint, Priority.INTERACTIVE);
+                                fileNode.getSession().save();
+                                return Boolean.TRUE;
+                            }
+                        });
+            } catch (RepositoryException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RepositoryException("Unable to create the text index of the document "
+                        + fileNode.getPath(), e);
+            }
+        }
+
+        return fileNode.hasNode(DocumentViewService.TEXT_INDEX_NODE) ? fileNode.getNode(
+                DocumentViewService.TEXT_INDEX_NODE).getIdentifier() : null;
+    }
+
+    /**
+     * Returns the fingerprint of the text index extraction configuration.
+     *
+     * @return the fingerprint of the text index extraction configuration
+     */
+    String getConverterFingerprint() {
+        return DigestUtils.shaHex("textIndex|" + PageTextIndex.FORMAT_VERSION);
+    }
+
+    /**
+     * Returns the text index node of the specified document, creating it if the document has none yet and the text index is enabled.
+     * Concurrent requests for the same document share a single extraction; a failed extraction is not retried for the configured retry
+     * interval. The index is stored in a system session, as the session of the visitor could be not allowed to write; the returned node
+     * is read in the session of the provided document node.
+     *
+     * @param fileNode
+     *            the document node
+     * @return the text index node of the specified document or <code>null</code> if it does not exist and cannot be created
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    JCRNodeWrapper getTextIndex(JCRNodeWrapper fileNode) throws RepositoryException {
+        if (fileNode.hasNode(DocumentViewService.TEXT_INDEX_NODE)) {
+            return fileNode.getNode(DocumentViewService.TEXT_INDEX_NODE);
+        }
+        String[] supportedDocumentFormats = service.getSupportedDocumentFormats();
+        if (!service.isTextIndex() || !service.isEnabled() || supportedDocumentFormats == null
+                || !fileNode.isNodeType(Constants.NT_FILE)
+                || !DocumentViewService.isMimeTypeGroup(fileNode.getFileContent()
+                        .getContentType(), supportedDocumentFormats)) {
+            return null;
+        }
+        final String key = service.getPendingViewKey(fileNode) + "/"
+                + DocumentViewService.TEXT_INDEX_NODE;
+        if (service.isViewCreationFailed(key)) {
+            return null;
+        }
+
+        final String identifier = fileNode.getIdentifier();
+        final String workspace = fileNode.getSession().getWorkspace().getName();
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                        new JCRCallback<String>() {
+                            public String doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                return createTextIndex(session.getNodeByIdentifier(identifier));
+                            }
+                        });
+            }
+        });
+        FutureTask<String> pending = pendingTextIndexes.putIfAbsent(key, task);
+        String indexIdentifier = null;
+        try {
+            if (pending == null) {
+                task.run();
+                pending = task;
+            }
+            indexIdentifier = pending.get();
+        } catch (Exception e) {
+            logger.error("Unable to create the text index of the document " + fileNode.getPath(),
+                    e);
+        } finally {
+            if (pending == task) {
+                pendingTextIndexes.remove(key, task);
+                service.setViewCreationFailed(key, indexIdentifier == null);
+            }
+        }
+
+        return indexIdentifier != null ? fileNode.getSession()
+                .getNodeByIdentifier(indexIdentifier) : null;
+    }
+
+    /**
+     * @see DocumentViewService#searchText(JCRNodeWrapper, String, int)
+     */
+    List<PageTextIndex.Hit> search(JCRNodeWrapper fileNode, String query, int maxHits)
+            throws RepositoryException {
+        JCRNodeWrapper indexNode = getTextIndex(fileNode);
+        if (indexNode == null || !indexNode.hasProperty(Constants.JCR_DATA)) {
+            return null;
+        }
+        String key = DerivativeFingerprints.getVersion(indexNode);
+        PageTextIndex index;
+        synchronized (textIndexes) {
+            index = textIndexes.get(key);
+        }
+        if (index == null) {
+            InputStream is = indexNode.getProperty(Constants.JCR_DATA).getBinary().getStream();
+            try {
+                index = PageTextIndex.read(is);
+            } catch (IOException e) {
+                logger.error("Unable to read the text index of the document " + fileNode.getPath(),
+                        e);
+                return null;
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            synchronized (textIndexes) {
+                textIndexes.put(key, index);
+            }
+        }
+        service.getMetricsRegistry().increment("textIndex.searches", 1);
+
+        return index.search(query, maxHits);
+    }
+
+    /**
+     * Extracts the per-page text of the PDF file and stores it as the text index of the specified document node. The changes are not
+     * saved.
+     *
+     * @param fileNode
+     *            the document node
+     * @param pdfFile
+     *            the PDF file of the document
+     * @param sourceFingerprint
+     *            the fingerprint of the document binary to be recorded on the index node
+     * @param priority
+     *            the priority of the conversion request
+     * @throws Exception
+     *             in case of an extraction or a JCR error
+     */
+    void store(JCRNodeWrapper fileNode, final File pdfFile, String sourceFingerprint,
+            Priority priority) throws Exception {
+        PageTextIndex index = service.executeStage(ConversionScheduler.STAGE_IMAGE, priority,
+                new Callable<PageTextIndex>() {
+                    public PageTextIndex call() throws Exception {
+                        long timer = System.currentTimeMillis();
+                        try {
+                            return PageTextIndex.extract(pdfFile);
+                        } finally {
+                            service.getMetricsRegistry().recordTime(MetricsRegistry.TEXT,
+                                    System.currentTimeMillis() - timer);
+                        }
+                    }
+                });
+        File indexFile = File.createTempFile("doc-viewer-text-index", ".gz");
+        OutputStream os = null;
+        InputStream is = null;
+        Binary indexBinary = null;
+        try {
+            os = new FileOutputStream(indexFile);
+            index.write(os);
+            os.close();
+            is = new BufferedInputStream(new FileInputStream(indexFile));
+            indexBinary = fileNode.getSession().getValueFactory().createBinary(is);
+
+            fileNode.getSession().checkout(fileNode);
+            if (!fileNode.isNodeType("jmix:documentTextIndex")) {
+                fileNode.addMixin("jmix:documentTextIndex");
+            }
+            JCRNodeWrapper indexNode = fileNode.hasNode(DocumentViewService.TEXT_INDEX_NODE)
+                    ? fileNode.getNode(DocumentViewService.TEXT_INDEX_NODE)
+                    : fileNode.addNode(DocumentViewService.TEXT_INDEX_NODE, "nt:resource");
+            if (indexNode.hasProperty(Constants.JCR_DATA)) {
+                indexNode.getProperty(Constants.JCR_DATA).remove();
+            }
+            indexNode.setProperty(Constants.JCR_DATA, indexBinary);
+            // a private MIME type keeps the index out of the repository full-text extraction
+            indexNode.setProperty(Constants.JCR_MIMETYPE, PageTextIndex.MIME_TYPE);
+            indexNode.setProperty(Constants.JCR_LASTMODIFIED, Calendar.getInstance());
+            DerivativeFingerprints.record(indexNode, sourceFingerprint, getConverterFingerprint());
+        } finally {
+            IOUtils.closeQuietly(os);
+            IOUtils.closeQuietly(is);
+            if (indexBinary != null) {
+                indexBinary.dispose();
+            }
+            FileUtils.deleteQuietly(indexFile);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Bounded in-memory cache of the view state of the document nodes (if the document is viewable, the versions of its SWF view, paged view
+ * and thumbnails, if it has a text index), which saves the JCR calls when the document views and thumbnails are rendered for long file
+ * listings. Entries are evicted in the least recently used order and invalidated by the {@link ViewStateCacheListener} on content
+ * changes; the time-to-live limits the effect of missed events.
+ * <p>
+ * Entries are kept by workspace and node path rather than by node identifier: the observation events carry paths, and a change of a
+ * derivative or content child, or of one of its properties, must invalidate the document node above it, while a removal or a move must
+ * invalidate a whole subtree. Both are prefix operations on the path, which an identifier key could only serve with a path lookup per
+ * event.
+ */
+public class ViewStateCache implements InitializingBean {
+
+    /**
+     * The cached view state of a document node.
+     */
+    public static class ViewState {
+
+        private final long created = System.currentTimeMillis();
+
+        private long pageCount;
+
+        private String pagesVersion;
+
+        private boolean textIndexed;
+
+        private ConcurrentMap<String, String> thumbnailVersions = new ConcurrentHashMap<String, String>();
+
+        private String viewVersion;
+
+        private boolean viewable;
+
+        /**
+         * Returns the number of pages of the paged SWF view.
+         *
+         * @return the number of pages of the paged SWF view or <code>0</code> if there is no paged view
+         */
+        public long getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * Returns the version of the paged SWF view.
+         *
+         * @return the version of the paged SWF view or <code>null</code> if there is no paged view
+         */
+        public String getPagesVersion() {
+            return pagesVersion;
+        }
+
+        /**
+         * Returns the version of the SWF view.
+         *
+         * @return the version of the SWF view or <code>null</code> if there is no SWF view
+         */
+        public String getViewVersion() {
+            return viewVersion;
+        }
+
+        /**
+         * Returns <code>true</code> if the document has a per-page text index, which can be searched on the server side.
+         *
+         * @return <code>true</code> if the document has a per-page text index
+         */
+        public boolean isTextIndexed() {
+            return textIndexed;
+        }
+
+        /**
+         * Returns <code>true</code> if the node is a file, which either already has an SWF view or has a MIME type, supported for creating
+         * it.
+         *
+         * @return <code>true</code> if the node is a viewable document
+         */
+        public boolean isViewable() {
+            return viewable;
+        }
+    }
+
+    // marks a thumbnail, which does not exist, in the thumbnail versions
+    private static final String NONE = "";
+
+    // the states being read after a miss by key: an invalidation of the key discards the state read
+    // concurrently with the change, without affecting the misses of other nodes
+    private Map<String, Object> computing = new HashMap<String, Object>();
+
+    private long hits;
+
+    private int maxEntries = 5000;
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NONE;
+
+    private long misses;
+
+    private Map<String, ViewState> states;
+
+    private long timeToLive = 5 * 60 * 1000L;
+
+    public void afterPropertiesSet() throws Exception {
+        states = new LinkedHashMap<String, ViewState>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ViewState> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        metricsRegistry.registerGauge("viewState.hits", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return getHits();
+            }
+        });
+        metricsRegistry.registerGauge("viewState.misses", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return getMisses();
+            }
+        });
+        metricsRegistry.registerGauge("viewState.entries", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return getEntryCount();
+            }
+        });
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        computing.clear();
+        states.clear();
+    }
+
+    private ViewState compute(JCRNodeWrapper node) throws RepositoryException {
+        ViewState state = new ViewState();
+        boolean hasView = node.isNodeType("jmix:swfDocumentView");
+        state.viewable = node.isNodeType(Constants.NT_FILE)
+                && (hasView || DocumentViewService.isMimeTypeGroup(node.getFileContent()
+                        .getContentType(), "pdf,word,rtf,excel,powerpoint,openoffice"));
+        if (hasView) {
+            if (node.hasNode(DocumentViewService.SWF_PAGES_NODE)) {
+                JCRNodeWrapper pagesNode = node.getNode(DocumentViewService.SWF_PAGES_NODE);
+                state.pageCount = pagesNode.hasProperty("j:pageCount") ? pagesNode.getProperty(
+                        "j:pageCount").getLong() : 0;
+                state.pagesVersion = DerivativeFingerprints.getVersion(pagesNode);
+            }
+            if (node.hasNode(DocumentViewService.SWF_VIEW_NODE)) {
+                state.viewVersion = DerivativeFingerprints.getVersion(node
+                        .getNode(DocumentViewService.SWF_VIEW_NODE));
+            }
+        }
+        state.textIndexed = node.isNodeType("jmix:documentTextIndex")
+                && node.hasNode(DocumentViewService.TEXT_INDEX_NODE);
+        return state;
+    }
+
+    /**
+     * Returns the view state of the specified node, reading it from the repository if it is not cached yet or the cached entry has
+     * expired.
+     *
+     * @param node
+     *            the node to get the view state for
+     * @return the view state of the specified node
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public ViewState get(JCRNodeWrapper node) throws RepositoryException {
+        String key = getKey(node.getSession().getWorkspace().getName(), node.getPath());
+        Object token = new Object();
+        synchronized (this) {
+            ViewState state = states.get(key);
+            if (state != null && (timeToLive <= 0 || state.created + timeToLive > System
+                    .currentTimeMillis())) {
+                hits++;
+                return state;
+            }
+            misses++;
+            computing.put(key, token);
+        }
+
+        // concurrent misses for the same node may compute the state twice, which is harmless
+        ViewState state = null;
+        try {
+            state = compute(node);
+        } finally {
+            synchronized (this) {
+                if (computing.get(key) == token) {
+                    computing.remove(key);
+                    if (state != null) {
+                        states.put(key, state);
+                    }
+                }
+            }
+        }
+
+        return state;
+    }
+
+    public synchronized int getEntryCount() {
+        return states.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    // keyed by path: the ancestors and the subtree of a changed node are found by their path prefix
+    private String getKey(String workspace, String path) {
+        return workspace + ":" + path;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the version of the specified thumbnail of the node, using the cached view state.
+     *
+     * @param node
+     *            the document node
+     * @param thumbnailName
+     *            the name of the thumbnail node
+     * @return the version of the specified thumbnail or <code>null</code> if the node has no such thumbnail
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public String getThumbnailVersion(JCRNodeWrapper node, String thumbnailName)
+            throws RepositoryException {
+        ViewState state = get(node);
+        String version = state.thumbnailVersions.get(thumbnailName);
+        if (version == null) {
+            version = node.hasNode(thumbnailName) ? DerivativeFingerprints.getVersion(node
+                    .getNode(thumbnailName)) : NONE;
+            state.thumbnailVersions.put(thumbnailName, version);
+        }
+
+        return version != NONE ? version : null;
+    }
+
+    /**
+     * Invalidates the entries of the specified node and of all its ancestors, e.g. when the node, its derivative or content child or one of
+     * their properties is changed.
+     *
+     * @param workspace
+     *            the workspace name
+     * @param path
+     *            the path of the changed node
+     */
+    public void invalidate(String workspace, String path) {
+        synchronized (this) {
+            if (states.isEmpty() && computing.isEmpty()) {
+                return;
+            }
+            for (String current = path; StringUtils.isNotEmpty(current); current = StringUtils
+                    .substringBeforeLast(current, "/")) {
+                String key = getKey(workspace, current);
+                states.remove(key);
+                computing.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the entries of the specified node, all its ancestors and all its descendants, e.g. when the node is removed or moved.
+     *
+     * @param workspace
+     *            the workspace name
+     * @param path
+     *            the path of the removed node
+     */
+    public void invalidateTree(String workspace, String path) {
+        String prefix = getKey(workspace, path) + "/";
+        synchronized (this) {
+            invalidate(workspace, path);
+            removeKeys(states, prefix);
+            removeKeys(computing, prefix);
+        }
+    }
+
+    private static void removeKeys(Map<String, ?> map, String prefix) {
+        for (Iterator<String> keys = map.keySet().iterator(); keys.hasNext();) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of the cached node states.
+     *
+     * @param maxEntries
+     *            the maximum number of the cached node states
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NONE;
+    }
+
+    /**
+     * Sets the time in milliseconds a cached node state is used for, even if no invalidation event is received. Zero or less means no
+     * expiration.
+     *
+     * @param timeToLive
+     *            the time-to-live of the cached node states in milliseconds
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.actions;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.jahia.bin.Action;
+import org.jahia.bin.ActionResult;
+import org.jahia.modules.docviewer.BackfillJob;
+import org.jahia.modules.docviewer.BackfillService;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.render.RenderContext;
+import org.jahia.services.render.Resource;
+import org.jahia.services.render.URLResolver;
+import org.json.JSONObject;
+
+/**
+ * Action that starts, stops or reports the status of the backfill job for the subtree of the current resource node. The command is passed
+ * in the <code>cmd</code> request parameter (<code>start</code>, <code>stop</code> or <code>status</code>); the optional
+ * <code>concurrency</code> and <code>maxRate</code> parameters override the configured defaults on start. Only the root user is allowed
+ * to execute this action.
+ */
+public class BackfillAction extends Action {
+
+    private BackfillService backfillService;
+
+    @Override
+    public ActionResult doExecute(HttpServletRequest req, RenderContext renderContext,
+            Resource resource, JCRSessionWrapper session, Map<String, List<String>> parameters,
+            URLResolver urlResolver) throws Exception {
+        if (!renderContext.getUser().isRoot()) {
+            renderContext.getResponse().sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+
+        String workspace = session.getWorkspace().getName();
+        String path = resource.getNode().getPath();
+        String cmd = req.getParameter("cmd");
+
+        BackfillJob job = null;
+        if ("start".equals(cmd)) {
+            job = backfillService.start(workspace, path,
+                    NumberUtils.toInt(req.getParameter("concurrency"), 0),
+                    NumberUtils.toDouble(req.getParameter("maxRate"), -1));
+        } else if ("stop".equals(cmd)) {
+            job = backfillService.stop(workspace, path);
+        } else {
+            job = backfillService.getJob(workspace, path);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("workspace", workspace);
+        result.put("path", path);
+        if (job != null) {
+            result.put("status", job.getStatus().toString());
+            result.put("position", job.getPosition());
+            result.put("total", job.getTotal());
+            result.put("resumedFrom", job.getResumedFrom());
+            result.put("converted", job.getConverted());
+            result.put("skipped", job.getSkipped());
+            result.put("failed", job.getFailed());
+            result.put("throughput", job.getThroughput());
+            result.put("eta", job.getEstimatedTimeRemaining());
+        } else {
+            result.put("status", "NONE");
+        }
+
+        return new ActionResult(HttpServletResponse.SC_OK, null, result);
+    }
+
+    public void setBackfillService(BackfillService backfillService) {
+        this.backfillService = backfillService;
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.actions;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.jahia.api.Constants;
+import org.jahia.bin.Action;
+import org.jahia.bin.ActionResult;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.modules.docviewer.DocumentViewService;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.render.RenderContext;
+import org.jahia.services.render.Resource;
+import org.jahia.services.render.URLResolver;
+import org.jahia.services.usermanager.JahiaUserManagerService;
+import org.json.JSONObject;
+
+/**
+ * Action that serves the image of a single document page for the image-based document view, rendering the page on the first request. The
+ * page number (starting from 1) is passed in the <code>page</code> request parameter and the requested image width in pixels in the
+ * <code>width</code> one. Without the <code>page</code> parameter the action returns the document information (number of pages, image
+ * width and version) as JSON. If the version is passed in the optional <code>v</code> parameter and matches the current one, the image
+ * can be cached without revalidation.
+ */
+public class PageImageAction extends Action {
+
+    private DocumentViewService documentViewService;
+
+    @Override
+    public ActionResult doExecute(HttpServletRequest req, RenderContext renderContext,
+            Resource resource, JCRSessionWrapper session, Map<String, List<String>> parameters,
+            URLResolver urlResolver) throws Exception {
+        HttpServletResponse response = renderContext.getResponse();
+        JCRNodeWrapper fileNode = resource.getNode();
+        if (!fileNode.isNodeType(Constants.NT_FILE) || !documentViewService.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        if (req.getParameter("page") == null) {
+            JSONObject result = new JSONObject();
+            result.put("pageCount", documentViewService.getPageCount(fileNode,
+                    Priority.INTERACTIVE));
+            result.put("width", documentViewService.getPageImageWidth(NumberUtils.toInt(
+                    req.getParameter("width"), 0)));
+            result.put("version", documentViewService.getPageImageVersion(fileNode));
+            return new ActionResult(HttpServletResponse.SC_OK, null, result);
+        }
+
+        int page = NumberUtils.toInt(req.getParameter("page"), 0);
+        int width = documentViewService.getPageImageWidth(NumberUtils.toInt(
+                req.getParameter("width"), 0));
+        String version = documentViewService.getPageImageVersion(fileNode);
+        String etag = version + "-" + page + "-" + width;
+        boolean immutable = version.equals(req.getParameter("v"));
+        boolean shared = JahiaUserManagerService.isGuest(renderContext.getUser());
+        if (ResourceResponses.isNotModified(req, etag)) {
+            // the client has the image already: do not render it, even if it is not cached
+            ResourceResponses.setCacheHeaders(response, etag, immutable, shared);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        File pageImage = documentViewService.getPageImage(fileNode, page, width,
+                Priority.INTERACTIVE);
+        if (pageImage == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        try {
+            ResourceResponses.setCacheHeaders(response, etag, immutable, shared);
+            response.setContentType(documentViewService.getPageImageMimeType());
+            if (pageImage.length() <= Integer.MAX_VALUE) {
+                response.setContentLength((int) pageImage.length());
+            }
+            InputStream is = new BufferedInputStream(new FileInputStream(pageImage));
+            OutputStream os = response.getOutputStream();
+            try {
+                IOUtils.copy(is, os);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            os.flush();
+        } finally {
+            documentViewService.releasePageImage(pageImage);
+        }
+
+        // the response is already written
+        return null;
+    }
+
+    public void setDocumentViewService(DocumentViewService documentViewService) {
+        this.documentViewService = documentViewService;
+    }
+
+}
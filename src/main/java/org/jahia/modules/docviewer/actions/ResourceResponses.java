@@ -0,0 +1,262 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.actions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRNodeWrapper;
+
+/**
+ * Utility methods for serving the binary content of the document derivatives (SWF views, thumbnails) with a strong entity tag,
+ * conditional requests (<code>If-None-Match</code>) and single byte range requests (<code>Range</code>, <code>If-Range</code>).
+ */
+final class ResourceResponses {
+
+    private static final long MAX_AGE = 365L * 24 * 60 * 60;
+
+    static final long[] UNSATISFIABLE = new long[0];
+
+    private static void copy(InputStream is, OutputStream os, long start, long count)
+            throws IOException {
+        for (long skipped = 0; skipped < start;) {
+            long n = is.skip(start - skipped);
+            if (n <= 0) {
+                throw new IOException("Unable to skip to the position " + start);
+            }
+            skipped += n;
+        }
+        byte[] buffer = new byte[8192];
+        long remaining = count;
+        int n;
+        while (remaining > 0
+                && (n = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            os.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Parses the single byte range of the request. Returns <code>null</code> if the complete content should be sent, i.e. there is no
+     * range, it is not valid, consists of multiple ranges or the <code>If-Range</code> condition does not match.
+     *
+     * @param range
+     *            the value of the <code>Range</code> request header or <code>null</code>
+     * @param ifRange
+     *            the value of the <code>If-Range</code> request header or <code>null</code>
+     * @param etag
+     *            the quoted entity tag of the current version of the resource
+     * @param length
+     *            the length of the content in bytes
+     * @return the first and the last (inclusive) byte positions of the range, {@link #UNSATISFIABLE} if the range cannot be satisfied or
+     *         <code>null</code> if the complete content should be sent
+     */
+    static long[] getRange(String range, String ifRange, String etag, long length) {
+        if (range == null || length < 0) {
+            return null;
+        }
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            // the content has changed since the client has received the first part
+            return null;
+        }
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        String first = StringUtils.substringBefore(range.substring(6), "-").trim();
+        String last = StringUtils.substringAfter(range.substring(6), "-").trim();
+        long start;
+        long end;
+        if (first.length() == 0) {
+            // suffix range: the last N bytes
+            long suffix = NumberUtils.toLong(last, -1);
+            if (suffix < 0) {
+                return null;
+            }
+            if (suffix == 0 || length == 0) {
+                return UNSATISFIABLE;
+            }
+            start = Math.max(length - suffix, 0);
+            end = length - 1;
+        } else {
+            start = NumberUtils.toLong(first, -1);
+            end = last.length() > 0 ? NumberUtils.toLong(last, -1) : Long.MAX_VALUE;
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            end = Math.min(end, length - 1);
+        }
+
+        return new long[] { start, end };
+    }
+
+    /**
+     * Checks if the request is conditional and the client already has the current version of the resource with the specified entity tag.
+     *
+     * @param request
+     *            the current HTTP request
+     * @param etag
+     *            the entity tag of the current version of the resource, without quotes
+     * @return <code>true</code> if the client already has the current version of the resource
+     */
+    static boolean isNotModified(HttpServletRequest request, String etag) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String quoted = "\"" + etag + "\"";
+        for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+            tag = tag.trim();
+            if (tag.equals("*") || StringUtils.removeStart(tag, "W/").equals(quoted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the caching headers of the response. Resources, requested by a versioned URL, are cached for one year without revalidation;
+     * other ones have to be revalidated by their entity tag on each use.
+     *
+     * @param response
+     *            the current HTTP response
+     * @param etag
+     *            the entity tag of the current version of the resource, without quotes
+     * @param immutable
+     *            <code>true</code> if the resource is requested by a URL, which includes its current version
+     * @param shared
+     *            <code>true</code> if the resource is publicly accessible and can be stored by the shared caches (proxies and CDN)
+     */
+    static void setCacheHeaders(HttpServletResponse response, String etag, boolean immutable,
+            boolean shared) {
+        response.setHeader("ETag", "\"" + etag + "\"");
+        response.setHeader("Cache-Control", (shared ? "public" : "private")
+                + (immutable ? ", max-age=" + MAX_AGE + ", immutable"
+                        : ", max-age=0, must-revalidate"));
+        response.setDateHeader("Expires", System.currentTimeMillis()
+                + (immutable ? MAX_AGE * 1000 : 0));
+    }
+
+    /**
+     * Writes the binary content of the specified resource node into the response, taking the conditional and the range request headers
+     * into account.
+     *
+     * @param request
+     *            the current HTTP request
+     * @param response
+     *            the current HTTP response
+     * @param resourceNode
+     *            the resource node with the binary content
+     * @param etag
+     *            the entity tag of the current version of the resource, without quotes
+     * @param immutable
+     *            <code>true</code> if the resource is requested by a URL, which includes its current version
+     * @param shared
+     *            <code>true</code> if the resource is publicly accessible and can be stored by the shared caches (proxies and CDN)
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    static void send(HttpServletRequest request, HttpServletResponse response,
+            JCRNodeWrapper resourceNode, String etag, boolean immutable, boolean shared)
+            throws RepositoryException, IOException {
+        setCacheHeaders(response, etag, immutable, shared);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(request, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        Property data = resourceNode.getProperty(Constants.JCR_DATA);
+        long length = data.getLength();
+        long[] range = getRange(request.getHeader("Range"), request.getHeader("If-Range"), "\""
+                + etag + "\"", length);
+        if (range == UNSATISFIABLE) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        long start = 0;
+        long count = length;
+        if (range != null) {
+            start = range[0];
+            count = range[1] - range[0] + 1;
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/"
+                    + length);
+        }
+        response.setContentType(resourceNode.hasProperty(Constants.JCR_MIMETYPE) ? resourceNode
+                .getProperty(Constants.JCR_MIMETYPE).getString() : "application/octet-stream");
+        if (count >= 0 && count <= Integer.MAX_VALUE) {
+            response.setContentLength((int) count);
+        } else if (count >= 0) {
+            response.setHeader("Content-Length", String.valueOf(count));
+        }
+
+        InputStream is = data.getBinary().getStream();
+        OutputStream os = response.getOutputStream();
+        try {
+            copy(is, os, start, count >= 0 ? count : Long.MAX_VALUE);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        os.flush();
+    }
+
+    private ResourceResponses() {
+        super();
+    }
+}
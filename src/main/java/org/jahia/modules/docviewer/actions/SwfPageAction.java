@@ -0,0 +1,111 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.actions;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.jahia.bin.Action;
+import org.jahia.bin.ActionResult;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
+import org.jahia.modules.docviewer.DerivativeFingerprints;
+import org.jahia.modules.docviewer.DocumentViewService;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.render.RenderContext;
+import org.jahia.services.render.Resource;
+import org.jahia.services.render.URLResolver;
+import org.jahia.services.usermanager.JahiaUserManagerService;
+
+/**
+ * Action that serves a single page of the paged SWF document view, converting the page on the first request. The page number (starting
+ * from 1) is passed in the <code>page</code> request parameter and the version of the paged view in the optional <code>v</code> one: if
+ * it matches the current version, the response can be cached without revalidation.
+ */
+public class SwfPageAction extends Action {
+
+    private DocumentViewService documentViewService;
+
+    @Override
+    public ActionResult doExecute(HttpServletRequest req, RenderContext renderContext,
+            Resource resource, JCRSessionWrapper session, Map<String, List<String>> parameters,
+            URLResolver urlResolver) throws Exception {
+        HttpServletResponse response = renderContext.getResponse();
+        JCRNodeWrapper fileNode = resource.getNode();
+        int page = NumberUtils.toInt(req.getParameter("page"), 1);
+        if (!fileNode.hasNode(DocumentViewService.SWF_PAGES_NODE)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+        String version = DerivativeFingerprints.getVersion(fileNode
+                .getNode(DocumentViewService.SWF_PAGES_NODE));
+        String etag = version + "-" + page;
+        boolean immutable = version.equals(req.getParameter("v"));
+        boolean shared = JahiaUserManagerService.isGuest(renderContext.getUser());
+        if (ResourceResponses.isNotModified(req, etag)) {
+            // the client has the page already: do not convert it, even if it is not stored yet
+            ResourceResponses.setCacheHeaders(response, etag, immutable, shared);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        JCRNodeWrapper pageNode = documentViewService.getViewPage(fileNode, page,
+                Priority.INTERACTIVE);
+        if (pageNode == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        ResourceResponses.send(req, response, pageNode, etag, immutable, shared);
+
+        // the response is already written
+        return null;
+    }
+
+    public void setDocumentViewService(DocumentViewService documentViewService) {
+        this.documentViewService = documentViewService;
+    }
+
+}
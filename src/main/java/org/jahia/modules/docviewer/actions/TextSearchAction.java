@@ -0,0 +1,127 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.actions;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.jahia.api.Constants;
+import org.jahia.bin.Action;
+import org.jahia.bin.ActionResult;
+import org.jahia.modules.docviewer.DocumentViewService;
+import org.jahia.modules.docviewer.PageTextIndex;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.render.RenderContext;
+import org.jahia.services.render.Resource;
+import org.jahia.services.render.URLResolver;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Action that searches the per-page text index of the document for the text, passed in the <code>q</code> request parameter, and returns
+ * the matches as JSON: the numbers of the pages with matches and for each hit its page, position on the page and the text around it. The
+ * number of returned hits is limited by the <code>max</code> request parameter.
+ */
+public class TextSearchAction extends Action {
+
+    private DocumentViewService documentViewService;
+
+    private int maxHits = 100;
+
+    @Override
+    public ActionResult doExecute(HttpServletRequest req, RenderContext renderContext,
+            Resource resource, JCRSessionWrapper session, Map<String, List<String>> parameters,
+            URLResolver urlResolver) throws Exception {
+        JCRNodeWrapper fileNode = resource.getNode();
+        if (!fileNode.isNodeType(Constants.NT_FILE)) {
+            renderContext.getResponse().sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        String query = StringUtils.defaultString(req.getParameter("q"));
+        int max = NumberUtils.toInt(req.getParameter("max"), maxHits);
+        List<PageTextIndex.Hit> hits = documentViewService.searchText(fileNode, query,
+                max > 0 && max < maxHits ? max : maxHits);
+
+        JSONObject result = new JSONObject();
+        result.put("query", query);
+        result.put("indexed", hits != null);
+        JSONArray hitList = new JSONArray();
+        Set<Integer> pages = new LinkedHashSet<Integer>();
+        if (hits != null) {
+            for (PageTextIndex.Hit hit : hits) {
+                JSONObject item = new JSONObject();
+                item.put("page", hit.getPage());
+                item.put("position", hit.getPosition());
+                item.put("snippet", hit.getSnippet());
+                hitList.put(item);
+                pages.add(hit.getPage());
+            }
+        }
+        result.put("hits", hitList);
+        result.put("pages", new JSONArray(pages));
+
+        return new ActionResult(HttpServletResponse.SC_OK, null, result);
+    }
+
+    public void setDocumentViewService(DocumentViewService documentViewService) {
+        this.documentViewService = documentViewService;
+    }
+
+    /**
+     * Sets the upper limit for the number of hits, returned for a single search request.
+     *
+     * @param maxHits
+     *            the upper limit for the number of hits, returned for a single search request
+     */
+    public void setMaxHits(int maxHits) {
+        this.maxHits = maxHits;
+    }
+
+}
@@ -56,16 +56,22 @@ public class CreateThumbnailDocumentRule extends CreateSwfViewDocumentRule {
 
     private int thumbnailSize = 150;
 
+    private String thumbnailSizeProperty = "j:documentRuleThumbnailSize";
+
     public void execute(JCRNodeWrapper document) throws RepositoryException {
         documentViewService.createThumbnail(document, thumbnailName, getThumbnailSize(document));
     }
 
-    private int getThumbnailSize(JCRNodeWrapper document) throws ValueFormatException,
+    protected String getThumbnailName() {
+        return thumbnailName;
+    }
+
+    protected int getThumbnailSize(JCRNodeWrapper document) throws ValueFormatException,
             PathNotFoundException, RepositoryException {
         int size = thumbnailSize;
         JCRNodeWrapper folder = document.getParent();
-        if (folder.hasProperty("j:documentRuleThumbnailSize")) {
-            Long value = folder.getProperty("j:documentRuleThumbnailSize").getLong();
+        if (folder.hasProperty(thumbnailSizeProperty)) {
+            Long value = folder.getProperty(thumbnailSizeProperty).getLong();
             if (value != null && value.longValue() > 0) {
                 size = value.intValue();
             }
@@ -82,4 +88,14 @@ public class CreateThumbnailDocumentRule extends CreateSwfViewDocumentRule {
         this.thumbnailSize = thumbnailSize;
     }
 
+    /**
+     * Sets the name of the folder property, which overrides the default thumbnail size.
+     * 
+     * @param thumbnailSizeProperty
+     *            the name of the folder property with the thumbnail size
+     */
+    public void setThumbnailSizeProperty(String thumbnailSizeProperty) {
+        this.thumbnailSizeProperty = thumbnailSizeProperty;
+    }
+
 }
@@ -40,25 +40,161 @@
 
 package org.jahia.modules.docviewer.rules;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.drools.spi.KnowledgeHelper;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
 import org.jahia.modules.docviewer.DocumentViewService;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
 import org.jahia.services.content.rules.AddedNodeFact;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
 /**
  * Service class for converting documents from the right-hand-side (consequences) of rules into SWF files or generating thumbnails.
+ * Requests for the same node are coalesced: they are executed together in a system session once no further request for the node has
+ * arrived within the coalescing window. The view and thumbnail requests, waiting for a node, are merged into a single derivative
+ * creation, so the document is converted only once and the node is saved by a single job. An execution, which is already in progress,
+ * is not interrupted, but the next one for the same node waits for its end: the jobs of a node never run concurrently.
  * 
  * @author Sergiy Shyrkov
  */
-public class DocumentViewRuleService {
+public class DocumentViewRuleService implements InitializingBean, DisposableBean {
+
+    /**
+     * An operation on the document node, executed by the coalesced job after the derivative creation.
+     */
+    private interface NodeOperation {
+        void execute(JCRNodeWrapper node) throws RepositoryException;
+    }
+
+    private class CoalescedJob implements Runnable {
+
+        private Future<?> future;
+
+        private final String identifier;
+
+        private final String key;
+
+        private final Map<String, NodeOperation> operations = new LinkedHashMap<String, NodeOperation>();
+
+        private final Map<String, Integer> thumbnails = new LinkedHashMap<String, Integer>();
+
+        private boolean view;
+
+        private final String workspace;
+
+        CoalescedJob(String key, String workspace, String identifier) {
+            super();
+            this.key = key;
+            this.workspace = workspace;
+            this.identifier = identifier;
+        }
+
+        void add(boolean view, Map<String, Integer> thumbnails, String operationKey,
+                NodeOperation operation) {
+            this.view |= view;
+            if (thumbnails != null) {
+                this.thumbnails.putAll(thumbnails);
+            }
+            if (operation != null) {
+                operations.put(operationKey, operation);
+            }
+        }
+
+        private void execute(JCRNodeWrapper node) throws RepositoryException {
+            if (view || !thumbnails.isEmpty()) {
+                viewService.createDerivatives(node, view, thumbnails, Priority.BACKGROUND);
+            }
+            for (NodeOperation operation : operations.values()) {
+                operation.execute(node);
+            }
+        }
+
+        public void run() {
+            synchronized (pending) {
+                if (pending.get(key) != this) {
+                    logger.debug("Requests for node {} were already executed", key);
+                    return;
+                }
+                if (running.contains(key)) {
+                    // the node is still being processed: retry after the window
+                    future = executor.schedule(this, coalescingWindow, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                pending.remove(key);
+                running.add(key);
+            }
+            try {
+                JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                        new JCRCallback<Boolean>() {
+                            public Boolean doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                execute(session.getNodeByIdentifier(identifier));
+                                return Boolean.TRUE;
+                            }
+                        });
+            } catch (ItemNotFoundException e) {
+                logger.debug("Node {} was removed. Skipping its coalesced requests", identifier);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            } finally {
+                synchronized (pending) {
+                    running.remove(key);
+                }
+            }
+        }
+    }
 
     private static Logger logger = LoggerFactory.getLogger(DocumentViewRuleService.class);
 
+    private long coalescingWindow = 3000;
+
+    private ScheduledExecutorService executor;
+
+    private Map<String, CoalescedJob> pending = new HashMap<String, CoalescedJob>();
+
+    private Set<String> running = new HashSet<String>();
+
     private DocumentViewService viewService;
 
+    private int workers = 2;
+
+    public void afterPropertiesSet() throws Exception {
+        if (coalescingWindow > 0) {
+            executor = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "doc-viewer-rules-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
     /**
      * Converts the specified file node into SWF file.
      * 
@@ -72,13 +208,13 @@ public class DocumentViewRuleService {
      * @throws RepositoryException
      *             in case of an error
      */
-    public void convert(AddedNodeFact nodeFact, boolean overwriteIfExists, KnowledgeHelper drools)
-            throws RepositoryException {
-        try {
-            viewService.convert(nodeFact.getNode(), overwriteIfExists);
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }
+    public void convert(AddedNodeFact nodeFact, final boolean overwriteIfExists,
+            KnowledgeHelper drools) throws RepositoryException {
+        schedule(nodeFact, false, null, "convert", new NodeOperation() {
+            public void execute(JCRNodeWrapper node) throws RepositoryException {
+                viewService.convert(node, overwriteIfExists);
+            }
+        });
     }
 
     /**
@@ -95,13 +231,46 @@ public class DocumentViewRuleService {
      * @throws RepositoryException
      *             in case of an error
      */
-    public void createThumbnail(AddedNodeFact nodeFact, String thumbnailName, int thumbnailSize,
+    public void createThumbnail(AddedNodeFact nodeFact, final String thumbnailName,
+            final int thumbnailSize, KnowledgeHelper drools) throws RepositoryException {
+        schedule(nodeFact, false, Collections.singletonMap(thumbnailName, thumbnailSize), null,
+                null);
+    }
+
+    /**
+     * Creates the SWF view and a set of thumbnails for the provided document node in a single pass, converting the document only once.
+     * 
+     * @param nodeFact
+     *            the node to create the view and thumbnails for
+     * @param thumbnails
+     *            comma-separated list of thumbnail definitions in the form <code>name:size</code>, e.g.
+     *            <code>thumbnail:150,thumbnail2:300</code>
+     * @param drools
+     *            the rule engine helper class
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createDerivatives(AddedNodeFact nodeFact, String thumbnails,
             KnowledgeHelper drools) throws RepositoryException {
-        try {
-            viewService.createThumbnail(nodeFact.getNode(), thumbnailName, thumbnailSize);
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }
+        schedule(nodeFact, true, parseThumbnails(thumbnails), null, null);
+    }
+
+    /**
+     * Generates a set of thumbnails of different sizes for the provided document node, rendering the document page only once.
+     * 
+     * @param nodeFact
+     *            the node to create thumbnails for
+     * @param thumbnails
+     *            comma-separated list of thumbnail definitions in the form <code>name:size</code>, e.g.
+     *            <code>thumbnail:150,thumbnail2:300</code>
+     * @param drools
+     *            the rule engine helper class
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void createThumbnails(AddedNodeFact nodeFact, String thumbnails,
+            KnowledgeHelper drools) throws RepositoryException {
+        schedule(nodeFact, false, parseThumbnails(thumbnails), null, null);
     }
 
     /**
@@ -116,13 +285,83 @@ public class DocumentViewRuleService {
      */
     public void createView(AddedNodeFact nodeFact, KnowledgeHelper drools)
             throws RepositoryException {
-        try {
-            viewService.createView(nodeFact.getNode());
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
+        schedule(nodeFact, true, null, null, null);
+    }
+
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
         }
     }
 
+    /**
+     * Returns the number of coalesced operations, which are waiting for the end of their coalescing window or are being executed.
+     * 
+     * @return the number of pending coalesced operations
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size() + running.size();
+        }
+    }
+
+    private Map<String, Integer> parseThumbnails(String thumbnails) {
+        Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+        for (String thumbnail : StringUtils.split(thumbnails, ", ")) {
+            String name = StringUtils.substringBefore(thumbnail, ":");
+            int size = NumberUtils.toInt(StringUtils.substringAfter(thumbnail, ":"), 0);
+            if (size > 0) {
+                sizes.put(name, size);
+            } else {
+                logger.warn("Invalid thumbnail definition '{}'. Skipping it.", thumbnail);
+            }
+        }
+
+        return sizes;
+    }
+
+    private void schedule(AddedNodeFact nodeFact, boolean view, Map<String, Integer> thumbnails,
+            String operationKey, NodeOperation operation) throws RepositoryException {
+        JCRNodeWrapper node = nodeFact.getNode();
+        String workspace = node.getSession().getWorkspace().getName();
+        String key = workspace + "/" + node.getIdentifier();
+        if (executor == null) {
+            CoalescedJob job = new CoalescedJob(key, workspace, node.getIdentifier());
+            job.add(view, thumbnails, operationKey, operation);
+            try {
+                job.execute(node);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+            return;
+        }
+
+        synchronized (pending) {
+            CoalescedJob job = pending.get(key);
+            if (job != null) {
+                // merge into the waiting request; a running one is never interrupted
+                job.future.cancel(false);
+                logger.debug("Coalescing requests for node {}", node.getPath());
+            } else {
+                job = new CoalescedJob(key, workspace, node.getIdentifier());
+                pending.put(key, job);
+            }
+            job.add(view, thumbnails, operationKey, operation);
+            job.future = executor.schedule(job, coalescingWindow, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the time in milliseconds to wait for further requests for the same node before the operation is executed. Zero or a negative
+     * value disables coalescing: operations are executed immediately in the rule engine thread.
+     * 
+     * @param coalescingWindow
+     *            the coalescing window in milliseconds
+     */
+    public void setCoalescingWindow(long coalescingWindow) {
+        this.coalescingWindow = coalescingWindow;
+    }
+
     /**
      * Injects an instance of the {@link DocumentViewService}.
      * 
@@ -132,4 +371,14 @@ public class DocumentViewRuleService {
     public void setViewService(DocumentViewService converterService) {
         this.viewService = converterService;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the number of threads executing the coalesced operations.
+     * 
+     * @param workers
+     *            the number of threads executing the coalesced operations
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+}
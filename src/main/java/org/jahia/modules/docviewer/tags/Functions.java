@@ -40,32 +40,128 @@
 
 package org.jahia.modules.docviewer.tags;
 
+import java.util.Locale;
+
 import javax.jcr.RepositoryException;
 
+import org.apache.jackrabbit.util.Text;
 import org.jahia.api.Constants;
+import org.jahia.bin.Jahia;
+import org.jahia.bin.Render;
+import org.jahia.modules.docviewer.ConversionScheduler.Priority;
 import org.jahia.modules.docviewer.DocumentViewService;
+import org.jahia.modules.docviewer.ViewStateCache;
+import org.jahia.modules.docviewer.ViewStateCache.ViewState;
 import org.jahia.services.SpringContextSingleton;
 import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
 
 /**
- * Custom functions, which are exposed into the template scope for document viewer operations.
+ * Custom functions, which are exposed into the template scope for document viewer operations. The returned URLs already include the
+ * context path and are not escaped: they should be written into the markup using <code>fn:escapeXml()</code> and not passed to
+ * <code>c:url</code>, which rejects the FlexPaper page pattern of the paged views.
  * 
  * @author Sergiy Shyrkov
  */
 public final class Functions {
 
-    private static String getViewUrl(JCRNodeWrapper documentNode) throws RepositoryException {
-        if (documentNode.isNodeType("jmix:swfDocumentView") && documentNode.hasNode("swfView")) {
-            String docUrl = documentNode.getUrl();
-            return docUrl + (docUrl.contains("?") ? "&amp;t=swfView" : "?t=swfView");
+    private static String getActionUrl(JCRNodeWrapper documentNode, String action)
+            throws RepositoryException {
+        JCRSessionWrapper session = documentNode.getSession();
+        Locale locale = session.getLocale() != null ? session.getLocale() : Locale.ENGLISH;
+        return Jahia.getContextPath() + Render.getRenderServletPath() + "/"
+                + session.getWorkspace().getName() + "/" + locale
+                + Text.escapePath(documentNode.getPath()) + "." + action + ".do";
+    }
+
+    /**
+     * Returns the URL of the page image action for the document, which is used by the image-based document view to load the document
+     * information and the images of the single pages, or <code>null</code> if the document cannot be viewed.
+     * 
+     * @param documentNode
+     *            the document node to be viewed
+     * @return the URL of the page image action for the document or <code>null</code> if the document cannot be viewed
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getPageImageUrl(JCRNodeWrapper documentNode) throws RepositoryException {
+        return isViewable(documentNode) && getDocumentViewService().isEnabled() ? getActionUrl(
+                documentNode, "pageImage") : null;
+    }
+
+    private static String getViewUrl(JCRNodeWrapper documentNode, ViewState state)
+            throws RepositoryException {
+        if (state.getPagesVersion() != null && state.getPageCount() > 0) {
+            // FlexPaper split file pattern: the [*,0] placeholder is replaced with the page number
+            return "{" + getActionUrl(documentNode, "swfPage") + "?v=" + state.getPagesVersion()
+                    + "&page=[*,0]," + state.getPageCount() + "}";
         }
 
-        return null;
+        return state.getViewVersion() != null ? getDerivativeUrl(documentNode,
+                DocumentViewService.SWF_VIEW_NODE, state.getViewVersion()) : null;
+    }
+
+    private static String getDerivativeUrl(JCRNodeWrapper documentNode, String derivativeName,
+            String version) throws RepositoryException {
+        // the version makes the URL change with the content, so that the response can be cached as immutable
+        return getActionUrl(documentNode, "viewResource") + "?t=" + derivativeName + "&v="
+                + version;
+    }
+
+    private static DocumentViewService getDocumentViewService() {
+        return (DocumentViewService) SpringContextSingleton.getBean("DocumentViewService");
+    }
+
+    private static ViewStateCache getViewStateCache() {
+        return (ViewStateCache) SpringContextSingleton.getBean("DocumentViewerViewStateCache");
+    }
+
+    /**
+     * Returns the URL of the text search action for the document, which is used by the document views to search the per-page text index
+     * of the document, or <code>null</code> if the document cannot be searched on the server side. If the text index is enabled, the URL
+     * is returned for the viewable documents, which have no index yet, as well: it is then created on the first search.
+     * 
+     * @param documentNode
+     *            the document node to be searched
+     * @return the URL of the text search action for the document or <code>null</code> if the document cannot be searched on the server
+     *         side
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getTextSearchUrl(JCRNodeWrapper documentNode) throws RepositoryException {
+        DocumentViewService service = getDocumentViewService();
+        boolean searchable = getViewStateCache().get(documentNode).isTextIndexed()
+                || service.isEnabled() && service.isTextIndex() && isViewable(documentNode);
+        return searchable ? getActionUrl(documentNode, "searchText") : null;
+    }
+
+    /**
+     * Returns the versioned URL of the specified document thumbnail or <code>null</code> if the document has no such thumbnail. The URL
+     * changes when the thumbnail is regenerated, so that it can be cached by the browsers and proxies without revalidation.
+     * 
+     * @param documentNode
+     *            the document node
+     * @param thumbnailName
+     *            the name of the thumbnail node, e.g. <code>thumbnail</code>
+     * @return the versioned URL of the specified document thumbnail or <code>null</code> if the document has no such thumbnail
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getThumbnailUrl(JCRNodeWrapper documentNode, String thumbnailName)
+            throws RepositoryException {
+        if (thumbnailName == null || thumbnailName.indexOf('/') != -1) {
+            return null;
+        }
+        String version = getViewStateCache().getThumbnailVersion(documentNode, thumbnailName);
+
+        return version != null ? getDerivativeUrl(documentNode, thumbnailName, version) : null;
     }
 
     /**
      * Returns the URL of the SWF view for the document or <code>null</code> is the view is not available. If the
-     * <code>createViewIfNotExists</code> is set to true also forces the creation of the SWF view
+     * <code>createViewIfNotExists</code> is set to true also forces the creation of the SWF view. If the document view service is
+     * configured to create views asynchronously, the creation is queued and <code>null</code> is returned immediately; the
+     * {@link #isViewPending(JCRNodeWrapper)} can be used then to display a placeholder.
      * 
      * @param documentNode
      *            the document node to be viewed
@@ -77,19 +173,27 @@ public final class Functions {
      */
     public static String getViewUrl(JCRNodeWrapper documentNode, boolean createViewIfNotExists)
             throws RepositoryException {
-        if (!isViewable(documentNode)) {
+        ViewStateCache viewStateCache = getViewStateCache();
+        ViewState state = viewStateCache.get(documentNode);
+        if (!state.isViewable()) {
             return null;
         }
-        String url = getViewUrl(documentNode);
+        String url = getViewUrl(documentNode, state);
 
         if (url == null && createViewIfNotExists) {
-            DocumentViewService documentViewService = (DocumentViewService) SpringContextSingleton
-                    .getBean("DocumentViewService");
+            DocumentViewService documentViewService = getDocumentViewService();
             if (documentViewService.isEnabled()) {
-                documentViewService.createView(documentNode);
-                documentNode.getSession().save();
+                if (documentViewService.isCreateViewAsynchronously()) {
+                    documentViewService.createViewAsync(documentNode);
+                } else {
+                    documentViewService.createView(documentNode, Priority.INTERACTIVE);
+                    documentNode.getSession().save();
 
-                url = getViewUrl(documentNode);
+                    // do not wait for the observation event to see the new view
+                    viewStateCache.invalidate(documentNode.getSession().getWorkspace().getName(),
+                            documentNode.getPath());
+                    url = getViewUrl(documentNode, viewStateCache.get(documentNode));
+                }
             }
         }
 
@@ -108,10 +212,21 @@ public final class Functions {
      *             in case of a JCR exception
      */
     public static boolean isViewable(JCRNodeWrapper documentNode) throws RepositoryException {
+        return getViewStateCache().get(documentNode).isViewable();
+    }
+
+    /**
+     * Checks if the creation of the SWF view for the provided document is queued or in progress.
+     * 
+     * @param documentNode
+     *            the node to be checked
+     * @return <code>true</code> if the creation of the SWF view for the provided document is queued or in progress
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static boolean isViewPending(JCRNodeWrapper documentNode) throws RepositoryException {
         return documentNode.isNodeType(Constants.NT_FILE)
-                && (documentNode.isNodeType("jmix:swfDocumentView") || DocumentViewService
-                        .isMimeTypeGroup(documentNode.getFileContent().getContentType(),
-                                "pdf,word,rtf,excel,powerpoint,openoffice"));
+                && getDocumentViewService().isViewPending(documentNode);
     }
 
     private Functions() {
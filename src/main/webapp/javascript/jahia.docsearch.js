@@ -0,0 +1,54 @@
+/**
+ * Jahia document viewer search: searches the per-page text index of the document on the server side and lets the viewer jump to the hits
+ *
+ * @url		http://www.jahia.org/
+ * @version	1.0.0
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ */
+(function($) {
+    function init(viewer) {
+        var url = viewer.attr('data-search');
+        var form = $('<form class="jahia-doc-search" action="#"></form>');
+        var input = $('<input type="text" name="q"/>');
+        var results = $('<ol class="jahia-doc-search-results"></ol>').css({
+            'max-height' : '150px',
+            'overflow' : 'auto',
+            'margin' : '5px 0'
+        });
+        form.append(input).append(' ').append(
+                $('<input type="submit"/>').val(viewer.attr('data-search-label') || 'Search'));
+        viewer.before(form);
+        form.after(results.hide());
+
+        form.submit(function() {
+            var query = $.trim(input.val());
+            results.empty().hide();
+            if (query.length == 0) {
+                return false;
+            }
+            $.getJSON(url, {'q' : query}, function(data) {
+                if (!data || !data.hits || data.hits.length == 0) {
+                    results.append($('<li></li>').text(viewer.attr('data-no-matches') || ''));
+                } else {
+                    $.each(data.hits, function(index, hit) {
+                        var link = $('<a href="#"></a>').text(hit.page + ': ' + hit.snippet);
+                        link.click(function() {
+                            // the viewer implementations scroll to the page on this event
+                            viewer.trigger('jahia-doc-viewer-goto', [hit.page]);
+                            return false;
+                        });
+                        results.append($('<li></li>').append(link));
+                    });
+                }
+                results.show();
+            });
+            return false;
+        });
+    }
+
+    $(document).ready(function() {
+        $('a.jahia-doc-viewer[data-search], div.jahia-page-viewer[data-search]').each(function() {
+            init($(this));
+        });
+    });
+})(jQuery);
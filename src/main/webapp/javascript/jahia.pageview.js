@@ -0,0 +1,109 @@
+/**
+ * Jahia image-based document viewer: displays the document pages as images, loading them lazily as they are scrolled into view
+ *
+ * @url		http://www.jahia.org/
+ * @version	1.0.0
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ */
+(function($) {
+    // pages within this distance (in pixels) below or above the visible area are loaded in advance
+    var PRELOAD_MARGIN = 600;
+    // height to width ratio of the page placeholders until the first page is loaded (A4 portrait)
+    var DEFAULT_RATIO = 1.414;
+
+    function pageUrl(url, page, width, version) {
+        // the version makes the image URL immutable, so that the browser does not revalidate it
+        return url + (url.indexOf('?') == -1 ? '?' : '&') + 'page=' + page + '&width=' + width
+                + (version ? '&v=' + encodeURIComponent(version) : '');
+    }
+
+    function init(viewer) {
+        var url = viewer.attr('data-url');
+        var width = Math.max(viewer.width() - 20, 100);
+        // request images for the device pixels to keep the text sharp on high-density screens
+        var imageWidth = Math.round(width * (window.devicePixelRatio || 1));
+
+        $.getJSON(url, {'width' : imageWidth}, function(info) {
+            if (!info || !info.pageCount) {
+                viewer.text(viewer.attr('data-error') || '');
+                return;
+            }
+            var ratio = DEFAULT_RATIO;
+            var pages = [];
+            for (var i = 1; i <= info.pageCount; i++) {
+                var page = $('<div class="jahia-page-viewer-page"></div>').css({
+                    'width' : width + 'px',
+                    'height' : Math.round(width * ratio) + 'px',
+                    'margin' : '0 auto 10px auto',
+                    'background' : '#fff',
+                    'box-shadow' : '0 1px 4px rgba(0, 0, 0, 0.3)'
+                }).attr('data-page', i);
+                viewer.append(page);
+                pages.push(page);
+            }
+
+            var pending = false;
+            function loadVisible() {
+                pending = false;
+                var top = viewer.scrollTop() - PRELOAD_MARGIN;
+                var bottom = viewer.scrollTop() + viewer.height() + PRELOAD_MARGIN;
+                var offset = viewer.offset().top - viewer.scrollTop();
+                for (var i = 0; i < pages.length; i++) {
+                    var page = pages[i];
+                    if (page.attr('data-loaded')) {
+                        continue;
+                    }
+                    var pageTop = page.offset().top - offset;
+                    if (pageTop > bottom) {
+                        // the pages are ordered: the rest is below the visible area
+                        break;
+                    }
+                    if (pageTop + page.height() >= top) {
+                        load(page);
+                    }
+                }
+            }
+            function load(page) {
+                page.attr('data-loaded', 'true');
+                var img = $('<img alt=""/>').css({'width' : '100%', 'display' : 'block'});
+                img.load(function() {
+                    page.css('height', 'auto');
+                    if (page.attr('data-page') == '1' && this.naturalWidth) {
+                        // size the remaining placeholders after the first page
+                        ratio = this.naturalHeight / this.naturalWidth;
+                        for (var i = 1; i < pages.length; i++) {
+                            if (!pages[i].attr('data-loaded')) {
+                                pages[i].css('height', Math.round(width * ratio) + 'px');
+                            }
+                        }
+                    }
+                    schedule();
+                });
+                img.attr('src', pageUrl(url, page.attr('data-page'), info.width, info.version));
+                page.append(img);
+            }
+            function schedule() {
+                if (!pending) {
+                    pending = true;
+                    setTimeout(loadVisible, 50);
+                }
+            }
+
+            viewer.scroll(schedule);
+            viewer.bind('jahia-doc-viewer-goto', function(event, number) {
+                var page = pages[number - 1];
+                if (page) {
+                    viewer.scrollTop(viewer.scrollTop() + page.offset().top - viewer.offset().top
+                            - 10);
+                }
+            });
+            loadVisible();
+        });
+    }
+
+    $(document).ready(function() {
+        $('div.jahia-page-viewer').each(function() {
+            init($(this));
+        });
+    });
+})(jQuery);
@@ -20,7 +20,7 @@ $(document).ready(function() {
 	            FitPageOnLoad : true,
 	            FitWidthOnLoad : false,
 	            FullScreenAsMaxWindow : false,
-	            ProgressiveLoading : false,
+	            ProgressiveLoading : el.rel.charAt(0) == '{',
 	            MinZoomSize : 0.2,
 	            MaxZoomSize : 5,
 	            SearchMatchAll : false,
@@ -31,9 +31,17 @@ $(document).ready(function() {
 	            ZoomToolsVisible : true,
 	            NavToolsVisible : true,
 	            CursorToolsVisible : true,
-	            SearchToolsVisible : true,
+	            // with the server-side text index the SWF does not embed the text and the search box of the page is used instead
+	            SearchToolsVisible : !$(el).attr('data-search'),
 	                
 	            localeChain: 'en_US'
         }); 
+        $(el).bind('jahia-doc-viewer-goto', function(event, page) {
+            var embed = $(el).data('flashembed');
+            var api = embed ? embed.getApi() : null;
+            if (api && api.gotoPage) {
+                api.gotoPage(page);
+            }
+        });
     });
 });
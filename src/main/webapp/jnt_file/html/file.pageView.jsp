@@ -0,0 +1,22 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
+<%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions" %>
+<%@ taglib prefix="functions" uri="http://www.jahia.org/tags/functions" %>
+<%@ taglib prefix="docviewer" uri="http://www.jahia.org/tags/docviewer" %>
+<%@ taglib prefix="template" uri="http://www.jahia.org/tags/templateLib" %>
+<c:if test="${renderContext.editMode}">
+    <template:addResources type="css" resources="files.css"/>
+    <span class="icon ${functions:fileIcon(currentNode.name)}"></span><a href="<c:url value='${currentNode}'/>">${fn:escapeXml(currentNode.name)}</a>
+    (<fmt:message key="jnt_swfDocumentView.noPreviewInEditMode"/>)
+</c:if>
+<c:if test="${!renderContext.editMode}">
+    <c:set var="pageImageUrl" value="${docviewer:getPageImageUrl(currentNode)}"/>
+    <c:if test="${not empty pageImageUrl}">
+        <fmt:message key="jnt_swfDocumentView.viewUnavailable" var="viewUnavailable"/>
+        <c:set var="searchUrl" value="${docviewer:getTextSearchUrl(currentNode)}"/>
+        <fmt:message key="jnt_swfDocumentView.search" var="searchLabel"/>
+        <fmt:message key="jnt_swfDocumentView.noMatches" var="noMatches"/>
+        <div class="jahia-page-viewer" data-url="${fn:escapeXml(pageImageUrl)}" data-error="${fn:escapeXml(viewUnavailable)}"<c:if test="${not empty searchUrl}"> data-search="${fn:escapeXml(searchUrl)}" data-search-label="${fn:escapeXml(searchLabel)}" data-no-matches="${fn:escapeXml(noMatches)}"</c:if> style="width:640px; height:480px; overflow:auto; background:#ddd; padding-top:10px"></div>
+        <template:addResources type="javascript" resources="jquery.min.js,jahia.pageview.js,jahia.docsearch.js"/>
+    </c:if>
+</c:if>
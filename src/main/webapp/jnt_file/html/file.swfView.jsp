@@ -10,9 +10,15 @@
     (<fmt:message key="jnt_swfDocumentView.noPreviewInEditMode"/>)
 </c:if>
 <c:if test="${!renderContext.editMode}">
-    <c:url var="swfUrl" value="${docviewer:getViewUrl(currentNode, true)}" context="/"/>
+    <c:set var="swfUrl" value="${docviewer:getViewUrl(currentNode, true)}"/>
     <c:if test="${not empty swfUrl}">
-        <a class="jahia-doc-viewer" rel="${swfUrl}" style="width:640px; height:480px; display:block"></a>
-        <template:addResources type="javascript" resources="jquery.min.js,flexpaper/flexpaper_flash.min.js,jahia.swfview.js" />
+        <c:set var="searchUrl" value="${docviewer:getTextSearchUrl(currentNode)}"/>
+        <fmt:message key="jnt_swfDocumentView.search" var="searchLabel"/>
+        <fmt:message key="jnt_swfDocumentView.noMatches" var="noMatches"/>
+        <a class="jahia-doc-viewer" rel="${fn:escapeXml(swfUrl)}"<c:if test="${not empty searchUrl}"> data-search="${fn:escapeXml(searchUrl)}" data-search-label="${fn:escapeXml(searchLabel)}" data-no-matches="${fn:escapeXml(noMatches)}"</c:if> style="width:640px; height:480px; display:block"></a>
+        <template:addResources type="javascript" resources="jquery.min.js,flexpaper/flexpaper_flash.min.js,jahia.swfview.js,jahia.docsearch.js" />
+    </c:if>
+    <c:if test="${empty swfUrl && docviewer:isViewPending(currentNode)}">
+        <span class="jahia-doc-viewer-pending" style="width:640px; height:480px; display:block"><fmt:message key="jnt_swfDocumentView.viewPending"/></span>
     </c:if>
 </c:if>
\ No newline at end of file
@@ -14,12 +14,20 @@
 <jcr:nodeProperty name="j:node" node="${currentNode}" var="docProperty"/>
 <c:set var="doc" value="${not empty docProperty ? docProperty.node : null}"/>
 <c:if test="${not empty doc && docviewer:isViewable(doc)}">
-    <c:url var="swfUrl" value="${docviewer:getViewUrl(doc, true)}" context="/"/>
+    <c:set var="swfUrl" value="${docviewer:getViewUrl(doc, true)}"/>
     <c:if test="${not empty swfUrl}">
-        <template:addResources type="javascript" resources="jquery.min.js,flexpaper/flexpaper_flash.min.js,jahia.swfview.js"/>
+        <template:addResources type="javascript" resources="jquery.min.js,flexpaper/flexpaper_flash.min.js,jahia.swfview.js,jahia.docsearch.js"/>
         <jcr:nodeProperty name="j:width" node="${currentNode}" var="width"/>
         <jcr:nodeProperty name="j:height" node="${currentNode}" var="height"/>
-        <a class="jahia-doc-viewer" rel="${swfUrl}" style="width:${functions:default(width.string, '640')}px; height:${functions:default(height.string, '480')}px; display:block"></a>
+        <c:set var="searchUrl" value="${docviewer:getTextSearchUrl(doc)}"/>
+        <fmt:message key="jnt_swfDocumentView.search" var="searchLabel"/>
+        <fmt:message key="jnt_swfDocumentView.noMatches" var="noMatches"/>
+        <a class="jahia-doc-viewer" rel="${fn:escapeXml(swfUrl)}"<c:if test="${not empty searchUrl}"> data-search="${fn:escapeXml(searchUrl)}" data-search-label="${fn:escapeXml(searchLabel)}" data-no-matches="${fn:escapeXml(noMatches)}"</c:if> style="width:${functions:default(width.string, '640')}px; height:${functions:default(height.string, '480')}px; display:block"></a>
+    </c:if>
+    <c:if test="${empty swfUrl && docviewer:isViewPending(doc)}">
+        <jcr:nodeProperty name="j:width" node="${currentNode}" var="width"/>
+        <jcr:nodeProperty name="j:height" node="${currentNode}" var="height"/>
+        <span class="jahia-doc-viewer-pending" style="width:${functions:default(width.string, '640')}px; height:${functions:default(height.string, '480')}px; display:block"><fmt:message key="jnt_swfDocumentView.viewPending"/></span>
     </c:if>
 </c:if>
 </c:if>
\ No newline at end of file
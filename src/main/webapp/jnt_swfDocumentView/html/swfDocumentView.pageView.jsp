@@ -0,0 +1,27 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
+<%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions" %>
+<%@ taglib prefix="functions" uri="http://www.jahia.org/tags/functions" %>
+<%@ taglib prefix="jcr" uri="http://www.jahia.org/tags/jcr" %>
+<%@ taglib prefix="template" uri="http://www.jahia.org/tags/templateLib" %>
+<%@ taglib prefix="docviewer" uri="http://www.jahia.org/tags/docviewer" %>
+<c:if test="${renderContext.editMode}">
+    <template:addResources type="css" resources="files.css"/>
+    <span class="icon ${functions:fileIcon(currentNode.name)}"></span><a href="<c:url value='${currentNode}'/>">${fn:escapeXml(currentNode.name)}</a>
+    (<fmt:message key="jnt_swfDocumentView.noPreviewInEditMode"/>)
+</c:if>
+<c:if test="${!renderContext.editMode}">
+<jcr:nodeProperty name="j:node" node="${currentNode}" var="docProperty"/>
+<c:set var="doc" value="${not empty docProperty ? docProperty.node : null}"/>
+<c:set var="pageImageUrl" value="${not empty doc ? docviewer:getPageImageUrl(doc) : null}"/>
+<c:if test="${not empty pageImageUrl}">
+    <template:addResources type="javascript" resources="jquery.min.js,jahia.pageview.js,jahia.docsearch.js"/>
+    <jcr:nodeProperty name="j:width" node="${currentNode}" var="width"/>
+    <jcr:nodeProperty name="j:height" node="${currentNode}" var="height"/>
+    <fmt:message key="jnt_swfDocumentView.viewUnavailable" var="viewUnavailable"/>
+    <c:set var="searchUrl" value="${docviewer:getTextSearchUrl(doc)}"/>
+    <fmt:message key="jnt_swfDocumentView.search" var="searchLabel"/>
+    <fmt:message key="jnt_swfDocumentView.noMatches" var="noMatches"/>
+    <div class="jahia-page-viewer" data-url="${fn:escapeXml(pageImageUrl)}" data-error="${fn:escapeXml(viewUnavailable)}"<c:if test="${not empty searchUrl}"> data-search="${fn:escapeXml(searchUrl)}" data-search-label="${fn:escapeXml(searchLabel)}" data-no-matches="${fn:escapeXml(noMatches)}"</c:if> style="width:${functions:default(width.string, '640')}px; height:${functions:default(height.string, '480')}px; overflow:auto; background:#ddd; padding-top:10px"></div>
+</c:if>
+</c:if>
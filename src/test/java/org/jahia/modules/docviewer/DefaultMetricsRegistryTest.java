@@ -0,0 +1,120 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the {@link DefaultMetricsRegistry} and its timer histograms.
+ */
+public class DefaultMetricsRegistryTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        DefaultMetricsRegistry.Histogram histogram = new DefaultMetricsRegistry.Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void testHistogram() {
+        DefaultMetricsRegistry.Histogram histogram = new DefaultMetricsRegistry.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        // the percentiles are the upper bounds of the buckets
+        assertEquals(50, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.95));
+        assertEquals(100, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void testPercentileIsCappedByMax() {
+        DefaultMetricsRegistry.Histogram histogram = new DefaultMetricsRegistry.Histogram();
+        histogram.update(3);
+        assertEquals(3, histogram.getPercentile(0.5));
+
+        histogram.update(5000000);
+        assertEquals(5000000, histogram.getMax());
+        assertEquals(5000000, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void testRegistryValues() throws Exception {
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.setJmxEnabled(false);
+        registry.afterPropertiesSet();
+
+        registry.increment("conversions", 2);
+        registry.increment("conversions", 1);
+        registry.recordTime("convert", 10);
+        registry.recordTime("convert", -5);
+        registry.registerGauge("queue", new MetricsRegistry.Gauge() {
+            public long getValue() {
+                return 7;
+            }
+        });
+
+        Map<String, Object> values = registry.getValues();
+        assertEquals(3L, values.get("conversions"));
+        assertEquals(7L, values.get("queue"));
+        assertEquals(2L, values.get("convert.count"));
+        assertEquals(5L, values.get("convert.mean"));
+        assertEquals(10L, values.get("convert.max"));
+        assertEquals(10L, registry.getAttribute("convert.p99"));
+
+        registry.reset();
+        values = registry.getValues();
+        assertFalse(values.containsKey("conversions"));
+        assertFalse(values.containsKey("convert.count"));
+        assertEquals(7L, values.get("queue"));
+    }
+}
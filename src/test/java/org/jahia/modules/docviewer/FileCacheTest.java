@@ -0,0 +1,201 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for the {@link FileCache}.
+ */
+public class FileCacheTest {
+
+    private static byte[] bytes(int length, char c) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) c;
+        }
+        return data;
+    }
+
+    private File directory;
+
+    private FileCache createCache(long maxSize) throws Exception {
+        FileCache cache = new FileCache();
+        cache.setName("test");
+        cache.setDirectory(directory.getPath());
+        cache.setMaxSize(maxSize);
+        cache.afterPropertiesSet();
+        return cache;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("doc-viewer-cache-test", "");
+        FileUtils.forceDelete(directory);
+        FileUtils.forceMkdir(directory);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testPutAndAcquire() throws Exception {
+        FileCache cache = createCache(100);
+        assertNull(cache.acquire("a"));
+        assertEquals(1, cache.getMisses());
+
+        File cached = cache.put("a", new ByteArrayInputStream("content".getBytes("UTF-8")));
+        assertNotNull(cached);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(7, cache.getTotalSize());
+
+        File acquired = cache.acquire("a");
+        try {
+            assertEquals(cached, acquired);
+            assertEquals("content", FileUtils.readFileToString(acquired, "UTF-8"));
+            assertEquals(1, cache.getHits());
+        } finally {
+            cache.release(acquired);
+        }
+    }
+
+    @Test
+    public void testPutFile() throws Exception {
+        FileCache cache = createCache(10);
+        File source = new File(directory, "source");
+        FileUtils.writeByteArrayToFile(source, bytes(5, 'x'));
+        try {
+            File target = new File(directory, "target");
+            assertNotNull(cache.put("a", source));
+            assertTrue("the source is left untouched", source.isFile());
+            assertTrue(cache.copyTo("a", target));
+            assertEquals(5, target.length());
+            FileUtils.deleteQuietly(target);
+
+            FileUtils.writeByteArrayToFile(source, bytes(11, 'x'));
+            assertNull("files over the quota are not cached", cache.put("b", source));
+        } finally {
+            FileUtils.deleteQuietly(source);
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        FileCache cache = createCache(10);
+        cache.put("a", new ByteArrayInputStream(bytes(6, 'a')));
+        cache.put("b", new ByteArrayInputStream(bytes(6, 'b')));
+
+        assertNull(cache.acquire("a"));
+        assertFalse(new File(directory, "a").exists());
+        File b = cache.acquire("b");
+        assertNotNull(b);
+        cache.release(b);
+        assertEquals(6, cache.getTotalSize());
+    }
+
+    @Test
+    public void testPinnedEntryIsNotEvicted() throws Exception {
+        FileCache cache = createCache(10);
+        cache.put("a", new ByteArrayInputStream(bytes(6, 'a')));
+        File a = cache.acquire("a");
+        try {
+            cache.put("b", new ByteArrayInputStream(bytes(6, 'b')));
+            assertTrue(a.exists());
+            assertEquals(6, a.length());
+        } finally {
+            cache.release(a);
+        }
+        assertTrue(cache.getTotalSize() <= 10);
+    }
+
+    @Test
+    public void testRemovePinnedEntry() throws Exception {
+        FileCache cache = createCache(10);
+        cache.put("a", new ByteArrayInputStream(bytes(6, 'a')));
+        File a = cache.acquire("a");
+        cache.remove("a");
+        assertTrue("the file of a pinned entry is kept until its release", a.exists());
+        assertNull(cache.acquire("a"));
+        assertEquals(0, cache.getTotalSize());
+
+        cache.release(a);
+        assertFalse(a.exists());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        FileCache cache = createCache(0);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.put("a", new ByteArrayInputStream(bytes(1, 'a'))));
+        assertNull(cache.acquire("a"));
+    }
+
+    @Test
+    public void testRestoreEntries() throws Exception {
+        FileCache cache = createCache(100);
+        cache.put("a", new ByteArrayInputStream(bytes(6, 'a')));
+        File incomplete = new File(directory, ".b.1");
+        FileUtils.writeByteArrayToFile(incomplete, bytes(3, 'b'));
+
+        FileCache restored = createCache(100);
+        assertEquals(1, restored.getEntryCount());
+        assertEquals(6, restored.getTotalSize());
+        assertFalse("incomplete entries are deleted", incomplete.exists());
+        File a = restored.acquire("a");
+        assertNotNull(a);
+        restored.release(a);
+    }
+}
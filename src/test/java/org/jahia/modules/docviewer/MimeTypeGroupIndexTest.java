@@ -0,0 +1,143 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for the {@link MimeTypeGroupIndex}.
+ */
+public class MimeTypeGroupIndexTest {
+
+    private MimeTypeGroupIndex index;
+
+    private Map<String, List<String>> mimeTypes;
+
+    @Before
+    public void setUp() {
+        mimeTypes = new HashMap<String, List<String>>();
+        mimeTypes.put("pdf", Arrays.asList("application/pdf"));
+        mimeTypes.put("word", Arrays.asList("application/msword",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.*"));
+        mimeTypes.put("openoffice", Arrays.asList("application/vnd.oasis.opendocument.*"));
+        index = new MimeTypeGroupIndex(mimeTypes);
+    }
+
+    @Test
+    public void testExactMatch() {
+        assertTrue(index.matches("application/pdf", "pdf"));
+        assertTrue(index.matches("application/msword", "word"));
+        assertFalse(index.matches("application/pdf", "word"));
+    }
+
+    @Test
+    public void testWildcardMatch() {
+        assertTrue(index.matches(
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document", "word"));
+        assertTrue(index.matches("application/vnd.oasis.opendocument.text", "openoffice"));
+        // the dots of the wildcard entries are literal
+        assertFalse(index.matches("application/vndXoasisXopendocumentXtext", "openoffice"));
+        assertFalse(index.matches("application/vnd.oasis.opendocument", "openoffice"));
+    }
+
+    @Test
+    public void testMultipleGroups() {
+        assertTrue(index.matches("application/pdf", "word, pdf"));
+        assertTrue(index.matches("application/pdf", "word,pdf"));
+        assertTrue(index.matches("application/pdf", "word", "pdf"));
+        assertFalse(index.matches("image/png", "word", "pdf", "openoffice"));
+    }
+
+    @Test
+    public void testGroupArrayIsNotSplit() {
+        // each element of a group array is a single group name, only the single string is split
+        assertTrue(index.matches("application/pdf", new String[] { "pdf" }));
+        assertFalse(index.matches("application/pdf", new String[] { "word,pdf" }));
+        assertTrue(index.matches("application/pdf", "word,pdf"));
+        assertTrue(index.matches("application/pdf", new String[] { "word", "pdf" }));
+    }
+
+    @Test
+    public void testMemoizedResults() {
+        // the same question asked twice returns the same answer from the memoized results
+        assertTrue(index.matches("application/vnd.oasis.opendocument.text", "openoffice"));
+        assertTrue(index.matches("application/vnd.oasis.opendocument.text", "openoffice"));
+        assertFalse(index.matches("text/plain", "pdf", "word"));
+        assertFalse(index.matches("text/plain", "pdf", "word"));
+    }
+
+    @Test
+    public void testUnknownGroupAndNulls() {
+        assertFalse(index.matches("application/pdf", "unknown"));
+        assertFalse(index.matches(null, "pdf"));
+        assertFalse(index.matches("application/pdf", (String) null));
+        assertFalse(index.matches("application/pdf", (String[]) null));
+        assertFalse(new MimeTypeGroupIndex(null).matches("application/pdf", "pdf"));
+    }
+
+    @Test
+    public void testIsBuiltFrom() {
+        assertTrue(index.isBuiltFrom(mimeTypes));
+        assertTrue(index.isBuiltFrom(new HashMap<String, List<String>>(mimeTypes)));
+        assertFalse(index.isBuiltFrom(null));
+
+        // a group, edited in place, keeps the size of the mapping
+        mimeTypes.get("pdf").set(0, "application/x-pdf");
+        assertFalse(index.isBuiltFrom(mimeTypes));
+
+        mimeTypes.get("pdf").set(0, "application/pdf");
+        mimeTypes.put("openoffice", Arrays.asList("application/vnd.sun.xml.*"));
+        assertFalse(index.isBuiltFrom(mimeTypes));
+
+        mimeTypes.put("image", Arrays.asList("image/*"));
+        assertFalse(new MimeTypeGroupIndex(null).isBuiltFrom(mimeTypes));
+        assertTrue(new MimeTypeGroupIndex(null).isBuiltFrom(null));
+    }
+}
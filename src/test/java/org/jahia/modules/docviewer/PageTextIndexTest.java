@@ -0,0 +1,128 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+/**
+ * Unit test for the {@link PageTextIndex}.
+ */
+public class PageTextIndexTest {
+
+    private static PageTextIndex index(String... pages) {
+        return new PageTextIndex(Arrays.asList(pages));
+    }
+
+    @Test
+    public void testSearchIgnoresCase() {
+        List<PageTextIndex.Hit> hits = index("Hello World", "the second page says hello").search(
+                "HELLO", 0);
+        assertEquals(2, hits.size());
+        assertEquals(1, hits.get(0).getPage());
+        assertEquals(0, hits.get(0).getPosition());
+        assertEquals(2, hits.get(1).getPage());
+        assertEquals(21, hits.get(1).getPosition());
+    }
+
+    @Test
+    public void testSearchNormalizesWhitespace() {
+        List<PageTextIndex.Hit> hits = index("Hello World").search("  hello \t\n world ", 0);
+        assertEquals(1, hits.size());
+        assertEquals("Hello World", hits.get(0).getSnippet());
+    }
+
+    @Test
+    public void testSearchMatchesDoNotOverlap() {
+        List<PageTextIndex.Hit> hits = index("aaaaa").search("aa", 0);
+        assertEquals(2, hits.size());
+        assertEquals(0, hits.get(0).getPosition());
+        assertEquals(2, hits.get(1).getPosition());
+    }
+
+    @Test
+    public void testSearchLimit() {
+        PageTextIndex index = index("one one one", "one");
+        assertEquals(4, index.search("one", 0).size());
+        List<PageTextIndex.Hit> hits = index.search("one", 2);
+        assertEquals(2, hits.size());
+        assertEquals(1, hits.get(1).getPage());
+    }
+
+    @Test
+    public void testSearchEmptyQuery() {
+        PageTextIndex index = index("text");
+        assertTrue(index.search(null, 0).isEmpty());
+        assertTrue(index.search(" ", 0).isEmpty());
+        assertTrue(index.search("missing", 0).isEmpty());
+    }
+
+    @Test
+    public void testSnippet() {
+        String text = StringUtils.repeat("a", 100) + "needle" + StringUtils.repeat("b", 100);
+        PageTextIndex.Hit hit = index(text).search("Needle", 0).get(0);
+        assertEquals(100, hit.getPosition());
+        assertEquals("..." + StringUtils.repeat("a", 40) + "needle" + StringUtils.repeat("b", 40)
+                + "...", hit.getSnippet());
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        PageTextIndex index = index("first page", "", "third page \u00e9\u00e8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+
+        PageTextIndex read = PageTextIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(3, read.getPageCount());
+        assertEquals("first page", read.getPageText(1));
+        assertEquals("", read.getPageText(2));
+        assertEquals("third page \u00e9\u00e8", read.getPageText(3));
+        assertEquals(3, read.search("PAGE \u00c9", 0).get(0).getPage());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2011 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+
+package org.jahia.modules.docviewer.actions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the byte range parsing of the {@link ResourceResponses}.
+ */
+public class ResourceResponsesTest {
+
+    private static final String ETAG = "\"abc\"";
+
+    private static long[] range(String range) {
+        return ResourceResponses.getRange(range, null, ETAG, 100);
+    }
+
+    @Test
+    public void testNoRange() {
+        assertNull(range(null));
+        assertNull(ResourceResponses.getRange("bytes=0-9", null, ETAG, -1));
+    }
+
+    @Test
+    public void testRange() {
+        assertArrayEquals(new long[] { 0, 9 }, range("bytes=0-9"));
+        assertArrayEquals(new long[] { 90, 99 }, range("bytes=90-"));
+        assertArrayEquals(new long[] { 50, 99 }, range("bytes=50-500"));
+        assertArrayEquals(new long[] { 5, 5 }, range(" bytes=5-5 "));
+    }
+
+    @Test
+    public void testSuffixRange() {
+        assertArrayEquals(new long[] { 90, 99 }, range("bytes=-10"));
+        assertArrayEquals(new long[] { 0, 99 }, range("bytes=-200"));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        assertSame(ResourceResponses.UNSATISFIABLE, range("bytes=100-"));
+        assertSame(ResourceResponses.UNSATISFIABLE, range("bytes=-0"));
+        assertSame(ResourceResponses.UNSATISFIABLE,
+                ResourceResponses.getRange("bytes=-10", null, ETAG, 0));
+    }
+
+    @Test
+    public void testInvalidRange() {
+        assertNull(range("bytes=9-1"));
+        assertNull(range("bytes=a-b"));
+        assertNull(range("bytes=-"));
+        assertNull(range("items=0-9"));
+        // multiple ranges are answered with the complete content
+        assertNull(range("bytes=0-1,5-6"));
+    }
+
+    @Test
+    public void testIfRange() {
+        assertArrayEquals(new long[] { 0, 9 },
+                ResourceResponses.getRange("bytes=0-9", ETAG, ETAG, 100));
+        assertNull(ResourceResponses.getRange("bytes=0-9", "\"other\"", ETAG, 100));
+    }
+}